@@ -0,0 +1,65 @@
+package com.teletronics.storage.bench;
+
+import com.teletronics.storage.StorageApplication;
+import de.flapdoodle.embed.mongo.commands.ServerAddress;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.mongo.transitions.Mongod;
+import de.flapdoodle.embed.mongo.transitions.RunningMongodProcess;
+import de.flapdoodle.reverse.TransitionWalker;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * The application as the benchmarks see it: a full Spring context on a random port, backed by a
+ * flapdoodle embedded MongoDB. Set {@code BENCH_MONGODB_URI} to run against an existing server
+ * instead (the environment is inherited by the JMH forks, system properties are not).
+ */
+public final class BenchmarkServer implements AutoCloseable {
+
+    private static final String DATABASE = "storage_bench";
+
+    private final TransitionWalker.ReachedState<RunningMongodProcess> mongod;
+    private final ConfigurableApplicationContext context;
+
+    private BenchmarkServer(TransitionWalker.ReachedState<RunningMongodProcess> mongod,
+                            ConfigurableApplicationContext context) {
+        this.mongod = mongod;
+        this.context = context;
+    }
+
+    public static BenchmarkServer start() {
+        String uri = System.getenv("BENCH_MONGODB_URI");
+        TransitionWalker.ReachedState<RunningMongodProcess> mongod = null;
+        if (uri == null || uri.isBlank()) {
+            mongod = Mongod.instance().start(Version.Main.V6_0);
+            ServerAddress address = mongod.current().getServerAddress();
+            uri = "mongodb://" + address.getHost() + ":" + address.getPort();
+        }
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(StorageApplication.class)
+                .run("--server.port=0",
+                        "--spring.data.mongodb.uri=" + uri + "/" + DATABASE,
+                        "--spring.main.banner-mode=off",
+                        "--logging.level.root=WARN",
+                        "--logging.level.org.springframework.web=WARN",
+                        "--logging.level.com.teletronics.storage=WARN",
+                        "--app.storage.filesystem.root=target/bench-blobs");
+        return new BenchmarkServer(mongod, context);
+    }
+
+    public <T> T bean(Class<T> type) {
+        return context.getBean(type);
+    }
+
+    public String baseUrl() {
+        return "http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort();
+    }
+
+    @Override
+    public void close() {
+        context.close();
+        if (mongod != null) {
+            mongod.close();
+        }
+    }
+}
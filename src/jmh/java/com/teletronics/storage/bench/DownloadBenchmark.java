@@ -0,0 +1,71 @@
+package com.teletronics.storage.bench;
+
+import com.teletronics.storage.model.StoredFile;
+import com.teletronics.storage.service.FileService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads through {@code DownloadController} over HTTP with the configured caches, from
+ * several client threads. Files up to the download cache's entry limit are served from memory
+ * after the first request, larger ones stream from GridFS every time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(4)
+public class DownloadBenchmark {
+
+    private static final String USER = "bench-download";
+
+    @Param({"4096", "1048576", "16777216"})
+    public int size;
+
+    // binary is sent as stored, text is gzip-stored and decoded for this client
+    @Param({"binary", "text"})
+    public String kind;
+
+    private BenchmarkServer server;
+    private HttpClient client;
+    private HttpRequest request;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        server = BenchmarkServer.start();
+        Fixtures.clean(server.bean(MongoTemplate.class));
+        byte[] content = Fixtures.content(kind, size, 4);
+        StoredFile file = server.bean(FileService.class).upload(new ByteArrayInputStream(content), "download." + kind,
+                null, content.length, USER, "PRIVATE", List.of());
+
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        request = HttpRequest.newBuilder(URI.create(server.baseUrl() + file.getDownloadLink()))
+                .header("X-User-Id", USER)
+                .build();
+    }
+
+    @Benchmark
+    public long download() throws IOException, InterruptedException {
+        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("Download failed with status " + response.statusCode());
+        }
+        return response.body().length;
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        server.close();
+    }
+}
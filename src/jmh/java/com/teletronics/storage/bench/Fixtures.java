@@ -0,0 +1,45 @@
+package com.teletronics.storage.bench;
+
+import com.teletronics.storage.model.StoredFile;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * Random bytes, or repetitive text that takes the gzip path at upload.
+     */
+    static byte[] content(String kind, int size, long seed) {
+        byte[] content = new byte[size];
+        if ("text".equals(kind)) {
+            byte[] line = "timestamp=1700000000 level=INFO message=benchmark line\n".getBytes(StandardCharsets.US_ASCII);
+            for (int i = 0; i < size; i++) {
+                content[i] = line[i % line.length];
+            }
+        } else {
+            new Random(seed).nextBytes(content);
+        }
+        return content;
+    }
+
+    // metadata, blobs and stored bytes of earlier runs
+    static void clean(MongoTemplate mongoTemplate) {
+        mongoTemplate.remove(new Query(), StoredFile.class);
+        mongoTemplate.remove(new Query(), "blobs");
+        mongoTemplate.remove(new Query(), "fs.files");
+        mongoTemplate.remove(new Query(), "fs.chunks");
+        mongoTemplate.remove(new Query(), "analysis_jobs");
+        mongoTemplate.remove(new Query(), "user_usage");
+    }
+
+    static Query ofUser(String userId) {
+        return Query.query(Criteria.where("userId").is(userId));
+    }
+}
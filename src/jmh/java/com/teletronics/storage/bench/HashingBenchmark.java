@@ -0,0 +1,72 @@
+package com.teletronics.storage.bench;
+
+import com.teletronics.storage.service.TreeHasher;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The content digests every upload computes, on their own and in the buffer size the upload
+ * path reads with (one GridFS chunk). {@code tree} is the parallel tree hash of
+ * {@code app.hash.scheme=tree}, on a pool of one thread per CPU.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashingBenchmark {
+
+    private static final int BUFFER_SIZE = 255 * 1024;
+
+    @Param({"4096", "1048576", "16777216"})
+    public int size;
+
+    private byte[] content;
+    private MessageDigest md5;
+    private MessageDigest sha256;
+    private TreeHasher treeHasher;
+
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException {
+        content = Fixtures.content("binary", size, 1);
+        md5 = MessageDigest.getInstance("MD5");
+        sha256 = MessageDigest.getInstance("SHA-256");
+        treeHasher = new TreeHasher(TreeHasher.TREE, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        treeHasher.destroy();
+    }
+
+    @Benchmark
+    public byte[] md5() {
+        return digest(md5);
+    }
+
+    @Benchmark
+    public byte[] sha256() {
+        return digest(sha256);
+    }
+
+    @Benchmark
+    public String tree() throws IOException {
+        TreeHasher.Digest digest = treeHasher.newDigest(true);
+        for (int offset = 0; offset < content.length; offset += BUFFER_SIZE) {
+            digest.update(content, offset, Math.min(BUFFER_SIZE, content.length - offset));
+        }
+        return digest.finish();
+    }
+
+    private byte[] digest(MessageDigest digest) {
+        for (int offset = 0; offset < content.length; offset += BUFFER_SIZE) {
+            digest.update(content, offset, Math.min(BUFFER_SIZE, content.length - offset));
+        }
+        return digest.digest();
+    }
+}
@@ -0,0 +1,92 @@
+package com.teletronics.storage.bench;
+
+import com.teletronics.storage.model.StoredFile;
+import com.teletronics.storage.model.Visibility;
+import com.teletronics.storage.service.FileService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * First page of {@link FileService#listFiles} (offset paging with a count) and
+ * {@link FileService#listFilesAfter} (cursor) for each filter combination the API accepts,
+ * over metadata seeded straight into MongoDB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListFilesBenchmark {
+
+    private static final int USERS = 20;
+    private static final List<String> TAGS = List.of("Invoice", "Invoices-2024", "Photo", "Report", "Draft", "Music");
+
+    @Param({"20000"})
+    public int files;
+
+    @Param({"user", "user-tag", "user-tag-prefix", "public", "public-tag", "public-tag-prefix", "private"})
+    public String filter;
+
+    @Param({"offset", "cursor"})
+    public String paging;
+
+    private BenchmarkServer server;
+    private FileService fileService;
+    private String userId;
+    private String visibility;
+    private String tag;
+
+    @Setup(Level.Trial)
+    public void start() {
+        server = BenchmarkServer.start();
+        fileService = server.bean(FileService.class);
+        MongoTemplate mongoTemplate = server.bean(MongoTemplate.class);
+        Fixtures.clean(mongoTemplate);
+        seed(mongoTemplate);
+
+        userId = filter.startsWith("user") ? "bench-user-7" : null;
+        visibility = "private".equals(filter) ? "PRIVATE" : null;
+        tag = filter.endsWith("tag-prefix") ? "invoice*" : filter.endsWith("tag") ? "invoice" : null;
+    }
+
+    private void seed(MongoTemplate mongoTemplate) {
+        List<StoredFile> batch = new ArrayList<>();
+        Instant now = Instant.now();
+        for (int i = 0; i < files; i++) {
+            String token = UUID.randomUUID().toString();
+            StoredFile file = new StoredFile(null, "file-" + i + ".bin", "bench-user-" + (i % USERS),
+                    i % 3 == 0 ? Visibility.PUBLIC : Visibility.PRIVATE,
+                    List.of(TAGS.get(i % TAGS.size()), TAGS.get((i / TAGS.size()) % TAGS.size())),
+                    "application/octet-stream", 1024L + i, String.format("%032x", i),
+                    now.minusSeconds(i), token, "/files/download/" + token);
+            batch.add(file);
+            if (batch.size() == 1000) {
+                mongoTemplate.insertAll(batch);
+                batch.clear();
+            }
+        }
+        mongoTemplate.insertAll(batch);
+    }
+
+    @Benchmark
+    public Object firstPage() {
+        if ("cursor".equals(paging)) {
+            return fileService.listFilesAfter(userId, visibility, tag, "filename", Sort.Direction.ASC, "", 10);
+        }
+        return fileService.listFiles(userId, visibility, tag, PageRequest.of(0, 10, Sort.by("filename")));
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        server.close();
+    }
+}
@@ -0,0 +1,73 @@
+package com.teletronics.storage.bench;
+
+import com.teletronics.storage.model.StoredFile;
+import com.teletronics.storage.service.FileService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FileService#upload} end to end: type detection, hashing, optional gzip, the GridFS write
+ * and the metadata document. Every upload is made unique by a short text prefix, so none is
+ * rejected as a duplicate or shared with an earlier blob.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class UploadBenchmark {
+
+    private static final String USER = "bench-upload";
+
+    @Param({"1024", "1048576", "33554432"})
+    public int size;
+
+    // binary goes in as is, text is stored gzip-compressed
+    @Param({"binary", "text"})
+    public String kind;
+
+    private BenchmarkServer server;
+    private FileService fileService;
+    private MongoTemplate mongoTemplate;
+    private byte[] content;
+    private long counter;
+
+    @Setup(Level.Trial)
+    public void start() {
+        server = BenchmarkServer.start();
+        fileService = server.bean(FileService.class);
+        mongoTemplate = server.bean(MongoTemplate.class);
+        Fixtures.clean(mongoTemplate);
+        content = Fixtures.content(kind, size, 3);
+    }
+
+    @Benchmark
+    public StoredFile upload() throws IOException {
+        long n = counter++;
+        byte[] prefix = String.format("%019d\n", n).getBytes(StandardCharsets.US_ASCII);
+        InputStream in = new SequenceInputStream(new ByteArrayInputStream(prefix), new ByteArrayInputStream(content));
+        return fileService.upload(in, "upload-" + n, null, prefix.length + content.length, USER, "PRIVATE", List.of());
+    }
+
+    // keeps the collections from growing across iterations
+    @TearDown(Level.Iteration)
+    public void deleteUploads() {
+        for (StoredFile file : mongoTemplate.find(Fixtures.ofUser(USER), StoredFile.class)) {
+            fileService.delete(file.getId(), USER);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        server.close();
+    }
+}
@@ -3,39 +3,86 @@ package com.teletronics.storage.controller;
 import com.teletronics.storage.model.StoredFile;
 import com.teletronics.storage.model.Visibility;
 import com.teletronics.storage.repository.FileRepository;
+import com.teletronics.storage.service.ArchiveService;
+import com.teletronics.storage.service.CompressionPolicy;
+import com.teletronics.storage.service.DownloadCache;
+import com.teletronics.storage.service.DownloadMetadataCache;
+import com.teletronics.storage.service.GzipDecodingResource;
+import com.teletronics.storage.service.StorageMetrics;
 import com.teletronics.storage.service.StorageService;
 import com.mongodb.client.gridfs.model.GridFSFile;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.data.mongodb.gridfs.GridFsResource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 @RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 @RequestMapping("/files")
 @Tag(name = "Download", description = "Endpoint for file download management")
 public class DownloadController {
 
+    // request attributes of Tomcat's sendfile support (same ones its DefaultServlet uses)
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
     private final StorageService storageService;
     private final FileRepository fileRepository;
+    private final DownloadCache downloadCache;
+    private final DownloadMetadataCache metadataCache;
+    private final StorageMetrics metrics;
+    private final ArchiveService archiveService;
 
-    public DownloadController(StorageService storageService, FileRepository fileRepository) {
+    public DownloadController(StorageService storageService, FileRepository fileRepository,
+                              DownloadCache downloadCache, DownloadMetadataCache metadataCache,
+                              StorageMetrics metrics, ArchiveService archiveService) {
         this.storageService = storageService;
         this.fileRepository = fileRepository;
+        this.downloadCache = downloadCache;
+        this.metadataCache = metadataCache;
+        this.metrics = metrics;
+        this.archiveService = archiveService;
     }
 
     @GetMapping("/download/{token}")
     public ResponseEntity<?> download(@PathVariable("token") String token,
-                                      @RequestHeader("X-User-Id") String userId) {
+                                      @RequestHeader("X-User-Id") String userId,
+                                      @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+                                      @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
+                                      @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                                      WebRequest request,
+                                      HttpServletRequest servletRequest) {
         try {
-            StoredFile storedFile = fileRepository.findByPublicToken(token)
-                    .orElseThrow(() -> new NoSuchElementException("Invalid or expired download token"));
+            DownloadMetadataCache.Entry metadata = metrics.timeDownloadPhase(StorageMetrics.TOKEN_LOOKUP, () -> {
+                DownloadMetadataCache.Entry cachedMetadata = metadataCache.get(token);
+                if (cachedMetadata != null) {
+                    return cachedMetadata;
+                }
+                StoredFile found = fileRepository.findByPublicToken(token)
+                        .orElseThrow(() -> new NoSuchElementException("Invalid or expired download token"));
+                return metadataCache.put(token, found);
+            });
+            StoredFile storedFile = metadata.storedFile();
 
             if (storedFile.getVisibility() == Visibility.PRIVATE &&
                     !storedFile.getUserId().equals(userId)) {
@@ -43,24 +90,106 @@ public class DownloadController {
                         .body(Map.of("error", "You are not allowed to download this file"));
             }
 
-            GridFSFile file = storageService.findGridFsFileById(storedFile.getGridFsId());
-            if (file == null) {
-                return ResponseEntity.status(HttpStatus.NOT_FOUND)
-                        .body(Map.of("error", "File content not found"));
+            // Compressed content goes out as stored when the client takes gzip. Ranges always come
+            // from the original bytes, so their offsets mean the same for every client.
+            boolean compressed = CompressionPolicy.GZIP.equals(storedFile.getCompression());
+            boolean sendStored = !compressed || (range == null && acceptsGzip(acceptEncoding));
+
+            // validators come from the metadata document, so a 304 never touches GridFS
+            String eTag = eTag(storedFile, compressed && sendStored);
+            long lastModified = storedFile.getUploadDate() != null ? storedFile.getUploadDate().toEpochMilli() : -1;
+            if (request.checkNotModified(eTag, lastModified)) {
+                ResponseEntity.HeadersBuilder<?> notModified = ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag);
+                if (compressed) notModified.varyBy(HttpHeaders.ACCEPT_ENCODING);
+                return notModified.build();
+            }
+
+            long openStart = System.nanoTime();
+            Resource resource;
+            String contentType;
+            Path localFile = storageService.localPath(storedFile.getBackend(), storedFile.getGridFsId());
+            DownloadCache.CachedContent cached;
+            if (localFile != null) {
+                // filesystem tier: the OS page cache keeps hot files, no copy in the download cache
+                resource = new FileSystemResource(localFile);
+                contentType = storedFile.getDetectedContentType() != null
+                        ? storedFile.getDetectedContentType()
+                        : MediaType.APPLICATION_OCTET_STREAM_VALUE;
+            } else if ((cached = downloadCache.get(storedFile.getGridFsId(), storedFile.getHash())) != null) {
+                resource = cached.resource();
+                contentType = cached.contentType();
+            } else {
+                GridFSFile file = metadata.gridFsFile();
+                if (file == null) {
+                    file = storageService.findGridFsFileById(storedFile.getGridFsId());
+                    if (file == null) {
+                        return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                                .body(Map.of("error", "File content not found"));
+                    }
+                    metadata.gridFsFile(file);
+                }
+
+                resource = storageService.getContentResource(file);
+                if (storedFile.getDetectedContentType() != null) {
+                    contentType = storedFile.getDetectedContentType();
+                } else {
+                    contentType = (file.getMetadata() != null && file.getMetadata().getString("contentType") != null)
+                            ? file.getMetadata().getString("contentType")
+                            : MediaType.APPLICATION_OCTET_STREAM_VALUE;
+                }
+
+                cached = downloadCache.load(storedFile.getGridFsId(), storedFile.getHash(), contentType, resource);
+                if (cached != null) {
+                    resource = cached.resource();
+                }
+            }
+
+            metrics.recordDownloadPhase(StorageMetrics.OPEN, System.nanoTime() - openStart);
+
+            HttpHeaders headers = new HttpHeaders();
+            headers.setContentDisposition(ContentDisposition.attachment().filename(storedFile.getFilename()).build());
+            headers.setETag(eTag);
+            if (lastModified >= 0) {
+                headers.setLastModified(lastModified);
+            }
+            if (compressed) {
+                headers.setVary(List.of(HttpHeaders.ACCEPT_ENCODING));
+                if (sendStored) {
+                    headers.set(HttpHeaders.CONTENT_ENCODING, CompressionPolicy.GZIP);
+                } else {
+                    resource = new GzipDecodingResource(resource, storedFile.getSize());
+                }
             }
 
-            GridFsResource resource = storageService.getResource(file);
-            InputStreamResource inputStreamResource = new InputStreamResource(resource.getInputStream());
+            // Whole local files go out through Tomcat's sendfile: the kernel copies the file to the
+            // socket (FileChannel.transferTo) and the body never passes through the JVM.
+            if (localFile != null && range == null && sendStored && sendfileSupported(servletRequest)) {
+                long length = Files.size(localFile);
+                servletRequest.setAttribute(SENDFILE_FILENAME, localFile.toString());
+                servletRequest.setAttribute(SENDFILE_START, 0L);
+                servletRequest.setAttribute(SENDFILE_END, length);
+                headers.setContentLength(length);
+                servletRequest.setAttribute(DownloadMetricsFilter.STREAM_START, System.nanoTime());
+                return ResponseEntity.ok()
+                        .headers(headers)
+                        .contentType(MediaType.parseMediaType(contentType))
+                        .build();
+            }
 
-            String contentType = (file.getMetadata() != null && file.getMetadata().getString("contentType") != null)
-                    ? file.getMetadata().getString("contentType")
-                    : MediaType.APPLICATION_OCTET_STREAM_VALUE;
+            // With a Range header Spring answers 206 (or 416) for a re-openable Resource body, using
+            // multipart/byteranges for several ranges. A stale If-Range must get the whole file,
+            // so the content is then handed over as a plain stream, which Spring never slices.
+            Resource body = resource;
+            if (range != null && !rangeStillValid(ifRange, eTag, lastModified)) {
+                body = new InputStreamResource(resource.getInputStream());
+                headers.setContentLength(resource.contentLength());
+            }
 
+            servletRequest.setAttribute(DownloadMetricsFilter.STREAM_START, System.nanoTime());
             return ResponseEntity.ok()
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + file.getFilename() + "\"")
-                    .contentLength(resource.contentLength())
+                    .headers(headers)
                     .contentType(MediaType.parseMediaType(contentType))
-                    .body(inputStreamResource);
+                    .body(body);
 
         } catch (NoSuchElementException e) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND)
@@ -69,4 +198,77 @@ public class DownloadController {
             return ResponseEntity.internalServerError().build();
         }
     }
+
+    /**
+     * Several files as one ZIP streamed while it is built: the listed {@code ids}, or the files
+     * matching {@code tag} and {@code visibility} (the caller's own, or everyone's public ones).
+     */
+    @GetMapping("/archive")
+    public ResponseEntity<StreamingResponseBody> archive(@RequestHeader("X-User-Id") String userId,
+                                                         @RequestParam(value = "ids", required = false) List<String> ids,
+                                                         @RequestParam(value = "tag", required = false) String tag,
+                                                         @RequestParam(value = "visibility", required = false) String visibility) {
+        // access is settled before the response starts, a refused file is still a 403 or 404
+        Supplier<Stream<StoredFile>> files = archiveService.select(ids, tag, visibility, userId);
+        StreamingResponseBody body = out -> {
+            try (Stream<StoredFile> selected = files.get()) {
+                archiveService.write(selected, out);
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/zip"))
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment().filename("files.zip").build().toString())
+                .body(body);
+    }
+
+    private static boolean sendfileSupported(HttpServletRequest request) {
+        return Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED));
+    }
+
+    // each encoding is its own representation and needs its own strong validator
+    static String eTag(StoredFile storedFile, boolean gzip) {
+        long uploaded = storedFile.getUploadDate() != null ? storedFile.getUploadDate().toEpochMilli() : 0;
+        return "\"" + storedFile.getHash() + "-" + Long.toHexString(uploaded) + (gzip ? "-gzip" : "") + "\"";
+    }
+
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.trim().split(";");
+            if (!params[0].trim().equalsIgnoreCase(CompressionPolicy.GZIP)) {
+                continue;
+            }
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // If-Range: only honour the Range header when the client's copy is still current
+    static boolean rangeStillValid(String ifRange, String eTag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(eTag);
+        }
+        try {
+            HttpHeaders headers = new HttpHeaders();
+            headers.set(HttpHeaders.IF_RANGE, ifRange);
+            return lastModified >= 0 && headers.getFirstDate(HttpHeaders.IF_RANGE) / 1000 == lastModified / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
 }
@@ -0,0 +1,56 @@
+package com.teletronics.storage.controller;
+
+import com.teletronics.storage.service.StorageMetrics;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+
+/**
+ * Counts downloads in flight and measures the streaming phase. The body is written after the
+ * controller returns, so the time from {@link #STREAM_START} to the end of the chain is the
+ * time spent sending bytes.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class DownloadMetricsFilter extends OncePerRequestFilter {
+
+    // request attribute holding System.nanoTime() when the controller hands over the body
+    static final String STREAM_START = DownloadMetricsFilter.class.getName() + ".streamStart";
+
+    private final StorageMetrics metrics;
+
+    public DownloadMetricsFilter(StorageMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !request.getRequestURI().startsWith(request.getContextPath() + "/files/download/");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        metrics.downloadStarted();
+        long bytes = -1;
+        try {
+            chain.doFilter(request, response);
+            if (request.getAttribute(STREAM_START) instanceof Long start) {
+                metrics.recordDownloadPhase(StorageMetrics.STREAM, System.nanoTime() - start);
+            }
+            String length = response.getHeader(HttpHeaders.CONTENT_LENGTH);
+            if (length != null && (response.getStatus() == 200 || response.getStatus() == 206)) {
+                bytes = Long.parseLong(length);
+            }
+        } finally {
+            metrics.downloadFinished(bytes);
+        }
+    }
+}
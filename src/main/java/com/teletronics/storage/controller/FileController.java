@@ -1,29 +1,61 @@
 package com.teletronics.storage.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.teletronics.storage.dto.BatchDeleteRequest;
+import com.teletronics.storage.dto.BatchItemResult;
+import com.teletronics.storage.dto.CopyRequest;
+import com.teletronics.storage.dto.CursorPage;
+import com.teletronics.storage.dto.PublicFile;
 import com.teletronics.storage.dto.RenameRequest;
+import com.teletronics.storage.dto.StorageUsage;
 import com.teletronics.storage.model.StoredFile;
+import com.teletronics.storage.service.BatchFileService;
 import com.teletronics.storage.service.FileService;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.util.UriUtils;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Sort;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 @RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 @RequestMapping("/files")
 @Tag(name = "File API", description = "Endpoints for file management")
 public class FileController {
 
     private final FileService fileService;
-    public FileController(FileService fileService) { this.fileService = fileService; }
+    private final BatchFileService batchFileService;
+    private final ObjectMapper objectMapper;
+    // compact entries, flushed by the generator buffer rather than after every file
+    private final ObjectWriter entryWriter;
+
+    public FileController(FileService fileService, BatchFileService batchFileService, ObjectMapper objectMapper) {
+        this.fileService = fileService;
+        this.batchFileService = batchFileService;
+        this.objectMapper = objectMapper;
+        this.entryWriter = objectMapper.writer()
+                .without(SerializationFeature.INDENT_OUTPUT)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
 
     @PostMapping(value="/upload", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
     public ResponseEntity<?> upload(@RequestHeader("X-User-Id") String userId,
@@ -43,6 +75,47 @@ public class FileController {
         return ResponseEntity.ok(stored);
     }
 
+    @PutMapping("/stream")
+    public ResponseEntity<?> uploadStream(@RequestHeader("X-User-Id") String userId,
+                                          @RequestHeader("X-Filename") String filename,
+                                          @RequestHeader(value = "X-Visibility", defaultValue = "PRIVATE") String visibility,
+                                          @RequestHeader(value = "X-Tags", required = false) List<String> tags,
+                                          @RequestHeader(value = HttpHeaders.CONTENT_TYPE, required = false) String contentType,
+                                          @RequestHeader(value = "X-Content-Hash", required = false) String contentHash,
+                                          HttpServletRequest request) throws IOException {
+
+        // with a content hash an empty body asks for a link to content that is already stored
+        if (request.getContentLengthLong() == 0 && contentHash == null) {
+            Map<String, String> error = Map.of(
+                    "error", "Missing file content. Please send the raw file bytes as the request body."
+            );
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(error);
+        }
+
+        // body goes straight from the socket into GridFS, no multipart spooling; it is only read
+        // once every check that does not need it has passed, and Tomcat only answers
+        // Expect: 100-continue on that first read, so a rejected or linked upload sends none of it
+        String decodedFilename = UriUtils.decode(filename, StandardCharsets.UTF_8);
+        StoredFile stored = fileService.upload(request.getInputStream(), decodedFilename, contentType,
+                request.getContentLengthLong(), userId, visibility, tags, contentHash);
+        return ResponseEntity.ok(stored);
+    }
+
+    // several files in one request; one result per file, in order, whatever happened to the others
+    @PostMapping(value = "/batch", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<List<BatchItemResult>> uploadBatch(@RequestHeader("X-User-Id") String userId,
+                                                             @RequestParam(value = "files") List<MultipartFile> files,
+                                                             @RequestParam(value = "visibility", defaultValue = "PRIVATE") String visibility,
+                                                             @RequestParam(value = "tags", required = false) List<String> tags) {
+        return ResponseEntity.ok(batchFileService.upload(files, userId, visibility, tags));
+    }
+
+    @PostMapping("/batch/delete")
+    public ResponseEntity<List<BatchItemResult>> deleteBatch(@RequestHeader("X-User-Id") String userId,
+                                                             @RequestBody BatchDeleteRequest request) {
+        return ResponseEntity.ok(batchFileService.delete(request.getIds(), userId));
+    }
+
     @GetMapping
     public ResponseEntity<Page<StoredFile>> listFiles(
             @RequestHeader("X-User-Id") String userId,
@@ -59,9 +132,63 @@ public class FileController {
         return ResponseEntity.ok(result);
     }
 
+    @GetMapping(params = "cursor")
+    public ResponseEntity<CursorPage<StoredFile>> listFilesByCursor(
+            @RequestHeader("X-User-Id") String userId,
+            @RequestParam(value = "visibility", required = false) String visibility,
+            @RequestParam(value = "tag", required = false) String tag,
+            @RequestParam(value = "sortBy", defaultValue = "filename") String sortBy,
+            @RequestParam(value = "direction", defaultValue = "ASC") String direction,
+            @RequestParam(value = "cursor") String cursor,
+            @RequestParam(value = "size", defaultValue = "10") int size
+    ) {
+        // an empty cursor starts the listing, the response carries the cursor for the next page
+        CursorPage<StoredFile> result = fileService.listFilesAfter(userId, visibility, tag, sortBy,
+                Sort.Direction.fromString(direction), cursor, size);
+        return ResponseEntity.ok(result);
+    }
+
     @GetMapping("/public")
-    public ResponseEntity<List<StoredFile>> listPublic() {
-        return ResponseEntity.ok(fileService.listPublic());
+    public ResponseEntity<StreamingResponseBody> listPublic(
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+        boolean ndjson = accept != null && accept.contains(MediaType.APPLICATION_NDJSON_VALUE);
+
+        // written while the MongoDB cursor is read, the listing is never held as a whole
+        StreamingResponseBody body = out -> {
+            try (Stream<PublicFile> files = fileService.streamPublic();
+                 JsonGenerator json = objectMapper.getFactory().createGenerator(out)) {
+                if (!ndjson) json.writeStartArray();
+                for (Iterator<PublicFile> it = files.iterator(); it.hasNext(); ) {
+                    entryWriter.writeValue(json, it.next());
+                    if (ndjson) json.writeRaw('\n');
+                }
+                if (!ndjson) json.writeEndArray();
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(ndjson ? MediaType.APPLICATION_NDJSON : MediaType.APPLICATION_JSON)
+                .body(body);
+    }
+
+    @GetMapping(value = "/public", params = "cursor")
+    public ResponseEntity<CursorPage<PublicFile>> listPublicByCursor(
+            @RequestParam(value = "cursor") String cursor,
+            @RequestParam(value = "limit", defaultValue = "100") int limit
+    ) {
+        return ResponseEntity.ok(fileService.listPublicAfter(cursor, limit));
+    }
+
+    // bytes and files counted against the caller's quota, -1 limits are unlimited
+    @GetMapping("/usage")
+    public ResponseEntity<StorageUsage> getUsage(@RequestHeader("X-User-Id") String userId) {
+        return ResponseEntity.ok(fileService.getUsage(userId));
+    }
+
+    // analysisStatus turns DONE (or FAILED) once the post-ingest analysis has run
+    @GetMapping("/{id}")
+    public ResponseEntity<StoredFile> getFile(@PathVariable("id") String id,
+                                              @RequestHeader("X-User-Id") String userId) {
+        return ResponseEntity.ok(fileService.getFile(id, userId));
     }
 
     @DeleteMapping("/{id}")
@@ -80,4 +207,15 @@ public class FileController {
         StoredFile updated = fileService.renameFile(id, userId, request.getFilename());
         return ResponseEntity.ok(updated);
     }
+
+    @PostMapping("/{id}/copy")
+    public ResponseEntity<StoredFile> copy(
+            @PathVariable("id") String id,
+            @RequestHeader("X-User-Id") String userId,
+            @RequestBody CopyRequest request
+    ) {
+        StoredFile copy = fileService.copyFile(id, userId, request.getUserId(), request.getFilename(),
+                request.getVisibility(), request.getTags());
+        return ResponseEntity.ok(copy);
+    }
 }
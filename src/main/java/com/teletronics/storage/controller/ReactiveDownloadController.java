@@ -0,0 +1,142 @@
+package com.teletronics.storage.controller;
+
+import com.teletronics.storage.model.StoredFile;
+import com.teletronics.storage.model.Visibility;
+import com.teletronics.storage.service.CompressionPolicy;
+import com.teletronics.storage.service.ReactiveFileService;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Download on the reactive stack. The body is written as the client reads it: GridFS chunks are
+ * fetched on demand and local files go out zero-copy, so a slow client holds no thread.
+ * Validators, gzip negotiation and If-Range follow {@link DownloadController}; a request for
+ * several ranges is answered with the whole file.
+ */
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@RequestMapping("/files")
+@Tag(name = "Download", description = "Endpoint for file download management")
+public class ReactiveDownloadController {
+
+    private final ReactiveFileService fileService;
+
+    public ReactiveDownloadController(ReactiveFileService fileService) {
+        this.fileService = fileService;
+    }
+
+    @GetMapping("/download/{token}")
+    public Mono<Void> download(@PathVariable("token") String token,
+                               @RequestHeader("X-User-Id") String userId,
+                               ServerWebExchange exchange) {
+        return fileService.findByToken(token).flatMap(storedFile -> {
+            if (storedFile.getVisibility() == Visibility.PRIVATE && !storedFile.getUserId().equals(userId)) {
+                return Mono.error(new SecurityException("You are not allowed to download this file"));
+            }
+            return send(storedFile, exchange);
+        });
+    }
+
+    private Mono<Void> send(StoredFile storedFile, ServerWebExchange exchange) {
+        HttpHeaders requestHeaders = exchange.getRequest().getHeaders();
+        ServerHttpResponse response = exchange.getResponse();
+        String range = requestHeaders.getFirst(HttpHeaders.RANGE);
+
+        boolean compressed = CompressionPolicy.GZIP.equals(storedFile.getCompression());
+        boolean sendStored = !compressed
+                || (range == null && DownloadController.acceptsGzip(requestHeaders.getFirst(HttpHeaders.ACCEPT_ENCODING)));
+
+        String eTag = DownloadController.eTag(storedFile, compressed && sendStored);
+        Instant uploaded = storedFile.getUploadDate();
+        long lastModified = uploaded != null ? uploaded.toEpochMilli() : -1;
+        if (exchange.checkNotModified(eTag, uploaded)) {
+            if (compressed) response.getHeaders().setVary(List.of(HttpHeaders.ACCEPT_ENCODING));
+            return response.setComplete();
+        }
+
+        // content is located before any header is set, so a missing file can still become a 404
+        Path localFile = fileService.localPath(storedFile);
+        Mono<Flux<DataBuffer>> content = localFile != null
+                ? Mono.just(DataBufferUtils.read(localFile, response.bufferFactory(), 64 * 1024))
+                : fileService.gridFsFile(storedFile).map(fileService::content);
+        return content.flatMap(stored -> {
+            HttpHeaders headers = response.getHeaders();
+            headers.setContentDisposition(ContentDisposition.attachment().filename(storedFile.getFilename()).build());
+            headers.setETag(eTag);
+            if (lastModified >= 0) {
+                headers.setLastModified(lastModified);
+            }
+            headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+            if (compressed) {
+                headers.setVary(List.of(HttpHeaders.ACCEPT_ENCODING));
+                if (sendStored) headers.set(HttpHeaders.CONTENT_ENCODING, CompressionPolicy.GZIP);
+            }
+            headers.setContentType(MediaType.parseMediaType(storedFile.getDetectedContentType() != null
+                    ? storedFile.getDetectedContentType() : MediaType.APPLICATION_OCTET_STREAM_VALUE));
+            return write(storedFile, stored, localFile, range, compressed, sendStored, eTag, lastModified, exchange);
+        });
+    }
+
+    private Mono<Void> write(StoredFile storedFile, Flux<DataBuffer> stored, Path localFile, String range,
+                             boolean compressed, boolean sendStored, String eTag, long lastModified,
+                             ServerWebExchange exchange) {
+        ServerHttpResponse response = exchange.getResponse();
+        HttpHeaders headers = response.getHeaders();
+
+        // the representation's length: stored bytes when sent as stored, otherwise the original
+        long length = compressed && sendStored ? storedFile.getStoredSize() : storedFile.getSize();
+        long start = 0;
+        long count = length;
+        String ifRange = exchange.getRequest().getHeaders().getFirst(HttpHeaders.IF_RANGE);
+        if (range != null && DownloadController.rangeStillValid(ifRange, eTag, lastModified)) {
+            List<HttpRange> ranges;
+            try {
+                ranges = HttpRange.parseRanges(range);
+            } catch (IllegalArgumentException e) {
+                ranges = List.of();
+            }
+            if (ranges.size() == 1) {
+                HttpRange requested = ranges.get(0);
+                start = requested.getRangeStart(length);
+                long end = requested.getRangeEnd(length);
+                if (length == 0 || start >= length) {
+                    response.setStatusCode(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                    headers.set(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                    headers.remove(HttpHeaders.CONTENT_TYPE);
+                    return response.setComplete();
+                }
+                count = end - start + 1;
+                response.setStatusCode(HttpStatus.PARTIAL_CONTENT);
+                headers.set(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+        headers.setContentLength(count);
+
+        if (localFile != null && sendStored && response instanceof ZeroCopyHttpOutputMessage zeroCopy) {
+            // the kernel copies the file to the socket, the bytes never enter the JVM
+            return zeroCopy.writeWith(localFile, start, count);
+        }
+
+        Flux<DataBuffer> body = sendStored ? stored : fileService.decompress(stored, response.bufferFactory());
+        if (start > 0) body = DataBufferUtils.skipUntilByteCount(body, start);
+        if (count < length) body = DataBufferUtils.takeUntilByteCount(body, count);
+        return response.writeWith(body);
+    }
+}
@@ -0,0 +1,161 @@
+package com.teletronics.storage.controller;
+
+import com.teletronics.storage.dto.CopyRequest;
+import com.teletronics.storage.dto.CursorPage;
+import com.teletronics.storage.dto.PublicFile;
+import com.teletronics.storage.dto.RenameRequest;
+import com.teletronics.storage.dto.StorageUsage;
+import com.teletronics.storage.model.StoredFile;
+import com.teletronics.storage.service.ReactiveFileService;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.http.codec.multipart.FormFieldPart;
+import org.springframework.http.codec.multipart.Part;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.util.UriUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The file API on the reactive stack (spring.main.web-application-type=reactive). Same paths and
+ * responses as {@link FileController}; resumable uploads and batches are only offered by the servlet stack.
+ */
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@RequestMapping("/files")
+@Tag(name = "File API", description = "Endpoints for file management")
+public class ReactiveFileController {
+
+    private final ReactiveFileService fileService;
+
+    public ReactiveFileController(ReactiveFileService fileService) {
+        this.fileService = fileService;
+    }
+
+    @PostMapping(value = "/upload", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Mono<StoredFile> upload(@RequestHeader("X-User-Id") String userId, ServerWebExchange exchange) {
+        return exchange.getMultipartData().flatMap(parts -> {
+            if (!(parts.getFirst("file") instanceof FilePart file)) {
+                return Mono.error(new IllegalArgumentException(
+                        "Missing file in request. Please provide a non-empty multipart/form-data field named 'file'."));
+            }
+            String visibility = field(parts, "visibility");
+            List<String> tags = parts.getOrDefault("tags", List.of()).stream()
+                    .filter(FormFieldPart.class::isInstance)
+                    .map(part -> ((FormFieldPart) part).value())
+                    .toList();
+            String contentType = file.headers().getContentType() != null
+                    ? file.headers().getContentType().toString() : null;
+            return fileService.upload(file.content(), file.filename(), contentType, -1, userId,
+                    visibility != null ? visibility : "PRIVATE", tags);
+        });
+    }
+
+    @PutMapping("/stream")
+    public Mono<StoredFile> uploadStream(@RequestHeader("X-User-Id") String userId,
+                                         @RequestHeader("X-Filename") String filename,
+                                         @RequestHeader(value = "X-Visibility", defaultValue = "PRIVATE") String visibility,
+                                         @RequestHeader(value = "X-Tags", required = false) List<String> tags,
+                                         @RequestHeader(value = HttpHeaders.CONTENT_TYPE, required = false) String contentType,
+                                         @RequestHeader(value = HttpHeaders.CONTENT_LENGTH, required = false) Long contentLength,
+                                         @RequestHeader(value = "X-Content-Hash", required = false) String contentHash,
+                                         @RequestBody(required = false) Flux<DataBuffer> body) {
+        if (contentHash == null && (body == null || (contentLength != null && contentLength == 0))) {
+            return Mono.error(new IllegalArgumentException(
+                    "Missing file content. Please send the raw file bytes as the request body."));
+        }
+        String decodedFilename = UriUtils.decode(filename, StandardCharsets.UTF_8);
+        return fileService.upload(body != null ? body : Flux.empty(), decodedFilename, contentType,
+                contentLength != null ? contentLength : -1, userId, visibility, tags, contentHash);
+    }
+
+    @GetMapping
+    public Mono<Page<StoredFile>> listFiles(
+            @RequestHeader("X-User-Id") String userId,
+            @RequestParam(value = "visibility", required = false) String visibility,
+            @RequestParam(value = "tag", required = false) String tag,
+            @RequestParam(value = "sortBy", defaultValue = "filename") String sortBy,
+            @RequestParam(value = "direction", defaultValue = "ASC") String direction,
+            @RequestParam(value = "page", defaultValue = "0") int page,
+            @RequestParam(value = "size", defaultValue = "10") int size
+    ) {
+        PageRequest pr = PageRequest.of(page, size, Sort.by(Sort.Direction.fromString(direction), sortBy));
+        return fileService.listFiles(userId, visibility, tag, pr);
+    }
+
+    @GetMapping(params = "cursor")
+    public Mono<CursorPage<StoredFile>> listFilesByCursor(
+            @RequestHeader("X-User-Id") String userId,
+            @RequestParam(value = "visibility", required = false) String visibility,
+            @RequestParam(value = "tag", required = false) String tag,
+            @RequestParam(value = "sortBy", defaultValue = "filename") String sortBy,
+            @RequestParam(value = "direction", defaultValue = "ASC") String direction,
+            @RequestParam(value = "cursor") String cursor,
+            @RequestParam(value = "size", defaultValue = "10") int size
+    ) {
+        return fileService.listFilesAfter(userId, visibility, tag, sortBy, Sort.Direction.fromString(direction),
+                cursor, size);
+    }
+
+    // a JSON array by default, one document per line for application/x-ndjson
+    @GetMapping(value = "/public", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    public Flux<PublicFile> listPublic() {
+        return fileService.streamPublic();
+    }
+
+    @GetMapping(value = "/public", params = "cursor")
+    public Mono<CursorPage<PublicFile>> listPublicByCursor(
+            @RequestParam(value = "cursor") String cursor,
+            @RequestParam(value = "limit", defaultValue = "100") int limit
+    ) {
+        return fileService.listPublicAfter(cursor, limit);
+    }
+
+    @GetMapping("/usage")
+    public Mono<StorageUsage> getUsage(@RequestHeader("X-User-Id") String userId) {
+        return fileService.getUsage(userId);
+    }
+
+    @GetMapping("/{id}")
+    public Mono<StoredFile> getFile(@PathVariable("id") String id, @RequestHeader("X-User-Id") String userId) {
+        return fileService.getFile(id, userId);
+    }
+
+    @DeleteMapping("/{id}")
+    public Mono<ResponseEntity<Void>> delete(@PathVariable("id") String id,
+                                             @RequestHeader("X-User-Id") String userId) {
+        return fileService.delete(id, userId).thenReturn(ResponseEntity.noContent().build());
+    }
+
+    @PatchMapping("/{id}/rename")
+    public Mono<StoredFile> rename(@PathVariable("id") String id,
+                                   @RequestHeader("X-User-Id") String userId,
+                                   @RequestBody RenameRequest request) {
+        return fileService.renameFile(id, userId, request.getFilename());
+    }
+
+    @PostMapping("/{id}/copy")
+    public Mono<StoredFile> copy(@PathVariable("id") String id,
+                                 @RequestHeader("X-User-Id") String userId,
+                                 @RequestBody CopyRequest request) {
+        return fileService.copyFile(id, userId, request.getUserId(), request.getFilename(),
+                request.getVisibility(), request.getTags());
+    }
+
+    private static String field(MultiValueMap<String, Part> parts, String name) {
+        return parts.getFirst(name) instanceof FormFieldPart field ? field.value() : null;
+    }
+}
@@ -0,0 +1,68 @@
+package com.teletronics.storage.controller;
+
+import com.teletronics.storage.exception.UploadRejectedException;
+import com.teletronics.storage.service.UploadAdmission;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Upload admission on the reactive stack. The event loop cannot wait for a slot, so a saturated
+ * server answers 503 at once instead of queueing.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveUploadAdmissionFilter implements WebFilter {
+
+    private final UploadAdmission admission;
+
+    public ReactiveUploadAdmissionFilter(UploadAdmission admission) {
+        this.admission = admission;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        ServerHttpRequest request = exchange.getRequest();
+        String userId = request.getHeaders().getFirst("X-User-Id");
+        if (!isUpload(request)) {
+            return chain.filter(exchange);
+        }
+        if (userId == null || userId.isBlank()) {
+            return writeError(exchange.getResponse(), HttpStatus.BAD_REQUEST, "Missing X-User-Id header");
+        }
+        UploadAdmission.Permit permit;
+        try {
+            permit = admission.admit(userId, false);
+        } catch (UploadRejectedException e) {
+            exchange.getResponse().getHeaders().set(HttpHeaders.RETRY_AFTER, e.retryAfterHeader());
+            return writeError(exchange.getResponse(), HttpStatus.valueOf(e.getStatus()), e.getMessage());
+        }
+        return chain.filter(exchange).doFinally(signal -> permit.close());
+    }
+
+    private static boolean isUpload(ServerHttpRequest request) {
+        String path = request.getPath().pathWithinApplication().value();
+        return (request.getMethod() == HttpMethod.POST && path.equals("/files/upload"))
+                || (request.getMethod() == HttpMethod.PUT && path.equals("/files/stream"));
+    }
+
+    private static Mono<Void> writeError(ServerHttpResponse response, HttpStatus status, String message) {
+        response.setStatusCode(status);
+        response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        String body = "{\"error\":\"" + message + "\"}";
+        DataBuffer buffer = response.bufferFactory().wrap(body.getBytes(StandardCharsets.UTF_8));
+        return response.writeWith(Mono.just(buffer));
+    }
+}
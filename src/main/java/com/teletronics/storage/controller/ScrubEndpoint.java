@@ -0,0 +1,34 @@
+package com.teletronics.storage.controller;
+
+import com.teletronics.storage.model.ScrubState;
+import com.teletronics.storage.service.ScrubService;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Admin view of the integrity scrubber, an actuator endpoint so it serves both web stacks:
+ * {@code GET /actuator/scrub} reports the running pass and the last one, {@code POST} asks for a
+ * pass now.
+ */
+@Component
+@Endpoint(id = "scrub")
+public class ScrubEndpoint {
+
+    private final ScrubService scrubService;
+
+    public ScrubEndpoint(ScrubService scrubService) {
+        this.scrubService = scrubService;
+    }
+
+    @ReadOperation
+    public ScrubState status() {
+        return scrubService.status();
+    }
+
+    @WriteOperation
+    public ScrubState start() {
+        return scrubService.request();
+    }
+}
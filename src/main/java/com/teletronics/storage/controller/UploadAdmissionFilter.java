@@ -0,0 +1,81 @@
+package com.teletronics.storage.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.teletronics.storage.exception.UploadRejectedException;
+import com.teletronics.storage.service.UploadAdmission;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Admits upload requests before the dispatcher parses multipart bodies, so a rejected upload
+ * costs neither temp disk nor storage writes. The slot is held until the response is complete.
+ * Uploads without a user are rejected here too, as nothing could admit them.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class UploadAdmissionFilter extends OncePerRequestFilter {
+
+    private static final Pattern PART = Pattern.compile("/files/uploads/[^/]+/parts/[^/]+");
+
+    private final UploadAdmission admission;
+    private final ObjectMapper objectMapper;
+
+    public UploadAdmissionFilter(UploadAdmission admission, ObjectMapper objectMapper) {
+        this.admission = admission;
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !isUpload(request);
+    }
+
+    static boolean isUpload(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return switch (request.getMethod()) {
+            case "POST" -> path.equals("/files/upload") || path.equals("/files/batch");
+            case "PUT" -> path.equals("/files/stream") || PART.matcher(path).matches();
+            default -> false;
+        };
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String userId = request.getHeader("X-User-Id");
+        if (userId == null || userId.isBlank()) {
+            // answered here, the dispatcher would spool a multipart body before finding out
+            writeError(response, HttpStatus.BAD_REQUEST.value(), "Missing X-User-Id header");
+            return;
+        }
+        UploadAdmission.Permit permit;
+        try {
+            permit = admission.admit(userId, true);
+        } catch (UploadRejectedException e) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, e.retryAfterHeader());
+            writeError(response, e.getStatus(), e.getMessage());
+            return;
+        }
+        try (permit) {
+            chain.doFilter(request, response);
+        }
+    }
+
+    private void writeError(HttpServletResponse response, int status, String message) throws IOException {
+        response.setStatus(status);
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        objectMapper.writeValue(response.getOutputStream(), Map.of("error", message));
+    }
+}
@@ -0,0 +1,61 @@
+package com.teletronics.storage.controller;
+
+import com.teletronics.storage.dto.CreateUploadRequest;
+import com.teletronics.storage.model.StoredFile;
+import com.teletronics.storage.model.UploadSession;
+import com.teletronics.storage.service.UploadSessionService;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@RequestMapping("/files/uploads")
+@Tag(name = "Resumable Upload", description = "Endpoints for uploading large files in parts")
+public class UploadSessionController {
+
+    private final UploadSessionService uploadSessionService;
+
+    public UploadSessionController(UploadSessionService uploadSessionService) {
+        this.uploadSessionService = uploadSessionService;
+    }
+
+    @PostMapping
+    public ResponseEntity<UploadSession> create(@RequestHeader("X-User-Id") String userId,
+                                                @RequestBody CreateUploadRequest request) {
+        return ResponseEntity.ok(uploadSessionService.create(userId, request));
+    }
+
+    @GetMapping("/{sessionId}")
+    public ResponseEntity<UploadSession> status(@PathVariable("sessionId") String sessionId,
+                                                @RequestHeader("X-User-Id") String userId) {
+        return ResponseEntity.ok(uploadSessionService.status(sessionId, userId));
+    }
+
+    @PutMapping("/{sessionId}/parts/{part}")
+    public ResponseEntity<UploadSession> putPart(@PathVariable("sessionId") String sessionId,
+                                                 @PathVariable("part") int part,
+                                                 @RequestHeader("X-User-Id") String userId,
+                                                 HttpServletRequest request) throws IOException {
+        UploadSession session = uploadSessionService.putPart(sessionId, userId, part,
+                request.getContentLengthLong(), request.getInputStream());
+        return ResponseEntity.ok(session);
+    }
+
+    @PostMapping("/{sessionId}/commit")
+    public ResponseEntity<StoredFile> commit(@PathVariable("sessionId") String sessionId,
+                                             @RequestHeader("X-User-Id") String userId) throws IOException {
+        return ResponseEntity.ok(uploadSessionService.commit(sessionId, userId));
+    }
+
+    @DeleteMapping("/{sessionId}")
+    public ResponseEntity<Void> abort(@PathVariable("sessionId") String sessionId,
+                                      @RequestHeader("X-User-Id") String userId) {
+        uploadSessionService.abort(sessionId, userId);
+        return ResponseEntity.noContent().build();
+    }
+}
@@ -0,0 +1,15 @@
+package com.teletronics.storage.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+
+import java.util.List;
+
+@Schema(description = "Request body for deleting several files at once")
+public class BatchDeleteRequest {
+
+    @Schema(description = "Ids of the files to delete")
+    private List<String> ids;
+
+    public List<String> getIds() { return ids; }
+    public void setIds(List<String> ids) { this.ids = ids; }
+}
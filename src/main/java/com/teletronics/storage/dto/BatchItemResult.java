@@ -0,0 +1,65 @@
+package com.teletronics.storage.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.teletronics.storage.model.StoredFile;
+import io.swagger.v3.oas.annotations.media.Schema;
+
+@Schema(description = "Outcome of one item of a batch upload or delete")
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BatchItemResult {
+
+    public enum Status {
+        STORED,
+        DELETED,
+        DUPLICATE,
+        QUOTA_EXCEEDED,
+        INVALID,
+        NOT_FOUND,
+        FORBIDDEN,
+        FAILED
+    }
+
+    @Schema(description = "File id, for deletes")
+    private final String id;
+
+    @Schema(description = "File name, for uploads")
+    private final String filename;
+
+    private final Status status;
+
+    @Schema(description = "Why the item was not stored or deleted")
+    private final String error;
+
+    @Schema(description = "The stored file, for successful uploads")
+    private final StoredFile file;
+
+    private BatchItemResult(String id, String filename, Status status, String error, StoredFile file) {
+        this.id = id;
+        this.filename = filename;
+        this.status = status;
+        this.error = error;
+        this.file = file;
+    }
+
+    public static BatchItemResult stored(StoredFile file) {
+        return new BatchItemResult(null, file.getFilename(), Status.STORED, null, file);
+    }
+
+    public static BatchItemResult rejected(String filename, Status status, String error) {
+        return new BatchItemResult(null, filename, status, error, null);
+    }
+
+    public static BatchItemResult deleted(String id) {
+        return new BatchItemResult(id, null, Status.DELETED, null, null);
+    }
+
+    public static BatchItemResult notDeleted(String id, Status status, String error) {
+        return new BatchItemResult(id, null, status, error, null);
+    }
+
+    public String getId() { return id; }
+    public String getFilename() { return filename; }
+    public Status getStatus() { return status; }
+    public String getError() { return error; }
+    public StoredFile getFile() { return file; }
+}
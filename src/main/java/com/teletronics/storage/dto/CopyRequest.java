@@ -0,0 +1,30 @@
+package com.teletronics.storage.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+
+import java.util.List;
+
+@Schema(description = "Request body for copying a file without uploading it again")
+public class CopyRequest {
+
+    @Schema(description = "Name of the copy, the name of the file when omitted", example = "report_copy.pdf")
+    private String filename;
+
+    @Schema(description = "User receiving the copy, the caller when omitted", example = "user2")
+    private String userId;
+
+    @Schema(description = "PUBLIC or PRIVATE", example = "PRIVATE")
+    private String visibility = "PRIVATE";
+
+    @Schema(description = "Up to 5 tags, those of the file when omitted")
+    private List<String> tags;
+
+    public String getFilename() { return filename; }
+    public void setFilename(String filename) { this.filename = filename; }
+    public String getUserId() { return userId; }
+    public void setUserId(String userId) { this.userId = userId; }
+    public String getVisibility() { return visibility; }
+    public void setVisibility(String visibility) { this.visibility = visibility; }
+    public List<String> getTags() { return tags; }
+    public void setTags(List<String> tags) { this.tags = tags; }
+}
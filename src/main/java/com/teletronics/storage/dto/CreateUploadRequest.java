@@ -0,0 +1,35 @@
+package com.teletronics.storage.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+
+import java.util.List;
+
+@Schema(description = "Request body for starting a resumable upload")
+public class CreateUploadRequest {
+
+    @Schema(description = "Name of the file once committed", example = "backup.tar")
+    private String filename;
+
+    @Schema(description = "Total size of the file in bytes", example = "53687091200")
+    private long size;
+
+    @Schema(description = "Declared content type", example = "application/x-tar")
+    private String contentType;
+
+    @Schema(description = "PUBLIC or PRIVATE", example = "PRIVATE")
+    private String visibility = "PRIVATE";
+
+    @Schema(description = "Up to 5 tags")
+    private List<String> tags;
+
+    public String getFilename() { return filename; }
+    public void setFilename(String filename) { this.filename = filename; }
+    public long getSize() { return size; }
+    public void setSize(long size) { this.size = size; }
+    public String getContentType() { return contentType; }
+    public void setContentType(String contentType) { this.contentType = contentType; }
+    public String getVisibility() { return visibility; }
+    public void setVisibility(String visibility) { this.visibility = visibility; }
+    public List<String> getTags() { return tags; }
+    public void setTags(List<String> tags) { this.tags = tags; }
+}
@@ -0,0 +1,24 @@
+package com.teletronics.storage.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+
+import java.util.List;
+
+@Schema(description = "One page of a keyset listing")
+public class CursorPage<T> {
+
+    @Schema(description = "Items of this page")
+    private final List<T> content;
+
+    @Schema(description = "Pass as 'cursor' to get the next page, null on the last page")
+    private final String nextCursor;
+
+    public CursorPage(List<T> content, String nextCursor) {
+        this.content = content;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<T> getContent() { return content; }
+    public int getSize() { return content.size(); }
+    public String getNextCursor() { return nextCursor; }
+}
@@ -0,0 +1,41 @@
+package com.teletronics.storage.dto;
+
+import com.teletronics.storage.model.StoredFile;
+import io.swagger.v3.oas.annotations.media.Schema;
+
+import java.time.Instant;
+import java.util.List;
+
+@Schema(description = "Entry of the public file listing")
+public class PublicFile {
+
+    /** Fields read from the files collection to build an entry, everything else stays in MongoDB. */
+    public static final String[] FIELDS = {"filename", "tags", "contentType", "size", "uploadDate", "publicToken"};
+
+    private final String id;
+    private final String filename;
+    private final List<String> tags;
+    private final String contentType;
+    private final long size;
+    private final Instant uploadDate;
+    private final String downloadLink;
+
+    public PublicFile(StoredFile file) {
+        this.id = file.getId();
+        this.filename = file.getFilename();
+        this.tags = file.getTags();
+        this.contentType = file.getContentType();
+        this.size = file.getSize();
+        this.uploadDate = file.getUploadDate();
+        this.downloadLink = "/files/download/" + file.getPublicToken();
+    }
+
+    public String getId() { return id; }
+    public String getFilename() { return filename; }
+    public String getVisibility() { return "PUBLIC"; }
+    public List<String> getTags() { return tags; }
+    public String getContentType() { return contentType; }
+    public long getSize() { return size; }
+    public Instant getUploadDate() { return uploadDate; }
+    public String getDownloadLink() { return downloadLink; }
+}
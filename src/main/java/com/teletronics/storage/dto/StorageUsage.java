@@ -0,0 +1,42 @@
+package com.teletronics.storage.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+
+@Schema(description = "What a user stores and may store")
+public class StorageUsage {
+
+    private final String userId;
+
+    @Schema(description = "Original size of all the user's files")
+    private final long bytes;
+
+    private final long files;
+
+    @Schema(description = "Byte quota, -1 when unlimited")
+    private final long maxBytes;
+
+    @Schema(description = "File count quota, -1 when unlimited")
+    private final long maxFiles;
+
+    public StorageUsage(String userId, long bytes, long files, long maxBytes, long maxFiles) {
+        this.userId = userId;
+        this.bytes = bytes;
+        this.files = files;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+    }
+
+    public String getUserId() { return userId; }
+    public long getBytes() { return bytes; }
+    public long getFiles() { return files; }
+    public long getMaxBytes() { return maxBytes; }
+    public long getMaxFiles() { return maxFiles; }
+
+    public long remainingBytes() {
+        return maxBytes < 0 ? Long.MAX_VALUE : Math.max(0, maxBytes - bytes);
+    }
+
+    public long remainingFiles() {
+        return maxFiles < 0 ? Long.MAX_VALUE : Math.max(0, maxFiles - files);
+    }
+}
@@ -0,0 +1,11 @@
+package com.teletronics.storage.exception;
+
+/**
+ * The upload would take the user over their byte or file quota; answered with 413.
+ */
+public class QuotaExceededException extends RuntimeException {
+
+    public QuotaExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,32 @@
+package com.teletronics.storage.exception;
+
+import java.time.Duration;
+
+/**
+ * An upload turned away by admission control before its body is read: 429 when the user has
+ * too many uploads running, 503 when the server is saturated. Both carry a {@code Retry-After}.
+ */
+public class UploadRejectedException extends RuntimeException {
+
+    private final int status;
+    private final Duration retryAfter;
+
+    public UploadRejectedException(int status, String message, Duration retryAfter) {
+        super(message);
+        this.status = status;
+        this.retryAfter = retryAfter;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    // whole seconds, as the header wants them
+    public String retryAfterHeader() {
+        return String.valueOf(Math.max(1, (retryAfter.toMillis() + 999) / 1000));
+    }
+}
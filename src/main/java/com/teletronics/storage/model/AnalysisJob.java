@@ -0,0 +1,55 @@
+package com.teletronics.storage.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Post-ingest analysis of one file, queued when the file is registered. Workers claim due jobs
+ * with a lease, so a job whose worker died is picked up again once the lease runs out.
+ */
+@Document(collection = "analysis_jobs")
+@CompoundIndexes({
+    @CompoundIndex(name = "status_next_attempt_idx", def = "{'status': 1, 'nextAttemptAt': 1}"),
+    @CompoundIndex(name = "status_locked_until_idx", def = "{'status': 1, 'lockedUntil': 1}")
+})
+public class AnalysisJob {
+
+    public enum Status {
+        PENDING,
+        RUNNING,
+        DONE,
+        FAILED
+    }
+
+    @Id
+    private String id; // id of the analysed StoredFile, so a file is queued at most once
+    private Status status;
+    private int attempts;
+    private Instant nextAttemptAt;
+    private Instant lockedUntil;
+    private String lastError;
+    private Instant createdAt;
+    private Instant finishedAt;
+
+    public AnalysisJob() {}
+
+    public AnalysisJob(String fileId, Instant createdAt) {
+        this.id = fileId;
+        this.status = Status.PENDING;
+        this.nextAttemptAt = createdAt;
+        this.createdAt = createdAt;
+    }
+
+    public String getId() { return id; }
+    public Status getStatus() { return status; }
+    public int getAttempts() { return attempts; }
+    public Instant getNextAttemptAt() { return nextAttemptAt; }
+    public Instant getLockedUntil() { return lockedUntil; }
+    public String getLastError() { return lastError; }
+    public Instant getCreatedAt() { return createdAt; }
+    public Instant getFinishedAt() { return finishedAt; }
+}
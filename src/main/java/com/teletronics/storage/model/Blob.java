@@ -0,0 +1,65 @@
+package com.teletronics.storage.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Stored content shared by every {@link StoredFile} with the same bytes, keyed by its SHA-256.
+ * The content is deleted when the last referencing file goes away.
+ * <p>
+ * Content keyed by its tree hash keeps the leaf digests (32 bytes per 255 KiB, under 7 MB for
+ * the largest upload); loads that do not check content leave them out.
+ */
+@Document(collection = "blobs")
+public class Blob {
+
+    @Id
+    private String id; // SHA-256 hex of the content
+    private String backend;
+    @Indexed
+    private String gridFsId;
+    private String md5;
+    private long size;
+    private String compression;
+    private long storedSize;
+    private long refCount;
+    private Instant createdAt;
+    // set by the scrubber while no file refers to the blob
+    private Instant unreferencedSince;
+    // last time the scrubber read the content back and it matched
+    private Instant verifiedAt;
+    // tree hash leaf digests, concatenated in order; null for content keyed by its SHA-256
+    private byte[] leafDigests;
+
+    public Blob() {}
+
+    public Blob(String id, String backend, String gridFsId, String md5, long size, String compression,
+                long storedSize, long refCount, Instant createdAt, byte[] leafDigests) {
+        this.id = id;
+        this.backend = backend;
+        this.gridFsId = gridFsId;
+        this.md5 = md5;
+        this.size = size;
+        this.compression = compression;
+        this.storedSize = storedSize;
+        this.refCount = refCount;
+        this.createdAt = createdAt;
+        this.leafDigests = leafDigests;
+    }
+
+    public String getId() { return id; }
+    public String getBackend() { return backend; }
+    public String getGridFsId() { return gridFsId; }
+    public String getMd5() { return md5; }
+    public long getSize() { return size; }
+    public String getCompression() { return compression; }
+    public long getStoredSize() { return storedSize; }
+    public long getRefCount() { return refCount; }
+    public Instant getCreatedAt() { return createdAt; }
+    public Instant getUnreferencedSince() { return unreferencedSince; }
+    public Instant getVerifiedAt() { return verifiedAt; }
+    public byte[] getLeafDigests() { return leafDigests; }
+}
@@ -0,0 +1,68 @@
+package com.teletronics.storage.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Progress of the integrity scrubber, a single document. The phase and cursor are the checkpoint
+ * a pass resumes from; the counts are what the pass has checked and found so far.
+ */
+@Document(collection = "scrub_state")
+public class ScrubState {
+
+    public static final String ID = "scrubber";
+
+    @Id
+    private String id;
+    // null between passes
+    private String phase;
+    // last id done in the phase
+    private String cursor;
+    private Instant passStartedAt;
+    private Map<String, Long> counts = new HashMap<>();
+    private Instant nextPassAt;
+    // a pass asked for through the admin endpoint, started as soon as none is running
+    private Instant requestedAt;
+    private long passes;
+    private Pass lastPass;
+    // the instance scrubbing, for as long as its lease lasts
+    private String owner;
+    private Instant lockedUntil;
+
+    public ScrubState() {}
+
+    public String getId() { return id; }
+    public String getPhase() { return phase; }
+    public String getCursor() { return cursor; }
+    public Instant getPassStartedAt() { return passStartedAt; }
+    public Map<String, Long> getCounts() { return counts; }
+    public Instant getNextPassAt() { return nextPassAt; }
+    public Instant getRequestedAt() { return requestedAt; }
+    public long getPasses() { return passes; }
+    public Pass getLastPass() { return lastPass; }
+    public String getOwner() { return owner; }
+    public Instant getLockedUntil() { return lockedUntil; }
+
+    public static class Pass {
+
+        private Instant startedAt;
+        private Instant finishedAt;
+        private Map<String, Long> counts;
+
+        public Pass() {}
+
+        public Pass(Instant startedAt, Instant finishedAt, Map<String, Long> counts) {
+            this.startedAt = startedAt;
+            this.finishedAt = finishedAt;
+            this.counts = counts;
+        }
+
+        public Instant getStartedAt() { return startedAt; }
+        public Instant getFinishedAt() { return finishedAt; }
+        public Map<String, Long> getCounts() { return counts; }
+    }
+}
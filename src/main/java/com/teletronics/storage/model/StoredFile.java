@@ -1,5 +1,6 @@
 package com.teletronics.storage.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.Transient;
 import org.springframework.data.mongodb.core.index.CompoundIndex;
@@ -9,25 +10,64 @@ import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.Instant;
 import java.util.List;
+import java.util.Locale;
 
 @Document(collection = "files")
 @CompoundIndexes({
     @CompoundIndex(name = "user_hash_idx", def = "{'userId': 1, 'hash': 1}", unique = true),
-    @CompoundIndex(name = "user_filename_idx", def = "{'userId': 1, 'filename': 1}", unique = true)
+    // also serves the filename keyset listing: filenames are unique per user, so _id never breaks a tie
+    @CompoundIndex(name = "user_filename_idx", def = "{'userId': 1, 'filename': 1}", unique = true),
+    // keyset listing: equality prefix, sort field, then _id as tie-breaker
+    @CompoundIndex(name = "user_upload_date_id_idx", def = "{'userId': 1, 'uploadDate': 1, '_id': 1}"),
+    @CompoundIndex(name = "user_size_id_idx", def = "{'userId': 1, 'size': 1, '_id': 1}"),
+    @CompoundIndex(name = "visibility_filename_id_idx", def = "{'visibility': 1, 'filename': 1, '_id': 1}"),
+    @CompoundIndex(name = "visibility_upload_date_id_idx", def = "{'visibility': 1, 'uploadDate': 1, '_id': 1}"),
+    @CompoundIndex(name = "visibility_size_id_idx", def = "{'visibility': 1, 'size': 1, '_id': 1}"),
+    // multikey indexes for tag filters, exact and prefix
+    @CompoundIndex(name = "user_tag_keys_idx", def = "{'userId': 1, 'tagKeys': 1}"),
+    @CompoundIndex(name = "visibility_tag_keys_idx", def = "{'visibility': 1, 'tagKeys': 1}"),
+    // files sharing a blob, for uploads that announce the hash of their content
+    @CompoundIndex(name = "blob_visibility_idx", def = "{'blobId': 1, 'visibility': 1}")
 })
 public class StoredFile {
     @Id
     private String id;
+    // id of the content within its backend (GridFS unless backend says otherwise)
+    @Indexed
     private String gridFsId;
+    private String backend;
     private String filename;
     private String userId;
     @Indexed
     private Visibility visibility;; // PUBLIC / PRIVATE
     private List<String> tags;
+    // tags as entered are kept for display, filters run against these normalized keys
+    @JsonIgnore
+    private List<String> tagKeys;
     private String contentType;
+    // sniffed from the bytes at upload, contentType is what the client declared
+    private String detectedContentType;
     private long size;
+    // bytes held by the backend; smaller than size when stored compressed
+    private long storedSize;
+    private String compression;
+    private double compressionRatio;
     private String hash;
+    // shared content (SHA-256), null for files stored before blobs were introduced
+    private String blobId;
+    // SHA-256 tree hash (app.hash.scheme=tree), which is then also the blobId; null under the sha256 scheme
+    private String treeHash;
     private Instant uploadDate;
+    // post-ingest analysis: detectedContentType is provisional until the status is DONE
+    private AnalysisJob.Status analysisStatus;
+    private Instant analyzedAt;
+    // content read back after the upload matched the recorded size and hashes
+    private Boolean checksumVerified;
+    // set by a batch delete on the files it is about to remove, so no other delete releases them too
+    @JsonIgnore
+    private String deleteClaim;
+    @JsonIgnore
+    private Instant deleteClaimedAt;
     @Indexed(unique = true)
     private String publicToken;
     @Transient
@@ -41,7 +81,7 @@ public class StoredFile {
         this.filename = filename;
         this.userId = userId;
         this.visibility = visibility;
-        this.tags = tags;
+        setTags(tags);
         this.contentType = contentType;
         this.size = size;
         this.hash = hash;
@@ -54,6 +94,8 @@ public class StoredFile {
     public String getId() { return id; }
     public String getGridFsId() { return gridFsId; }
     public void setGridFsId(String gridFsId) { this.gridFsId = gridFsId; }
+    public String getBackend() { return backend; }
+    public void setBackend(String backend) { this.backend = backend; }
     public String getFilename() { return filename; }
     public void setFilename(String filename) { this.filename = filename; }
     public String getUserId() { return userId; }
@@ -61,17 +103,49 @@ public class StoredFile {
     public Visibility getVisibility() { return visibility; }
     public void setVisibility(Visibility visibility) { this.visibility = visibility; }
     public java.util.List<String> getTags() { return tags; }
-    public void setTags(java.util.List<String> tags) { this.tags = tags; }
+    public void setTags(java.util.List<String> tags) { this.tags = tags; this.tagKeys = tagKeys(tags); }
+    @JsonIgnore
+    public List<String> getTagKeys() { return tagKeys; }
     public String getContentType() { return contentType; }
     public void setContentType(String contentType) { this.contentType = contentType; }
+    public String getDetectedContentType() { return detectedContentType; }
+    public void setDetectedContentType(String detectedContentType) { this.detectedContentType = detectedContentType; }
     public long getSize() { return size; }
     public void setSize(long size) { this.size = size; }
+    public long getStoredSize() { return storedSize; }
+    public String getCompression() { return compression; }
+    public double getCompressionRatio() { return compressionRatio; }
+
+    public void setStorage(String compression, long storedSize) {
+        this.compression = compression;
+        this.storedSize = storedSize;
+        this.compressionRatio = storedSize > 0 ? (double) size / storedSize : 1.0;
+    }
     public String getHash() { return hash; }
     public void setHash(String hash) { this.hash = hash; }
+    public String getBlobId() { return blobId; }
+    public void setBlobId(String blobId) { this.blobId = blobId; }
+    public String getTreeHash() { return treeHash; }
+    public void setTreeHash(String treeHash) { this.treeHash = treeHash; }
     public java.time.Instant getUploadDate() { return uploadDate; }
     public void setUploadDate(java.time.Instant uploadDate) { this.uploadDate = uploadDate; }
+    public AnalysisJob.Status getAnalysisStatus() { return analysisStatus; }
+    public void setAnalysisStatus(AnalysisJob.Status analysisStatus) { this.analysisStatus = analysisStatus; }
+    public Instant getAnalyzedAt() { return analyzedAt; }
+    public Boolean getChecksumVerified() { return checksumVerified; }
+    public String getDeleteClaim() { return deleteClaim; }
+    public Instant getDeleteClaimedAt() { return deleteClaimedAt; }
     public String getPublicToken() { return publicToken; }
     public void setPublicToken(String publicToken) { this.publicToken = publicToken; }
     public String getDownloadLink() { return downloadLink; }
     public void setDownloadLink(String downloadLink) { this.downloadLink = downloadLink; }
+
+    public static String tagKey(String tag) {
+        return tag.trim().toLowerCase(Locale.ROOT);
+    }
+
+    public static List<String> tagKeys(List<String> tags) {
+        if (tags == null) return List.of();
+        return tags.stream().map(StoredFile::tagKey).filter(key -> !key.isEmpty()).distinct().toList();
+    }
 }
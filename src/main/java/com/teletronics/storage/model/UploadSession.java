@@ -0,0 +1,128 @@
+package com.teletronics.storage.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.io.ByteArrayOutputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+@Document(collection = "upload_sessions")
+public class UploadSession {
+
+    public enum Status {
+        OPEN,
+        COMMITTING,
+        ABORTING
+    }
+
+    @Id
+    private String id;
+    @Indexed
+    private String userId;
+    private String filename;
+    private String contentType;
+    private Visibility visibility;
+    private List<String> tags;
+    private long size;
+    private long partSize;
+    private int partCount;
+    // chunks are written straight into fs.chunks under this id, the fs.files entry is added on commit
+    @JsonIgnore
+    private String gridFsId;
+    private Set<Integer> receivedParts = new TreeSet<>();
+    // tree hash leaf digests of each received part, by part number; only loaded by the commit
+    @JsonIgnore
+    private Map<String, byte[]> partLeaves = new HashMap<>();
+    private Status status = Status.OPEN;
+    // parts being written and when the last one started; the commit waits for them
+    @JsonIgnore
+    private int inFlight;
+    @JsonIgnore
+    private Instant partStartedAt;
+    private Instant createdAt;
+    // expired by the scrubber, which also removes the chunks; indexed by UploadSessionService
+    private Instant expiresAt;
+
+    public UploadSession() {}
+
+    public UploadSession(String userId, String filename, String contentType, Visibility visibility, List<String> tags,
+                         long size, long partSize, String gridFsId, Instant createdAt, Instant expiresAt) {
+        this.userId = userId;
+        this.filename = filename;
+        this.contentType = contentType;
+        this.visibility = visibility;
+        this.tags = tags;
+        this.size = size;
+        this.partSize = partSize;
+        this.partCount = (int) ((size + partSize - 1) / partSize);
+        this.gridFsId = gridFsId;
+        this.createdAt = createdAt;
+        this.expiresAt = expiresAt;
+    }
+
+    public long partOffset(int part) {
+        return part * partSize;
+    }
+
+    public long partLength(int part) {
+        return Math.min(partSize, size - partOffset(part));
+    }
+
+    public boolean isComplete() {
+        return receivedParts.size() == partCount;
+    }
+
+    public List<Integer> getMissingParts() {
+        List<Integer> missing = new ArrayList<>();
+        for (int part = 0; part < partCount; part++) {
+            if (!receivedParts.contains(part)) missing.add(part);
+        }
+        return missing;
+    }
+
+    /**
+     * The leaf digests of all parts concatenated in order, or null unless every part has them.
+     */
+    public byte[] leafDigests() {
+        ByteArrayOutputStream digests = new ByteArrayOutputStream();
+        for (int part = 0; part < partCount; part++) {
+            byte[] leaves = partLeaves.get(Integer.toString(part));
+            if (leaves == null) return null;
+            digests.writeBytes(leaves);
+        }
+        return digests.toByteArray();
+    }
+
+    public long getReceivedBytes() {
+        return receivedParts.stream().mapToLong(this::partLength).sum();
+    }
+
+    // getters and setters
+    public String getId() { return id; }
+    public String getUserId() { return userId; }
+    public String getFilename() { return filename; }
+    public String getContentType() { return contentType; }
+    public Visibility getVisibility() { return visibility; }
+    public List<String> getTags() { return tags; }
+    public long getSize() { return size; }
+    public long getPartSize() { return partSize; }
+    public int getPartCount() { return partCount; }
+    public String getGridFsId() { return gridFsId; }
+    public Set<Integer> getReceivedParts() { return receivedParts; }
+    public void setReceivedParts(Set<Integer> receivedParts) { this.receivedParts = receivedParts; }
+    public Map<String, byte[]> getPartLeaves() { return partLeaves; }
+    public Status getStatus() { return status; }
+    public void setStatus(Status status) { this.status = status; }
+    public int getInFlight() { return inFlight; }
+    public Instant getPartStartedAt() { return partStartedAt; }
+    public Instant getCreatedAt() { return createdAt; }
+    public Instant getExpiresAt() { return expiresAt; }
+}
@@ -0,0 +1,42 @@
+package com.teletronics.storage.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Running totals of a user's files, changed only with atomic {@code $inc} as files are stored
+ * and deleted, so reading a user's usage is a single document lookup.
+ */
+@Document(collection = "user_usage")
+public class UserUsage {
+
+    @Id
+    private String id; // the user id
+    private long bytes;
+    private long files;
+    // per-user limits, the app.quota defaults apply when absent
+    private Long maxBytes;
+    private Long maxFiles;
+    private Instant updatedAt;
+    // files stored before quotas are counted in (UserUsageMigration)
+    private boolean migrated;
+
+    public UserUsage() {}
+
+    public UserUsage(String userId, long bytes, long files, Instant updatedAt) {
+        this.id = userId;
+        this.bytes = bytes;
+        this.files = files;
+        this.updatedAt = updatedAt;
+    }
+
+    public String getId() { return id; }
+    public long getBytes() { return bytes; }
+    public long getFiles() { return files; }
+    public Long getMaxBytes() { return maxBytes; }
+    public Long getMaxFiles() { return maxFiles; }
+    public Instant getUpdatedAt() { return updatedAt; }
+    public boolean isMigrated() { return migrated; }
+}
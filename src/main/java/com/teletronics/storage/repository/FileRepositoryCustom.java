@@ -0,0 +1,33 @@
+package com.teletronics.storage.repository;
+
+import com.teletronics.storage.model.StoredFile;
+import com.teletronics.storage.model.Visibility;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+public interface FileRepositoryCustom {
+
+    /**
+     * Files of a user (or, with a null user, of a visibility) carrying a matching tag.
+     */
+    Page<StoredFile> findByTag(String userId, Visibility visibility, TagQuery tag, Pageable pageable);
+
+    /**
+     * Keyset page: files matching the filter that sort strictly after ({@code lastValue}, {@code lastId}),
+     * ordered by {@code sortBy} then {@code _id}. Pass null for both to read the first page.
+     * With {@code fields}, only those are read.
+     */
+    List<StoredFile> findPageAfter(String userId, Visibility visibility, TagQuery tag,
+                                   String sortBy, Sort.Direction direction,
+                                   Object lastValue, String lastId, int limit, String... fields);
+
+    /**
+     * All files matching every given filter (null ones are ignored), by filename then {@code _id},
+     * read lazily from a cursor. The caller must close the stream.
+     */
+    Stream<StoredFile> streamMatching(String userId, Visibility visibility, TagQuery tag);
+}
@@ -0,0 +1,74 @@
+package com.teletronics.storage.repository;
+
+import com.teletronics.storage.model.StoredFile;
+import com.teletronics.storage.model.Visibility;
+import org.bson.types.ObjectId;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+public class FileRepositoryCustomImpl implements FileRepositoryCustom {
+
+    private final MongoTemplate mongoTemplate;
+
+    public FileRepositoryCustomImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public Page<StoredFile> findByTag(String userId, Visibility visibility, TagQuery tag, Pageable pageable) {
+        Query query = Query.query(filter(userId, visibility, tag));
+        long total = mongoTemplate.count(query, StoredFile.class);
+        List<StoredFile> files = mongoTemplate.find(Query.of(query).with(pageable), StoredFile.class);
+        return new PageImpl<>(files, pageable, total);
+    }
+
+    @Override
+    public List<StoredFile> findPageAfter(String userId, Visibility visibility, TagQuery tag,
+                                          String sortBy, Sort.Direction direction,
+                                          Object lastValue, String lastId, int limit, String... fields) {
+        Criteria criteria = filter(userId, visibility, tag);
+
+        if (lastId != null) {
+            // (sortBy, _id) > (lastValue, lastId), written so the outer bound on sortBy
+            // narrows the index scan and the $or only resolves ties
+            ObjectId id = new ObjectId(lastId);
+            boolean asc = direction.isAscending();
+            criteria = new Criteria().andOperator(
+                    criteria,
+                    asc ? Criteria.where(sortBy).gte(lastValue) : Criteria.where(sortBy).lte(lastValue),
+                    new Criteria().orOperator(
+                            asc ? Criteria.where(sortBy).gt(lastValue) : Criteria.where(sortBy).lt(lastValue),
+                            asc ? Criteria.where("_id").gt(id) : Criteria.where("_id").lt(id)));
+        }
+
+        Query query = Query.query(criteria)
+                .with(Sort.by(direction, sortBy, "_id"))
+                .limit(limit);
+        if (fields.length > 0) query.fields().include(fields);
+        return mongoTemplate.find(query, StoredFile.class);
+    }
+
+    @Override
+    public Stream<StoredFile> streamMatching(String userId, Visibility visibility, TagQuery tag) {
+        Criteria criteria = new Criteria();
+        if (userId != null) criteria.and("userId").is(userId);
+        if (visibility != null) criteria.and("visibility").is(visibility);
+        if (tag != null) criteria = new Criteria().andOperator(criteria, tag.criteria());
+        return mongoTemplate.stream(Query.query(criteria).with(Sort.by("filename", "_id")), StoredFile.class);
+    }
+
+    private static Criteria filter(String userId, Visibility visibility, TagQuery tag) {
+        Criteria owner = userId != null
+                ? Criteria.where("userId").is(userId)
+                : Criteria.where("visibility").is(visibility);
+        return tag != null ? new Criteria().andOperator(owner, tag.criteria()) : owner;
+    }
+}
@@ -0,0 +1,29 @@
+package com.teletronics.storage.repository;
+
+import com.teletronics.storage.model.StoredFile;
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import java.util.regex.Pattern;
+
+/**
+ * Tag filter on the normalized {@code tagKeys} field. {@code report} matches the tag exactly,
+ * {@code rep*} matches tags starting with "rep"; both ignore case and can use the tag indexes.
+ */
+public record TagQuery(String key, boolean prefix) {
+
+    public static TagQuery parse(String tag) {
+        boolean prefix = tag.endsWith("*");
+        String key = StoredFile.tagKey(prefix ? tag.substring(0, tag.length() - 1) : tag);
+        if (key.isEmpty()) {
+            throw new IllegalArgumentException("Tag filter must not be empty");
+        }
+        return new TagQuery(key, prefix);
+    }
+
+    public Criteria criteria() {
+        // an anchored, case-sensitive regex on the lowercased keys becomes an index range scan
+        return prefix
+                ? Criteria.where("tagKeys").regex("^" + Pattern.quote(key))
+                : Criteria.where("tagKeys").is(key);
+    }
+}
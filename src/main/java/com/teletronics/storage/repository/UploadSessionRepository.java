@@ -0,0 +1,7 @@
+package com.teletronics.storage.repository;
+
+import com.teletronics.storage.model.UploadSession;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+public interface UploadSessionRepository extends MongoRepository<UploadSession, String> {
+}
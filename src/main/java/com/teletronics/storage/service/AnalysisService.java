@@ -0,0 +1,242 @@
+package com.teletronics.storage.service;
+
+import com.teletronics.storage.model.AnalysisJob;
+import com.teletronics.storage.model.StoredFile;
+import org.apache.tika.Tika;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Post-ingest analysis of stored files, off the request path. The upload records the type sniffed
+ * from the leading bytes as provisional metadata and queues a job; {@link AnalysisWorker} threads
+ * then read the content back once to detect its type with the filename as a hint and to verify
+ * the size and hashes recorded at upload. Failed attempts are retried with exponential backoff.
+ */
+@Service
+public class AnalysisService {
+
+    private static final Logger log = LoggerFactory.getLogger(AnalysisService.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final StorageService storageService;
+    private final DownloadMetadataCache metadataCache;
+    private final StorageMetrics metrics;
+    private final TreeHasher treeHasher;
+    private final BlobService blobService;
+    private final boolean enabled;
+    private final int maxAttempts;
+    private final Duration retryBackoff;
+    private final Duration lease;
+    private final Tika tika = new Tika();
+
+    public AnalysisService(MongoTemplate mongoTemplate, StorageService storageService,
+                           DownloadMetadataCache metadataCache, StorageMetrics metrics, TreeHasher treeHasher,
+                           BlobService blobService,
+                           @Value("${app.analysis.enabled:true}") boolean enabled,
+                           @Value("${app.analysis.max-attempts:5}") int maxAttempts,
+                           @Value("${app.analysis.retry-backoff:30s}") Duration retryBackoff,
+                           @Value("${app.analysis.lease:10m}") Duration lease) {
+        this.mongoTemplate = mongoTemplate;
+        this.storageService = storageService;
+        this.metadataCache = metadataCache;
+        this.metrics = metrics;
+        this.treeHasher = treeHasher;
+        this.blobService = blobService;
+        this.enabled = enabled;
+        this.maxAttempts = maxAttempts;
+        this.retryBackoff = retryBackoff;
+        this.lease = lease;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues the analysis of a freshly saved file. The job is keyed by the file id, so it is
+     * durable as soon as this returns.
+     */
+    public void enqueue(StoredFile file) {
+        if (enabled) {
+            mongoTemplate.insert(new AnalysisJob(file.getId(), Instant.now()));
+        }
+    }
+
+    public void enqueueAll(List<StoredFile> files) {
+        if (enabled && !files.isEmpty()) {
+            Instant now = Instant.now();
+            mongoTemplate.insert(files.stream().map(file -> new AnalysisJob(file.getId(), now)).toList(),
+                    AnalysisJob.class);
+        }
+    }
+
+    public void cancel(String fileId) {
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(fileId)), AnalysisJob.class);
+    }
+
+    public void cancelAll(List<String> fileIds) {
+        mongoTemplate.remove(Query.query(Criteria.where("_id").in(fileIds)), AnalysisJob.class);
+    }
+
+    /**
+     * Takes the next due job, or a running one whose worker let its lease expire, or returns
+     * null when there is none.
+     */
+    public AnalysisJob claim() {
+        Instant now = Instant.now();
+        Query due = Query.query(new Criteria().orOperator(
+                        Criteria.where("status").is(AnalysisJob.Status.PENDING).and("nextAttemptAt").lte(now),
+                        Criteria.where("status").is(AnalysisJob.Status.RUNNING).and("lockedUntil").lte(now)))
+                .with(Sort.by("nextAttemptAt"));
+        Update update = new Update()
+                .set("status", AnalysisJob.Status.RUNNING)
+                .set("lockedUntil", now.plus(lease))
+                .inc("attempts", 1);
+        return mongoTemplate.findAndModify(due, update, FindAndModifyOptions.options().returnNew(true),
+                AnalysisJob.class);
+    }
+
+    public void process(AnalysisJob job) {
+        StoredFile file = mongoTemplate.findById(job.getId(), StoredFile.class);
+        if (file == null) {
+            // deleted while queued
+            cancel(job.getId());
+            return;
+        }
+        markFile(file, new Update().set("analysisStatus", AnalysisJob.Status.RUNNING));
+
+        long start = System.nanoTime();
+        try {
+            String error = analyse(file);
+            if (error == null) {
+                finish(job, AnalysisJob.Status.DONE, null);
+                metrics.recordAnalysis("done", System.nanoTime() - start);
+            } else {
+                // the stored bytes will not change by trying again
+                log.error("Analysis of file {} failed: {}", file.getId(), error);
+                markFile(file, new Update().set("analysisStatus", AnalysisJob.Status.FAILED)
+                        .set("analyzedAt", Instant.now()).set("checksumVerified", false));
+                finish(job, AnalysisJob.Status.FAILED, error);
+                metrics.recordAnalysis("failed", System.nanoTime() - start);
+            }
+        } catch (IOException | RuntimeException e) {
+            retryOrFail(job, file, e);
+            metrics.recordAnalysis(job.getAttempts() < maxAttempts ? "retry" : "failed", System.nanoTime() - start);
+        }
+    }
+
+    // reads the original bytes once; returns null when they match the upload, otherwise why not
+    private String analyse(StoredFile file) throws IOException {
+        Resource stored = storageService.open(file.getBackend(), file.getGridFsId());
+        Resource content = CompressionPolicy.GZIP.equals(file.getCompression())
+                ? new GzipDecodingResource(stored, file.getSize())
+                : stored;
+
+        String detectedType;
+        // content keyed by its tree hash has its leaves hashed in parallel and compared with the
+        // leaf digests recorded at upload
+        MessageDigest md5 = newDigest("MD5");
+        MessageDigest sha256 = file.getTreeHash() == null ? newDigest("SHA-256") : null;
+        TreeHasher.Digest tree = null;
+        if (file.getTreeHash() != null) {
+            byte[] leaves = file.getBlobId() != null ? blobService.leafDigests(file.getBlobId()) : null;
+            tree = treeHasher.newDigest(true).expecting(leaves);
+        }
+        long length;
+        String contentKey;
+        try (InputStream in = new BufferedInputStream(content.getInputStream(), StorageService.CHUNK_SIZE)) {
+            // the name resolves what the bytes alone cannot, e.g. text/csv rather than text/plain
+            detectedType = tika.detect(in, file.getFilename());
+            HashingInputStream hashing = new HashingInputStream(in, md5, sha256, tree);
+            hashing.transferTo(OutputStream.nullOutputStream());
+            length = hashing.getByteCount();
+            contentKey = tree != null ? tree.finish() : HexFormat.of().formatHex(sha256.digest());
+        }
+
+        if (length != file.getSize()) {
+            return "stored content has " + length + " bytes, " + file.getSize() + " were uploaded";
+        }
+        if (tree != null && tree.mismatchedLeaf() >= 0) {
+            return "stored content differs from the upload from byte " + (long) tree.mismatchedLeaf() * TreeHasher.LEAF_SIZE;
+        }
+        if (!HexFormat.of().formatHex(md5.digest()).equals(file.getHash())
+                || (file.getTreeHash() != null && !contentKey.equals(file.getTreeHash()))
+                || (file.getBlobId() != null && !contentKey.equals(file.getBlobId()))) {
+            return "stored content does not match the hash recorded at upload";
+        }
+        markFile(file, new Update()
+                .set("detectedContentType", detectedType)
+                .set("analysisStatus", AnalysisJob.Status.DONE)
+                .set("analyzedAt", Instant.now())
+                .set("checksumVerified", true));
+        return null;
+    }
+
+    private void retryOrFail(AnalysisJob job, StoredFile file, Exception e) {
+        String error = e.getClass().getSimpleName() + ": " + e.getMessage();
+        if (job.getAttempts() >= maxAttempts) {
+            log.error("Analysis of file {} failed after {} attempts", file.getId(), job.getAttempts(), e);
+            markFile(file, new Update().set("analysisStatus", AnalysisJob.Status.FAILED).set("analyzedAt", Instant.now()));
+            finish(job, AnalysisJob.Status.FAILED, error);
+            return;
+        }
+        log.warn("Analysis of file {} failed (attempt {}), retrying: {}", file.getId(), job.getAttempts(), error);
+        Duration delay = retryBackoff.multipliedBy(1L << Math.min(job.getAttempts() - 1, 16));
+        markFile(file, new Update().set("analysisStatus", AnalysisJob.Status.PENDING));
+        update(job, new Update()
+                .set("status", AnalysisJob.Status.PENDING)
+                .set("nextAttemptAt", Instant.now().plus(delay))
+                .unset("lockedUntil")
+                .set("lastError", error));
+    }
+
+    private void finish(AnalysisJob job, AnalysisJob.Status status, String error) {
+        update(job, new Update()
+                .set("status", status)
+                .unset("lockedUntil")
+                .set("lastError", error)
+                .set("finishedAt", Instant.now()));
+    }
+
+    // only the worker holding the attempt may record its outcome, a reclaimed job has moved on
+    private void update(AnalysisJob job, Update update) {
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(job.getId())
+                        .and("status").is(AnalysisJob.Status.RUNNING)
+                        .and("attempts").is(job.getAttempts())),
+                update, AnalysisJob.class);
+    }
+
+    // a field update rather than a save, so a concurrent rename is not overwritten
+    private void markFile(StoredFile file, Update update) {
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(file.getId())), update, StoredFile.class);
+        metadataCache.evict(file.getPublicToken());
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " not available", e);
+        }
+    }
+}
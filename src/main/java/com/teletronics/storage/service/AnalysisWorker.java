@@ -0,0 +1,92 @@
+package com.teletronics.storage.service;
+
+import com.teletronics.storage.model.AnalysisJob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed pool of threads draining the analysis queue. Each thread claims one job at a time and
+ * sleeps for the poll interval when none is due, so analysis never takes more than
+ * {@code app.analysis.workers} threads however many uploads arrive.
+ */
+@Component
+public class AnalysisWorker implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(AnalysisWorker.class);
+
+    private final AnalysisService analysisService;
+    private final int workers;
+    private final Duration pollInterval;
+    private volatile boolean running;
+    private ExecutorService executor;
+
+    public AnalysisWorker(AnalysisService analysisService,
+                          @Value("${app.analysis.workers:2}") int workers,
+                          @Value("${app.analysis.poll-interval:1s}") Duration pollInterval) {
+        this.analysisService = analysisService;
+        this.workers = workers;
+        this.pollInterval = pollInterval;
+    }
+
+    @Override
+    public void start() {
+        if (!analysisService.isEnabled() || workers < 1) {
+            return;
+        }
+        running = true;
+        executor = Executors.newFixedThreadPool(workers, Thread.ofPlatform().name("analysis-", 1).daemon().factory());
+        for (int i = 0; i < workers; i++) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        while (running) {
+            try {
+                AnalysisJob job = analysisService.claim();
+                if (job != null) {
+                    analysisService.process(job);
+                } else {
+                    Thread.sleep(pollInterval.toMillis());
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // the database is unreachable or the job could not be recorded, its lease brings it back
+                log.warn("Analysis worker error: {}", e.getMessage());
+                try {
+                    Thread.sleep(pollInterval.toMillis());
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+}
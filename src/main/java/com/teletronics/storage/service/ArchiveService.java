@@ -0,0 +1,200 @@
+package com.teletronics.storage.service;
+
+import com.teletronics.storage.model.StoredFile;
+import com.teletronics.storage.model.Visibility;
+import com.teletronics.storage.repository.FileRepository;
+import com.teletronics.storage.repository.TagQuery;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Many files as one ZIP, built while it is sent. Files are read one after the other and only the
+ * leading {@code app.archive.prefetch-size} bytes of the next file are read ahead (on a virtual
+ * thread) while the current one is written, so memory per archive stays bounded whatever the
+ * number or size of the files.
+ */
+@Service
+public class ArchiveService {
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final FileRepository fileRepository;
+    private final StorageService storageService;
+    private final CompressionPolicy compressionPolicy;
+    private final int maxIds;
+    private final int prefetchSize;
+    private final ExecutorService prefetcher = Executors.newVirtualThreadPerTaskExecutor();
+
+    public ArchiveService(FileRepository fileRepository, StorageService storageService,
+                          CompressionPolicy compressionPolicy,
+                          @Value("${app.batch.max-items:1000}") int maxIds,
+                          @Value("${app.archive.prefetch-size:4MB}") DataSize prefetchSize) {
+        this.fileRepository = fileRepository;
+        this.storageService = storageService;
+        this.compressionPolicy = compressionPolicy;
+        this.maxIds = maxIds;
+        this.prefetchSize = (int) prefetchSize.toBytes();
+    }
+
+    /**
+     * The files to archive: the given ids in that order, or else the files matching the filters.
+     * Without a visibility the filters apply to the caller's own files, {@code PUBLIC} selects
+     * everyone's public files. Listed ids are checked here, before anything is sent, with the
+     * rule of the download endpoint: private files only for their owner.
+     */
+    public Supplier<Stream<StoredFile>> select(List<String> ids, String tag, String visibility, String userId) {
+        if (ids != null && !ids.isEmpty()) {
+            if (ids.size() > maxIds) {
+                throw new IllegalArgumentException("At most " + maxIds + " files per archive");
+            }
+            Set<String> requested = new LinkedHashSet<>(ids);
+            Map<String, StoredFile> found = fileRepository.findAllById(requested).stream()
+                    .collect(Collectors.toMap(StoredFile::getId, Function.identity()));
+            for (String id : requested) {
+                StoredFile file = found.get(id);
+                if (file == null) {
+                    throw new NoSuchElementException("File not found: " + id);
+                }
+                if (file.getVisibility() == Visibility.PRIVATE && !file.getUserId().equals(userId)) {
+                    throw new SecurityException("You are not allowed to download this file: " + id);
+                }
+            }
+            List<StoredFile> files = requested.stream().map(found::get).toList();
+            return files::stream;
+        }
+
+        TagQuery tagQuery = tag != null ? TagQuery.parse(tag) : null;
+        Visibility filter = visibility != null ? FileService.parseVisibility(visibility) : null;
+        String owner = filter == Visibility.PUBLIC ? null : userId;
+        return () -> fileRepository.streamMatching(owner, filter, tagQuery);
+    }
+
+    /**
+     * Writes the files to {@code out} as a ZIP. Types the compression policy would gzip are
+     * deflated, everything else is stored without another compression pass.
+     */
+    public void write(Stream<StoredFile> files, OutputStream out) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out, WRITE_BUFFER_SIZE));
+        Set<String> names = new HashSet<>();
+        Iterator<StoredFile> it = files.iterator();
+        Future<Prefetched> next = it.hasNext() ? prefetch(it.next()) : null;
+        try {
+            while (next != null) {
+                Prefetched current = await(next);
+                next = it.hasNext() ? prefetch(it.next()) : null;
+                try (InputStream in = current.stream()) {
+                    StoredFile file = current.file();
+                    ZipEntry entry = new ZipEntry(entryName(names, file.getFilename()));
+                    if (file.getUploadDate() != null) entry.setTime(file.getUploadDate().toEpochMilli());
+                    zip.setLevel(compressible(file) ? Deflater.DEFAULT_COMPRESSION : Deflater.NO_COMPRESSION);
+                    zip.putNextEntry(entry);
+                    in.transferTo(zip);
+                    zip.closeEntry();
+                }
+            }
+            zip.finish();
+            zip.flush();
+        } finally {
+            if (next != null) discard(next);
+        }
+    }
+
+    private boolean compressible(StoredFile file) {
+        return file.getDetectedContentType() != null
+                && compressionPolicy.encoding(file.getSize(), file.getDetectedContentType()) != null;
+    }
+
+    private Future<Prefetched> prefetch(StoredFile file) {
+        return prefetcher.submit(() -> {
+            InputStream in = open(file);
+            try {
+                return new Prefetched(file, in.readNBytes(prefetchSize), in);
+            } catch (IOException | RuntimeException e) {
+                in.close();
+                throw e;
+            }
+        });
+    }
+
+    // the original bytes, whatever the backend and stored encoding
+    private InputStream open(StoredFile file) throws IOException {
+        Resource stored = storageService.open(file.getBackend(), file.getGridFsId());
+        if (stored == null) {
+            throw new IOException("Content of file " + file.getId() + " not found");
+        }
+        Resource content = CompressionPolicy.GZIP.equals(file.getCompression())
+                ? new GzipDecodingResource(stored, file.getSize())
+                : stored;
+        return content.getInputStream();
+    }
+
+    private static Prefetched await(Future<Prefetched> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading ahead", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // the client went away or a file failed: the read-ahead stream must still be closed
+    private static void discard(Future<Prefetched> future) {
+        if (!future.cancel(true) && future.state() == Future.State.SUCCESS) {
+            try {
+                future.resultNow().rest().close();
+            } catch (IOException ignored) {
+                // nothing left to do with it
+            }
+        }
+    }
+
+    // names are flattened so no entry can point outside the extraction directory
+    static String entryName(Set<String> used, String filename) {
+        String name = filename.replace('/', '_').replace('\\', '_');
+        if (name.equals(".") || name.equals("..")) name = "_";
+        String candidate = name;
+        int dot = name.lastIndexOf('.');
+        for (int copy = 2; !used.add(candidate); copy++) {
+            candidate = dot > 0
+                    ? name.substring(0, dot) + " (" + copy + ")" + name.substring(dot)
+                    : name + " (" + copy + ")";
+        }
+        return candidate;
+    }
+
+    private record Prefetched(StoredFile file, byte[] head, InputStream rest) {
+        InputStream stream() {
+            return new SequenceInputStream(new ByteArrayInputStream(head), rest);
+        }
+    }
+}
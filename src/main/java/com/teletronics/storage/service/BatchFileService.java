@@ -0,0 +1,363 @@
+package com.teletronics.storage.service;
+
+import com.mongodb.bulk.BulkWriteError;
+import com.teletronics.storage.dto.BatchItemResult;
+import com.teletronics.storage.dto.BatchItemResult.Status;
+import com.teletronics.storage.dto.StorageUsage;
+import com.teletronics.storage.exception.QuotaExceededException;
+import com.teletronics.storage.model.AnalysisJob;
+import com.teletronics.storage.model.Blob;
+import com.teletronics.storage.model.StoredFile;
+import com.teletronics.storage.model.Visibility;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Many files per request. The rules are those of {@link FileService}, but each metadata step
+ * runs once for the whole batch: duplicate checks are single {@code $in} queries, the files are
+ * written with one unordered bulk insert and deletes are bulk removals. Every item gets its own
+ * result, a rejected item never fails the others.
+ */
+@Service
+public class BatchFileService {
+
+    private final FileService fileService;
+    private final StorageService storageService;
+    private final BlobService blobService;
+    private final AnalysisService analysisService;
+    private final QuotaService quotaService;
+    private final MongoTemplate mongoTemplate;
+    private final StorageMetrics metrics;
+    private final int maxItems;
+
+    public BatchFileService(FileService fileService, StorageService storageService, BlobService blobService,
+                            AnalysisService analysisService, QuotaService quotaService, MongoTemplate mongoTemplate,
+                            StorageMetrics metrics,
+                            @Value("${app.batch.max-items:1000}") int maxItems) {
+        this.fileService = fileService;
+        this.storageService = storageService;
+        this.blobService = blobService;
+        this.analysisService = analysisService;
+        this.quotaService = quotaService;
+        this.mongoTemplate = mongoTemplate;
+        this.metrics = metrics;
+        this.maxItems = maxItems;
+    }
+
+    /**
+     * Stores every file of the batch under the same visibility and tags. Results are in the
+     * order of the files.
+     */
+    public List<BatchItemResult> upload(List<MultipartFile> files, String userId, String visibilityStr,
+                                        List<String> tags) {
+        if (tags == null) tags = List.of();
+        checkSize(files.size());
+        if (tags.size() > 5) {
+            throw new IllegalArgumentException("Max 5 tags allowed");
+        }
+        Visibility visibility = FileService.parseVisibility(visibilityStr);
+        int n = files.size();
+        BatchItemResult[] results = new BatchItemResult[n];
+
+        // names: empty, repeated within the batch, or already used by the user (one query)
+        List<String> names = files.stream().map(MultipartFile::getOriginalFilename).toList();
+        Set<String> taken = existing(userId, "filename", names);
+        Set<String> seenNames = new HashSet<>();
+        for (int i = 0; i < n; i++) {
+            String name = names.get(i);
+            if (name == null || name.isBlank()) {
+                results[i] = BatchItemResult.rejected(name, Status.INVALID, "Filename must not be empty");
+            } else if (taken.contains(name) || !seenNames.add(name)) {
+                metrics.duplicateRejected("filename");
+                results[i] = BatchItemResult.rejected(name, Status.DUPLICATE,
+                        "File with same name already exists for this user.");
+            }
+        }
+
+        // quota, from the declared part sizes, before any content is read
+        StorageUsage usage = quotaService.usage(userId);
+        long remainingBytes = usage.remainingBytes();
+        long remainingFiles = usage.remainingFiles();
+        for (int i = 0; i < n; i++) {
+            if (results[i] != null) continue;
+            long size = files.get(i).getSize();
+            if (remainingFiles < 1 || size > remainingBytes) {
+                results[i] = BatchItemResult.rejected(names.get(i), Status.QUOTA_EXCEEDED,
+                        remainingFiles < 1 ? "File quota reached" : "Storage quota exceeded");
+            } else {
+                remainingFiles--;
+                remainingBytes -= size;
+            }
+        }
+
+        // content goes to storage one file at a time, as in a single upload
+        StoredContent[] contents = new StoredContent[n];
+        for (int i = 0; i < n; i++) {
+            if (results[i] != null) continue;
+            MultipartFile file = files.get(i);
+            metrics.uploadStarted();
+            long bytes = -1;
+            try (InputStream in = file.getInputStream()) {
+                contents[i] = storageService.store(in, names.get(i), file.getContentType(), file.getSize(),
+                        fileService.gridFsMetadata(userId, visibility, tags));
+                bytes = contents[i].size();
+            } catch (IOException | RuntimeException e) {
+                results[i] = BatchItemResult.rejected(names.get(i), Status.FAILED, e.getMessage());
+            } finally {
+                metrics.uploadFinished(bytes);
+            }
+        }
+
+        // content already uploaded by the user, or twice in this batch (one query)
+        List<String> hashes = new ArrayList<>();
+        for (StoredContent content : contents) {
+            if (content != null) hashes.add(content.hash());
+        }
+        Set<String> knownHashes = existing(userId, "hash", hashes);
+        Set<String> seenHashes = new HashSet<>();
+        for (int i = 0; i < n; i++) {
+            StoredContent content = contents[i];
+            if (content != null && (knownHashes.contains(content.hash()) || !seenHashes.add(content.hash()))) {
+                metrics.duplicateRejected("content");
+                storageService.delete(content.backend(), content.gridFsId());
+                contents[i] = null;
+                results[i] = BatchItemResult.rejected(names.get(i), Status.DUPLICATE,
+                        "File with same content already uploaded by this user.");
+            }
+        }
+
+        // the whole batch is charged at once; a concurrent upload may have used the room meanwhile
+        long chargedBytes = 0;
+        int chargedFiles = 0;
+        for (StoredContent content : contents) {
+            if (content != null) {
+                chargedBytes += content.size();
+                chargedFiles++;
+            }
+        }
+        try {
+            quotaService.charge(userId, chargedBytes, chargedFiles);
+        } catch (QuotaExceededException e) {
+            for (int i = 0; i < n; i++) {
+                StoredContent content = contents[i];
+                if (content == null) continue;
+                storageService.delete(content.backend(), content.gridFsId());
+                contents[i] = null;
+                results[i] = BatchItemResult.rejected(names.get(i), Status.QUOTA_EXCEEDED, e.getMessage());
+            }
+            return List.of(results);
+        }
+
+        // blobs keep their atomic per-content reference counting
+        Blob[] blobs = new Blob[n];
+        for (int i = 0; i < n; i++) {
+            StoredContent content = contents[i];
+            if (content == null) continue;
+            try {
+                blobs[i] = metrics.timeUploadPhase(StorageMetrics.BLOB, () -> blobService.acquire(content));
+            } catch (RuntimeException e) {
+                storageService.delete(content.backend(), content.gridFsId());
+                quotaService.release(userId, content.size(), 1);
+                results[i] = BatchItemResult.rejected(names.get(i), Status.FAILED, e.getMessage());
+            }
+        }
+
+        insertAll(files, names, contents, blobs, results, userId, visibility, tags);
+        return List.of(results);
+    }
+
+    // one unordered insert for the whole batch; an item hitting a unique index fails alone
+    private void insertAll(List<MultipartFile> files, List<String> names, StoredContent[] contents, Blob[] blobs,
+                           BatchItemResult[] results, String userId, Visibility visibility, List<String> tags) {
+        List<Integer> positions = new ArrayList<>();
+        List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < contents.length; i++) {
+            if (blobs[i] == null) continue;
+            StoredContent content = contents[i];
+            StoredFile sf = new StoredFile(blobs[i].getGridFsId(), names.get(i), userId, visibility, tags,
+                    files.get(i).getContentType(), content.size(), content.hash(), Instant.now(),
+                    UUID.randomUUID().toString(), null);
+            sf.setBlobId(blobs[i].getId());
+            sf.setTreeHash(content.treeHash());
+            sf.setBackend(blobs[i].getBackend());
+            sf.setStorage(blobs[i].getCompression(), blobs[i].getStoredSize());
+            sf.setDetectedContentType(content.contentType());
+            if (analysisService.isEnabled()) sf.setAnalysisStatus(AnalysisJob.Status.PENDING);
+            // ids are assigned here so each inserted document can be matched to its item
+            Document document = new Document();
+            mongoTemplate.getConverter().write(sf, document);
+            document.put("_id", new ObjectId());
+            positions.add(i);
+            documents.add(document);
+        }
+        if (documents.isEmpty()) return;
+
+        Map<Integer, BulkWriteError> errors = new HashMap<>();
+        try {
+            metrics.timeUploadPhase(StorageMetrics.METADATA_SAVE,
+                    () -> mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, StoredFile.class)
+                            .insert(documents).execute());
+        } catch (BulkOperationException e) {
+            e.getErrors().forEach(error -> errors.put(error.getIndex(), error));
+        }
+
+        List<StoredFile> inserted = new ArrayList<>();
+        Map<String, Integer> released = new HashMap<>();
+        for (int k = 0; k < documents.size(); k++) {
+            int i = positions.get(k);
+            BulkWriteError error = errors.get(k);
+            if (error == null) {
+                StoredFile sf = mongoTemplate.getConverter().read(StoredFile.class, documents.get(k));
+                sf.setDownloadLink("/files/download/" + sf.getPublicToken());
+                inserted.add(sf);
+                results[i] = BatchItemResult.stored(sf);
+                continue;
+            }
+            released.merge(blobs[i].getId(), 1, Integer::sum);
+            if (error.getCode() == 11000) {
+                // user+filename or user+hash taken by a concurrent upload
+                metrics.duplicateRejected("constraint");
+                results[i] = BatchItemResult.rejected(names.get(i), Status.DUPLICATE,
+                        "File already exists (concurrent upload or duplicate)");
+            } else {
+                results[i] = BatchItemResult.rejected(names.get(i), Status.FAILED, error.getMessage());
+            }
+        }
+
+        try {
+            analysisService.enqueueAll(inserted);
+        } catch (RuntimeException e) {
+            // files without their jobs would stay pending forever
+            mongoTemplate.remove(Query.query(Criteria.where("_id").in(inserted.stream().map(StoredFile::getId).toList())),
+                    StoredFile.class);
+            for (int k = 0; k < documents.size(); k++) {
+                int i = positions.get(k);
+                if (results[i].getStatus() == Status.STORED) {
+                    released.merge(blobs[i].getId(), 1, Integer::sum);
+                    results[i] = BatchItemResult.rejected(names.get(i), Status.FAILED, e.getMessage());
+                }
+            }
+        }
+        blobService.releaseAll(released);
+
+        // items that were charged but not stored
+        long releasedBytes = 0;
+        int releasedFiles = 0;
+        for (int k = 0; k < documents.size(); k++) {
+            int i = positions.get(k);
+            if (results[i].getStatus() != Status.STORED) {
+                releasedBytes += contents[i].size();
+                releasedFiles++;
+            }
+        }
+        quotaService.release(userId, releasedBytes, releasedFiles);
+    }
+
+    /**
+     * Deletes the caller's files among {@code ids}: one query to load them, one update claiming
+     * them for this call, one removal of the claimed files and one of their analysis jobs, and bulk deletes of the content freed. Results are
+     * in the order of the ids.
+     */
+    public List<BatchItemResult> delete(List<String> ids, String userId) {
+        if (ids == null) ids = List.of();
+        checkSize(ids.size());
+        Set<String> requested = new LinkedHashSet<>(ids);
+        Map<String, StoredFile> found = mongoTemplate.find(
+                        Query.query(Criteria.where("_id").in(requested)), StoredFile.class).stream()
+                .collect(Collectors.toMap(StoredFile::getId, file -> file));
+
+        List<String> ownedIds = found.values().stream()
+                .filter(file -> file.getUserId().equals(userId))
+                .map(StoredFile::getId)
+                .toList();
+        // each file is claimed by one delete only (the update is atomic per document), and only
+        // the files this call claimed are removed and released; one deleted concurrently by
+        // another request is reported as not found, so its blob reference and quota go back once
+        List<StoredFile> removed = List.of();
+        if (!ownedIds.isEmpty()) {
+            String claim = UUID.randomUUID().toString();
+            mongoTemplate.updateMulti(
+                    Query.query(Criteria.where("_id").in(ownedIds).and("userId").is(userId)
+                            .andOperator(FileService.unclaimed())),
+                    new Update().set("deleteClaim", claim).set("deleteClaimedAt", Instant.now()),
+                    StoredFile.class);
+            Query claimed = Query.query(Criteria.where("_id").in(ownedIds).and("deleteClaim").is(claim));
+            removed = mongoTemplate.find(claimed, StoredFile.class);
+            mongoTemplate.remove(claimed, StoredFile.class);
+        }
+        Set<String> removedIds = removed.stream().map(StoredFile::getId).collect(Collectors.toSet());
+
+        List<BatchItemResult> results = new ArrayList<>(requested.size());
+        for (String id : requested) {
+            StoredFile file = found.get(id);
+            if (removedIds.contains(id)) {
+                results.add(BatchItemResult.deleted(id));
+            } else if (file != null && !file.getUserId().equals(userId)) {
+                results.add(BatchItemResult.notDeleted(id, Status.FORBIDDEN, "User is not allowed to delete the file"));
+            } else {
+                results.add(BatchItemResult.notDeleted(id, Status.NOT_FOUND, "File not found"));
+            }
+        }
+        if (removed.isEmpty()) return results;
+
+        removed.forEach(fileService::evictFromCaches);
+        analysisService.cancelAll(List.copyOf(removedIds));
+        quotaService.release(userId, removed.stream().mapToLong(StoredFile::getSize).sum(), removed.size());
+
+        // shared content only goes away with its last file, files from before blobs own theirs
+        Map<String, Integer> releases = new HashMap<>();
+        Map<String, List<String>> ownContent = new HashMap<>();
+        for (StoredFile file : removed) {
+            if (file.getBlobId() != null) {
+                releases.merge(file.getBlobId(), 1, Integer::sum);
+            } else {
+                ownContent.computeIfAbsent(file.getBackend(), backend -> new ArrayList<>()).add(file.getGridFsId());
+            }
+        }
+        blobService.releaseAll(releases);
+        ownContent.forEach(storageService::deleteAll);
+        return results;
+    }
+
+    private void checkSize(int items) {
+        if (items == 0) {
+            throw new IllegalArgumentException("The batch is empty");
+        }
+        if (items > maxItems) {
+            throw new IllegalArgumentException("At most " + maxItems + " items per batch");
+        }
+    }
+
+    // values of the field among the user's files, in one query
+    private Set<String> existing(String userId, String field, List<String> values) {
+        if (values.isEmpty()) return Set.of();
+        Query query = Query.query(Criteria.where("userId").is(userId).and(field).in(values));
+        query.fields().include(field);
+        return metrics.timeUploadPhase(StorageMetrics.DUPLICATE_LOOKUP,
+                () -> mongoTemplate.find(query, Document.class, "files").stream()
+                        .map(document -> document.getString(field))
+                        .collect(Collectors.toSet()));
+    }
+}
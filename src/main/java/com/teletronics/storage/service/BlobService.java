@@ -0,0 +1,131 @@
+package com.teletronics.storage.service;
+
+import com.teletronics.storage.model.Blob;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reference counting for content shared between files. All changes are single-document
+ * atomic updates on the blob, so concurrent uploads and deletes of the same content agree
+ * on who owns the GridFS data.
+ */
+@Service
+public class BlobService {
+
+    private final MongoTemplate mongoTemplate;
+    private final StorageService storageService;
+
+    public BlobService(MongoTemplate mongoTemplate, StorageService storageService) {
+        this.mongoTemplate = mongoTemplate;
+        this.storageService = storageService;
+    }
+
+    /**
+     * Takes a reference on the blob for freshly stored content. When the same bytes are already
+     * stored, the new copy is deleted and the existing blob is returned instead.
+     */
+    public Blob acquire(StoredContent content) {
+        while (true) {
+            Blob existing = retain(content.key());
+            if (existing != null) {
+                if (!existing.getGridFsId().equals(content.gridFsId())) {
+                    storageService.delete(content.backend(), content.gridFsId());
+                }
+                return existing;
+            }
+            try {
+                return mongoTemplate.insert(new Blob(content.key(), content.backend(), content.gridFsId(), content.hash(),
+                        content.size(), content.compression(), content.storedSize(), 1, Instant.now(),
+                        content.leafDigests()));
+            } catch (DuplicateKeyException e) {
+                // a concurrent upload of the same content created it first, join that one
+            }
+        }
+    }
+
+    /**
+     * Adds a reference to an existing blob, or returns null if there is none.
+     */
+    public Blob retain(String blobId) {
+        return mongoTemplate.findAndModify(
+                withoutLeaves(Query.query(Criteria.where("_id").is(blobId))),
+                new Update().inc("refCount", 1),
+                FindAndModifyOptions.options().returnNew(true),
+                Blob.class);
+    }
+
+    /**
+     * Drops a reference and deletes the content once nothing refers to it.
+     */
+    public void release(String blobId) {
+        Blob blob = mongoTemplate.findAndModify(
+                withoutLeaves(Query.query(Criteria.where("_id").is(blobId))),
+                new Update().inc("refCount", -1),
+                FindAndModifyOptions.options().returnNew(true),
+                Blob.class);
+        if (blob == null || blob.getRefCount() > 0) {
+            return;
+        }
+        // only remove it if no upload re-acquired it in the meantime
+        boolean removed = mongoTemplate.remove(
+                Query.query(Criteria.where("_id").is(blobId).and("refCount").lte(0)), Blob.class)
+                .getDeletedCount() == 1;
+        if (removed) {
+            storageService.delete(blob.getBackend(), blob.getGridFsId());
+        }
+    }
+
+    /**
+     * Drops {@code count} references from each blob in one bulk write, then deletes the content
+     * of the blobs nothing refers to any more, one bulk delete per backend.
+     */
+    public void releaseAll(Map<String, Integer> counts) {
+        if (counts.isEmpty()) return;
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Blob.class);
+        counts.forEach((blobId, count) ->
+                bulk.updateOne(Query.query(Criteria.where("_id").is(blobId)), new Update().inc("refCount", -count)));
+        bulk.execute();
+
+        List<Blob> unreferenced = mongoTemplate.find(
+                withoutLeaves(Query.query(Criteria.where("_id").in(counts.keySet()).and("refCount").lte(0))), Blob.class);
+        Map<String, List<String>> contentByBackend = new HashMap<>();
+        for (Blob blob : unreferenced) {
+            // same guard as release: an upload may have re-acquired it since
+            boolean removed = mongoTemplate.remove(
+                    Query.query(Criteria.where("_id").is(blob.getId()).and("refCount").lte(0)), Blob.class)
+                    .getDeletedCount() == 1;
+            if (removed) {
+                contentByBackend.computeIfAbsent(blob.getBackend(), backend -> new ArrayList<>()).add(blob.getGridFsId());
+            }
+        }
+        contentByBackend.forEach(storageService::deleteAll);
+    }
+
+    /**
+     * The tree hash leaf digests recorded for the blob, or null when it has none.
+     */
+    public byte[] leafDigests(String blobId) {
+        Query query = Query.query(Criteria.where("_id").is(blobId));
+        query.fields().include("leafDigests");
+        Blob blob = mongoTemplate.findOne(query, Blob.class);
+        return blob != null ? blob.getLeafDigests() : null;
+    }
+
+    // the leaf digests are only read to check content
+    static Query withoutLeaves(Query query) {
+        query.fields().exclude("leafDigests");
+        return query;
+    }
+}
@@ -0,0 +1,54 @@
+package com.teletronics.storage.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.util.List;
+
+/**
+ * Decides whether new content is stored gzip-compressed. Only the listed (text-like) types are
+ * compressed, so images, archives and other already-compressed formats are stored as they are.
+ */
+@Component
+public class CompressionPolicy {
+
+    public static final String GZIP = "gzip";
+
+    private final boolean enabled;
+    private final List<MimeType> types;
+    private final long minSize;
+    private final int level;
+
+    public CompressionPolicy(@Value("${app.compression.enabled:true}") boolean enabled,
+                             @Value("${app.compression.types:text/*,application/json,application/xml,application/x-ndjson}") List<String> types,
+                             @Value("${app.compression.min-size:1KB}") DataSize minSize,
+                             @Value("${app.compression.level:6}") int level) {
+        this.enabled = enabled;
+        this.types = types.stream()
+                .filter(type -> !type.isBlank())
+                .map(MimeTypeUtils::parseMimeType)
+                .toList();
+        this.minSize = minSize.toBytes();
+        this.level = level;
+    }
+
+    /**
+     * @param sizeHint declared size of the upload, or -1 when unknown
+     * @param contentType type detected from the leading bytes
+     * @return the encoding to store with, or null to store the bytes as they are
+     */
+    public String encoding(long sizeHint, String contentType) {
+        if (!enabled || (sizeHint >= 0 && sizeHint < minSize)) {
+            return null;
+        }
+        MimeType type = MimeTypeUtils.parseMimeType(contentType);
+        return types.stream().anyMatch(pattern -> pattern.includes(type)) ? GZIP : null;
+    }
+
+    public int level() {
+        return level;
+    }
+}
@@ -0,0 +1,317 @@
+package com.teletronics.storage.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the content of frequently downloaded small files in direct (off-heap) buffers, keyed by
+ * GridFS id and content hash. A file is only cached on its second miss, so one-off downloads do
+ * not push hot entries out. When the byte budget is exceeded, a few entries are sampled at random
+ * and the one with the fewest hits per byte is evicted, so eviction costs the same whatever the
+ * number of entries. Hit counts are halved every {@value #AGING_INTERVAL} puts so old popularity
+ * fades; each entry catches up on the halvings it missed when it is next touched.
+ */
+@Component
+public class DownloadCache {
+
+    private static final int AGING_INTERVAL = 256;
+    private static final int EVICTION_SAMPLE = 8;
+
+    private final boolean enabled;
+    private final long capacityBytes;
+    private final long maxEntryBytes;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // the same entries, for sampling victims and for invalidating a file; only touched under the lock
+    private final List<Entry> slots = new ArrayList<>();
+    private final Map<String, List<Entry>> byGridFsId = new HashMap<>();
+    private final AtomicInteger age = new AtomicInteger();
+    // keys that missed once; bounded by clearing it when it grows too large
+    private final Set<String> doorkeeper = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong puts = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public DownloadCache(MeterRegistry registry,
+                         @Value("${app.download-cache.enabled:true}") boolean enabled,
+                         @Value("${app.download-cache.capacity:64MB}") DataSize capacity,
+                         @Value("${app.download-cache.max-entry-size:4MB}") DataSize maxEntrySize) {
+        this.enabled = enabled;
+        this.capacityBytes = capacity.toBytes();
+        this.maxEntryBytes = Math.min(maxEntrySize.toBytes(), capacityBytes);
+
+        FunctionCounter.builder("cache.gets", hits, AtomicLong::get).tag("cache", "download").tag("result", "hit")
+                .description("Downloads served from the off-heap cache").register(registry);
+        FunctionCounter.builder("cache.gets", misses, AtomicLong::get).tag("cache", "download").tag("result", "miss")
+                .description("Cacheable downloads read from GridFS").register(registry);
+        FunctionCounter.builder("cache.puts", puts, AtomicLong::get).tag("cache", "download").register(registry);
+        FunctionCounter.builder("cache.evictions", evictions, AtomicLong::get).tag("cache", "download").register(registry);
+        Gauge.builder("cache.size", entries, Map::size).tag("cache", "download").register(registry);
+        Gauge.builder("cache.bytes", usedBytes, AtomicLong::get).tag("cache", "download")
+                .baseUnit("bytes").register(registry);
+        Gauge.builder("cache.hit.ratio", this, DownloadCache::hitRatio).tag("cache", "download").register(registry);
+    }
+
+    public CachedContent get(String gridFsId, String hash) {
+        if (!enabled) {
+            return null;
+        }
+        Entry entry = entries.get(key(gridFsId, hash));
+        if (entry == null) {
+            return null;
+        }
+        hits.incrementAndGet();
+        entry.hit(age.get());
+        return entry.content;
+    }
+
+    /**
+     * Reads the source into an off-heap buffer if the file is small enough and was asked for
+     * before. Returns null when the file is not cached; the caller then serves the source.
+     */
+    public CachedContent load(String gridFsId, String hash, String contentType, Resource source) throws IOException {
+        long length = source.contentLength();
+        if (!enabled || hash == null || length > maxEntryBytes) {
+            return null;
+        }
+        misses.incrementAndGet();
+        String key = key(gridFsId, hash);
+        if (doorkeeper.add(key)) {
+            if (doorkeeper.size() > 10_000) {
+                doorkeeper.clear();
+            }
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) length);
+        try (InputStream in = source.getInputStream()) {
+            byte[] chunk = new byte[64 * 1024];
+            int read;
+            while (buffer.hasRemaining() && (read = in.read(chunk, 0, Math.min(chunk.length, buffer.remaining()))) != -1) {
+                buffer.put(chunk, 0, read);
+            }
+        }
+        if (buffer.hasRemaining()) {
+            return null;
+        }
+        buffer.flip();
+
+        Entry entry = new Entry(key, gridFsId, new CachedContent(buffer.asReadOnlyBuffer(), contentType,
+                source.getFilename()), age.get());
+        writeLock.lock();
+        try {
+            Entry existing = entries.putIfAbsent(key, entry);
+            if (existing != null) {
+                return existing.content;
+            }
+            doorkeeper.remove(key);
+            entry.slot = slots.size();
+            slots.add(entry);
+            byGridFsId.computeIfAbsent(gridFsId, id -> new ArrayList<>(1)).add(entry);
+            usedBytes.addAndGet(length);
+            if (puts.incrementAndGet() % AGING_INTERVAL == 0) {
+                age.incrementAndGet();
+            }
+            evictOverflow(entry);
+        } finally {
+            writeLock.unlock();
+        }
+        return entry.content;
+    }
+
+    public void invalidate(String gridFsId) {
+        writeLock.lock();
+        try {
+            List<Entry> cached = byGridFsId.get(gridFsId);
+            if (cached != null) {
+                for (Entry entry : List.copyOf(cached)) {
+                    remove(entry);
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public double hitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    // the entry just added is only evicted when it is all that is left, so a new entry gets a
+    // chance to collect hits before it competes with the others
+    private void evictOverflow(Entry added) {
+        // the direct buffers are released by the GC once no response is reading them any more
+        int now = age.get();
+        while (usedBytes.get() > capacityBytes && !slots.isEmpty()) {
+            Entry victim = slots.size() == 1 ? slots.get(0) : null;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < EVICTION_SAMPLE && slots.size() > 1; i++) {
+                Entry candidate = slots.get(random.nextInt(slots.size()));
+                if (candidate != added && (victim == null || candidate.score(now) < victim.score(now))) {
+                    victim = candidate;
+                }
+            }
+            if (victim == null) {
+                continue;
+            }
+            remove(victim);
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key);
+        // swap the last slot into the hole
+        Entry last = slots.remove(slots.size() - 1);
+        if (last != entry) {
+            slots.set(entry.slot, last);
+            last.slot = entry.slot;
+        }
+        List<Entry> cached = byGridFsId.get(entry.gridFsId);
+        cached.remove(entry);
+        if (cached.isEmpty()) {
+            byGridFsId.remove(entry.gridFsId);
+        }
+        usedBytes.addAndGet(-entry.content.length());
+    }
+
+    private static String key(String gridFsId, String hash) {
+        return gridFsId + ":" + hash;
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final String gridFsId;
+        private final CachedContent content;
+        // hit count in the low 32 bits, the age it was last halved to in the high ones
+        private final AtomicLong frequency;
+        private int slot;
+
+        private Entry(String key, String gridFsId, CachedContent content, int age) {
+            this.key = key;
+            this.gridFsId = gridFsId;
+            this.content = content;
+            this.frequency = new AtomicLong(((long) age << 32) | 1);
+        }
+
+        private void hit(int age) {
+            frequency.updateAndGet(state -> ((long) age << 32) | Math.min(hits(state, age) + 1, Integer.MAX_VALUE));
+        }
+
+        // hits per KB: large entries need proportionally more hits to stay
+        private double score(int age) {
+            return hits(frequency.get(), age) / Math.max(1.0, content.length() / 1024.0);
+        }
+
+        private static long hits(long state, int age) {
+            int halvings = age - (int) (state >>> 32);
+            return halvings >= 32 ? 0 : (state & 0xFFFFFFFFL) >>> Math.max(0, halvings);
+        }
+    }
+
+    public static final class CachedContent {
+        private final ByteBuffer data;
+        private final String contentType;
+        private final String filename;
+
+        private CachedContent(ByteBuffer data, String contentType, String filename) {
+            this.data = data;
+            this.contentType = contentType;
+            this.filename = filename;
+        }
+
+        public String contentType() { return contentType; }
+
+        public long length() { return data.capacity(); }
+
+        public Resource resource() {
+            return new ByteBufferResource(data, filename);
+        }
+    }
+
+    private static final class ByteBufferResource extends AbstractResource {
+        private final ByteBuffer data;
+        private final String filename;
+
+        private ByteBufferResource(ByteBuffer data, String filename) {
+            this.data = data;
+            this.filename = filename;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            ByteBuffer view = data.duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return view.hasRemaining() ? view.get() & 0xFF : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (!view.hasRemaining()) return -1;
+                    int n = Math.min(len, view.remaining());
+                    view.get(b, off, n);
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) {
+                    int skipped = (int) Math.max(0, Math.min(n, view.remaining()));
+                    view.position(view.position() + skipped);
+                    return skipped;
+                }
+
+                @Override
+                public int available() {
+                    return view.remaining();
+                }
+            };
+        }
+
+        @Override
+        public long contentLength() {
+            return data.capacity();
+        }
+
+        @Override
+        public String getFilename() {
+            return filename;
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public String getDescription() {
+            return "cached download [" + filename + "]";
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.teletronics.storage.service;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.teletronics.storage.model.StoredFile;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maps download tokens to the resolved StoredFile and its GridFS descriptor, so a repeated
+ * download skips both metadata round trips. Entries live for a fixed TTL, the map is trimmed
+ * once the size bound is reached, and FileService evicts a token whenever its file changes.
+ */
+@Component
+public class DownloadMetadataCache {
+
+    private final boolean enabled;
+    private final long ttlNanos;
+    private final int maxEntries;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public DownloadMetadataCache(MeterRegistry registry,
+                                 @Value("${app.metadata-cache.enabled:true}") boolean enabled,
+                                 @Value("${app.metadata-cache.ttl:30s}") Duration ttl,
+                                 @Value("${app.metadata-cache.max-entries:10000}") int maxEntries) {
+        this.enabled = enabled;
+        this.ttlNanos = ttl.toNanos();
+        this.maxEntries = maxEntries;
+
+        FunctionCounter.builder("cache.gets", hits, AtomicLong::get).tag("cache", "download-metadata").tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("cache.gets", misses, AtomicLong::get).tag("cache", "download-metadata").tag("result", "miss")
+                .register(registry);
+        Gauge.builder("cache.size", entries, Map::size).tag("cache", "download-metadata").register(registry);
+    }
+
+    public Entry get(String token) {
+        if (!enabled) {
+            return null;
+        }
+        Entry entry = entries.get(token);
+        if (entry == null || entry.expiresAt - System.nanoTime() < 0) {
+            if (entry != null) {
+                entries.remove(token, entry);
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    public Entry put(String token, StoredFile storedFile) {
+        Entry entry = new Entry(storedFile, System.nanoTime() + ttlNanos);
+        if (!enabled) {
+            return entry;
+        }
+        entries.put(token, entry);
+        if (entries.size() > maxEntries) {
+            trim();
+        }
+        return entry;
+    }
+
+    public void evict(String token) {
+        if (token != null) {
+            entries.remove(token);
+        }
+    }
+
+    // drops expired entries first, then arbitrary ones down to 90% so trimming stays rare
+    private synchronized void trim() {
+        long now = System.nanoTime();
+        entries.values().removeIf(e -> e.expiresAt - now < 0);
+        int target = maxEntries * 9 / 10;
+        var it = entries.keySet().iterator();
+        while (entries.size() > target && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    public static final class Entry {
+        private final StoredFile storedFile;
+        private final long expiresAt;
+        // resolved on the first download that needs content, a 304 never looks it up
+        private volatile GridFSFile gridFsFile;
+
+        private Entry(StoredFile storedFile, long expiresAt) {
+            this.storedFile = storedFile;
+            this.expiresAt = expiresAt;
+        }
+
+        public StoredFile storedFile() { return storedFile; }
+
+        public GridFSFile gridFsFile() { return gridFsFile; }
+
+        public void gridFsFile(GridFSFile gridFsFile) { this.gridFsFile = gridFsFile; }
+    }
+}
@@ -0,0 +1,58 @@
+package com.teletronics.storage.service;
+
+import com.teletronics.storage.model.StoredFile;
+import org.springframework.data.domain.Sort;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Set;
+
+/**
+ * Opaque continuation token for keyset listing: the sort field and direction, plus the sort
+ * value and id of the last file returned.
+ */
+public record FileCursor(String sortBy, Sort.Direction direction, Object lastValue, String lastId) {
+
+    public static final Set<String> SORTABLE_FIELDS = Set.of("filename", "uploadDate", "size");
+
+    public static FileCursor after(StoredFile last, String sortBy, Sort.Direction direction) {
+        Object value = switch (sortBy) {
+            case "filename" -> last.getFilename();
+            case "uploadDate" -> Date.from(last.getUploadDate());
+            case "size" -> last.getSize();
+            default -> throw new IllegalArgumentException("Unsupported sort field: " + sortBy);
+        };
+        return new FileCursor(sortBy, direction, value, last.getId());
+    }
+
+    public String encode() {
+        String value = switch (sortBy) {
+            case "uploadDate" -> Long.toString(((Date) lastValue).getTime());
+            case "size" -> Long.toString((Long) lastValue);
+            default -> (String) lastValue;
+        };
+        // the value goes last so filenames containing the separator still decode
+        String raw = sortBy + "|" + direction.name() + "|" + lastId + "|" + value;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static FileCursor decode(String token) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            String[] parts = raw.split("\\|", 4);
+            String sortBy = parts[0];
+            Sort.Direction direction = Sort.Direction.valueOf(parts[1]);
+            Object value = switch (sortBy) {
+                case "filename" -> parts[3];
+                case "uploadDate" -> Date.from(Instant.ofEpochMilli(Long.parseLong(parts[3])));
+                case "size" -> Long.parseLong(parts[3]);
+                default -> throw new IllegalArgumentException();
+            };
+            return new FileCursor(sortBy, direction, value, parts[2]);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+}
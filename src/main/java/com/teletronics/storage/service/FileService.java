@@ -1,9 +1,14 @@
 package com.teletronics.storage.service;
 
+import com.teletronics.storage.dto.CursorPage;
+import com.teletronics.storage.dto.PublicFile;
+import com.teletronics.storage.dto.StorageUsage;
+import com.teletronics.storage.model.AnalysisJob;
+import com.teletronics.storage.model.Blob;
 import com.teletronics.storage.model.StoredFile;
 import com.teletronics.storage.model.Visibility;
 import com.teletronics.storage.repository.FileRepository;
-import org.apache.tika.Tika;
+import com.teletronics.storage.repository.TagQuery;
 import org.bson.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,80 +16,268 @@ import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
-import org.springframework.util.DigestUtils;
 import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 public class FileService {
 
     private final StorageService storageService;
+    private final BlobService blobService;
     private final FileRepository fileRepository;
-    private final Tika tika = new Tika();
+    private final DownloadCache downloadCache;
+    private final DownloadMetadataCache metadataCache;
+    private final MongoTemplate mongoTemplate;
+    private final StorageMetrics metrics;
+    private final AnalysisService analysisService;
+    private final QuotaService quotaService;
 
-    public FileService(StorageService storageService, FileRepository fileRepository) {
+    // documents per cursor batch when streaming the public listing
+    private static final int PUBLIC_BATCH_SIZE = 500;
+    static final Duration DELETE_CLAIM_TIMEOUT = Duration.ofMinutes(5);
+
+    public FileService(StorageService storageService, BlobService blobService, FileRepository fileRepository,
+                       DownloadCache downloadCache, DownloadMetadataCache metadataCache, MongoTemplate mongoTemplate,
+                       StorageMetrics metrics, AnalysisService analysisService, QuotaService quotaService) {
         this.storageService = storageService;
+        this.blobService = blobService;
         this.fileRepository = fileRepository;
+        this.downloadCache = downloadCache;
+        this.metadataCache = metadataCache;
+        this.mongoTemplate = mongoTemplate;
+        this.metrics = metrics;
+        this.analysisService = analysisService;
+        this.quotaService = quotaService;
     }
 
     public StoredFile upload(MultipartFile file, String userId, String visibilityStr, List<String> tags) throws IOException {
+        try (InputStream in = file.getInputStream()) {
+            return upload(in, file.getOriginalFilename(), file.getContentType(), file.getSize(), userId, visibilityStr, tags);
+        }
+    }
+
+    /**
+     * @param declaredSize size announced by the client, -1 when unknown; only used for placement
+     */
+    public StoredFile upload(InputStream in, String filename, String declaredContentType, long declaredSize,
+                             String userId, String visibilityStr, List<String> tags) throws IOException {
+        return upload(in, filename, declaredContentType, declaredSize, userId, visibilityStr, tags, null);
+    }
+
+    /**
+     * Upload with the hash the client computed for its content: its SHA-256, or its tree hash
+     * under {@code app.hash.scheme=tree}. Everything that can be decided from it is decided
+     * before {@code in} is read: the user already has that content, or it is published and the
+     * file is linked to it. Otherwise the content is read and must match.
+     */
+    public StoredFile upload(InputStream in, String filename, String declaredContentType, long declaredSize,
+                             String userId, String visibilityStr, List<String> tags, String contentHash)
+            throws IOException {
         if (tags == null) tags = List.of();
+        metrics.uploadStarted();
+        long bytes = -1;
+        try {
+            Visibility visibility = validateUpload(userId, filename, visibilityStr, tags, declaredSize);
+            String sha256 = contentHash != null ? parseContentHash(contentHash) : null;
+            if (sha256 != null) {
+                StoredFile linked = linkKnownContent(sha256, filename, declaredContentType, userId, visibility, tags);
+                if (linked != null) {
+                    bytes = linked.getSize();
+                    return linked;
+                }
+            }
+
+            // hash, type detection and GridFS write share a single read of the upload
+            StoredContent content = storageService.store(in, filename, declaredContentType, declaredSize,
+                    gridFsMetadata(userId, visibility, tags));
+            checkContentHash(content, sha256);
+            StoredFile stored = register(content, filename, declaredContentType, userId, visibility, tags);
+            bytes = stored.getSize();
+            return stored;
+        } finally {
+            metrics.uploadFinished(bytes);
+        }
+    }
+
+    /**
+     * Checks that can run before any content is read. Returns the parsed visibility.
+     *
+     * @param declaredSize size announced by the client, -1 when unknown; checked against the quota
+     */
+    Visibility validateUpload(String userId, String filename, String visibilityStr, List<String> tags,
+                              long declaredSize) {
+        if (filename == null || filename.isBlank()) {
+            throw new IllegalArgumentException("Filename must not be empty");
+        }
         if (tags.size() > 5) {
             throw new IllegalArgumentException("Max 5 tags allowed");
         }
 
-        Visibility visibility;
-        try {
-            visibility = Visibility.valueOf(visibilityStr.toUpperCase());
-        } catch (IllegalArgumentException e) {
-            throw new IllegalArgumentException("Invalid visibility value. Must be PUBLIC or PRIVATE.");
+        Visibility visibility = parseVisibility(visibilityStr);
+
+        Optional<StoredFile> existingByName = metrics.timeUploadPhase(StorageMetrics.DUPLICATE_LOOKUP,
+                () -> fileRepository.findByUserIdAndFilename(userId, filename));
+        if (existingByName.isPresent()) {
+            metrics.duplicateRejected("filename");
+            throw new IllegalArgumentException("File with same name already exists for this user.");
         }
+        quotaService.checkUpload(userId, declaredSize);
+        return visibility;
+    }
 
-        // compute hash (md5)
-        String hash = DigestUtils.md5DigestAsHex(file.getInputStream());
+    static String parseContentHash(String contentHash) {
+        String sha256 = contentHash.trim().toLowerCase();
+        if (!sha256.matches("[0-9a-f]{64}")) {
+            throw new IllegalArgumentException("Content hash must be 64 hex digits");
+        }
+        return sha256;
+    }
 
-        Optional<StoredFile> existingByHash = fileRepository.findByUserIdAndHash(userId, hash);
-        if (existingByHash.isPresent()) {
-            throw new IllegalArgumentException("File with same content already uploaded by this user.");
+    // the stored bytes must be those the client announced
+    void checkContentHash(StoredContent content, String sha256) {
+        if (sha256 != null && !sha256.equals(content.key())) {
+            storageService.delete(content.backend(), content.gridFsId());
+            throw new IllegalArgumentException("Content does not match its announced hash");
         }
+    }
 
-        Optional<StoredFile> existingByName = fileRepository.findByUserIdAndFilename(userId, file.getOriginalFilename());
-        if (existingByName.isPresent()) {
-            throw new IllegalArgumentException("File with same name already exists for this user.");
+    /**
+     * Creates the file on content that is already stored, without reading any of it, or returns
+     * null when the content has to be uploaded. Only content somebody has published is linked,
+     * so knowing the hash of a private file is not enough to obtain its bytes.
+     */
+    StoredFile linkKnownContent(String sha256, String filename, String declaredContentType, String userId,
+                                Visibility visibility, List<String> tags) {
+        boolean owned = metrics.timeUploadPhase(StorageMetrics.DUPLICATE_LOOKUP,
+                () -> fileRepository.existsByUserIdAndBlobId(userId, sha256));
+        if (owned) {
+            metrics.duplicateRejected("content");
+            throw new IllegalArgumentException("File with same content already uploaded by this user.");
+        }
+        Query published = Query.query(Criteria.where("blobId").is(sha256).and("visibility").is(Visibility.PUBLIC));
+        published.fields().include("detectedContentType").include("treeHash");
+        StoredFile source = mongoTemplate.findOne(published, StoredFile.class);
+        if (source == null) {
+            return null;
         }
+        Blob blob = metrics.timeUploadPhase(StorageMetrics.BLOB, () -> blobService.retain(sha256));
+        if (blob == null) {
+            // released with its last file since the lookup
+            return null;
+        }
+        try {
+            quotaService.charge(userId, blob.getSize(), 1);
+        } catch (RuntimeException e) {
+            blobService.release(blob.getId());
+            throw e;
+        }
+        String treeHash = source.getTreeHash();
+        StoredContent content = new StoredContent(blob.getBackend(), blob.getGridFsId(), blob.getMd5(),
+                treeHash == null ? blob.getId() : null, source.getDetectedContentType(), blob.getSize(),
+                blob.getCompression(), blob.getStoredSize(), treeHash, null);
+        return save(content, blob, filename, declaredContentType, userId, visibility, tags);
+    }
 
-        String detectedType = tika.detect(file.getInputStream());
+    static Visibility parseVisibility(String visibilityStr) {
+        try {
+            return Visibility.valueOf(visibilityStr.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid visibility value. Must be PUBLIC or PRIVATE.");
+        }
+    }
 
-        // metadata for gridfs
+    // metadata for gridfs (content type and hash are filled in while streaming)
+    Document gridFsMetadata(String userId, Visibility visibility, List<String> tags) {
         Document meta = new Document();
         meta.put("userId", userId);
         meta.put("visibility", visibility);
         meta.put("tags", tags);
-        meta.put("hash", hash);
-        meta.put("contentType", detectedType);
+        return meta;
+    }
 
-        String gridFsId = null;
+    /**
+     * Creates the StoredFile for content that is already in storage. Content that is stored
+     * already (by any user) is shared through its blob and the new copy is dropped. The
+     * reference is released again if the file turns out to be a duplicate or cannot be saved.
+     */
+    StoredFile register(StoredContent content, String filename, String declaredContentType, String userId,
+                        Visibility visibility, List<String> tags) {
+        Optional<StoredFile> existingByHash = metrics.timeUploadPhase(StorageMetrics.DUPLICATE_LOOKUP,
+                () -> fileRepository.findByUserIdAndHash(userId, content.hash()));
+        if (existingByHash.isPresent()) {
+            metrics.duplicateRejected("content");
+            storageService.delete(content.backend(), content.gridFsId());
+            throw new IllegalArgumentException("File with same content already uploaded by this user.");
+        }
+
+        // the actual size is known now, whatever was declared
+        try {
+            quotaService.charge(userId, content.size(), 1);
+        } catch (RuntimeException e) {
+            storageService.delete(content.backend(), content.gridFsId());
+            throw e;
+        }
+
+        Blob blob;
+        try {
+            blob = metrics.timeUploadPhase(StorageMetrics.BLOB, () -> blobService.acquire(content));
+        } catch (RuntimeException e) {
+            // roll back the GridFS write, nothing references it
+            storageService.delete(content.backend(), content.gridFsId());
+            quotaService.release(userId, content.size(), 1);
+            throw e;
+        }
+        return save(content, blob, filename, declaredContentType, userId, visibility, tags);
+    }
+
+    // saves the file on a blob it already holds a reference and quota for, both released on failure
+    private StoredFile save(StoredContent content, Blob blob, String filename, String declaredContentType,
+                            String userId, Visibility visibility, List<String> tags) {
         try {
-            gridFsId = storageService.store(file, meta);
             String publicToken = UUID.randomUUID().toString();
             String downloadLink = "/files/download/" + publicToken;
 
-            StoredFile sf = new StoredFile(gridFsId, file.getOriginalFilename(), userId, visibility, tags,
-                    file.getContentType(), file.getSize(), hash, Instant.now(), publicToken, downloadLink);
-            fileRepository.save(sf);
+            StoredFile sf = new StoredFile(blob.getGridFsId(), filename, userId, visibility, tags,
+                    declaredContentType, content.size(), content.hash(), Instant.now(), publicToken, downloadLink);
+            sf.setBlobId(blob.getId());
+            sf.setTreeHash(content.treeHash());
+            sf.setBackend(blob.getBackend());
+            sf.setStorage(blob.getCompression(), blob.getStoredSize());
+            // sniffed from the leading bytes only, the analysis job settles it after the response
+            sf.setDetectedContentType(content.contentType());
+            if (analysisService.isEnabled()) sf.setAnalysisStatus(AnalysisJob.Status.PENDING);
+            metrics.timeUploadPhase(StorageMetrics.METADATA_SAVE, () -> fileRepository.save(sf));
+            try {
+                analysisService.enqueue(sf);
+            } catch (RuntimeException e) {
+                // a file without its job would stay pending forever
+                fileRepository.deleteById(sf.getId());
+                throw e;
+            }
             return sf;
         } catch (DuplicateKeyException e) {
             // Unique constraint at DB level (user+hash or user+filename) prevented duplicate
+            metrics.duplicateRejected("constraint");
+            blobService.release(blob.getId());
+            quotaService.release(userId, content.size(), 1);
             throw new IllegalStateException("File already exists (concurrent upload or duplicate)", e);
-        } catch (IOException e) {
-            // propagate
+        } catch (RuntimeException e) {
+            blobService.release(blob.getId());
+            quotaService.release(userId, content.size(), 1);
             throw e;
         }
     }
@@ -92,17 +285,13 @@ public class FileService {
     public Page<StoredFile> listFiles(String userId, String visibility, String tag, Pageable pageable) {
         Page<StoredFile> files;
         if (userId != null) {
-            if (tag != null) files = fileRepository.findByUserIdAndTagsContaining(userId, tag, pageable);
+            if (tag != null) files = fileRepository.findByTag(userId, null, TagQuery.parse(tag), pageable);
             else files =  fileRepository.findByUserId(userId, pageable);
         } else {
-            if (visibility != null) {
-                if (tag != null) files =  fileRepository.findByVisibilityAndTagsContaining(Visibility.valueOf(visibility.toUpperCase()), tag, pageable);
-                else files = fileRepository.findByVisibility(Visibility.valueOf(visibility.toUpperCase()), pageable);
-            } else {
-                // default to public only
-                if (tag != null) files = fileRepository.findByVisibilityAndTagsContaining(Visibility.valueOf("PUBLIC"), tag, pageable);
-                files = fileRepository.findByVisibility(Visibility.valueOf("PUBLIC"), pageable);
-            }
+            // default to public only
+            Visibility vis = visibility != null ? Visibility.valueOf(visibility.toUpperCase()) : Visibility.PUBLIC;
+            if (tag != null) files = fileRepository.findByTag(null, vis, TagQuery.parse(tag), pageable);
+            else files = fileRepository.findByVisibility(vis, pageable);
         }
         return new PageImpl<>(
                 files.getContent().stream()
@@ -113,22 +302,111 @@ public class FileService {
         );
     }
 
-    public java.util.List<StoredFile> listPublic() {
-        List<StoredFile> publicFiles = fileRepository.findByVisibility(Visibility.PUBLIC);
+    /**
+     * Keyset listing: no offset skip and no count, each page resumes right after the cursor.
+     * When a cursor is given, its sort field and direction win over the request parameters.
+     */
+    public CursorPage<StoredFile> listFilesAfter(String userId, String visibility, String tag, String sortBy,
+                                                 Sort.Direction direction, String cursor, int size) {
+        return listFilesAfter(userId, visibility, tag, sortBy, direction, cursor, size, new String[0]);
+    }
 
-        publicFiles.forEach(file ->
-                file.setDownloadLink("/files/download/" + file.getPublicToken())
-        );
+    private CursorPage<StoredFile> listFilesAfter(String userId, String visibility, String tag, String sortBy,
+                                                  Sort.Direction direction, String cursor, int size,
+                                                  String... fields) {
+        if (size < 1 || size > 1000) {
+            throw new IllegalArgumentException("Page size must be between 1 and 1000");
+        }
+        FileCursor after = null;
+        if (cursor != null && !cursor.isBlank()) {
+            after = FileCursor.decode(cursor);
+            sortBy = after.sortBy();
+            direction = after.direction();
+        }
+        if (!FileCursor.SORTABLE_FIELDS.contains(sortBy)) {
+            throw new IllegalArgumentException("Cursor listing can only sort by " + FileCursor.SORTABLE_FIELDS);
+        }
+
+        // same default as listFiles: without a user, only public files
+        Visibility filter = userId != null ? null
+                : visibility != null ? Visibility.valueOf(visibility.toUpperCase()) : Visibility.PUBLIC;
+        List<StoredFile> files = fileRepository.findPageAfter(userId, filter,
+                tag != null ? TagQuery.parse(tag) : null, sortBy, direction,
+                after != null ? after.lastValue() : null, after != null ? after.lastId() : null, size + 1, fields);
+
+        String nextCursor = null;
+        if (files.size() > size) {
+            files = files.subList(0, size);
+            nextCursor = FileCursor.after(files.get(size - 1), sortBy, direction).encode();
+        }
+        files.forEach(file -> file.setDownloadLink("/files/download/" + file.getPublicToken()));
+        return new CursorPage<>(files, nextCursor);
+    }
 
-        return publicFiles;    }
+    /**
+     * Files no batch delete is removing, or whose batch delete died before removing them.
+     */
+    static Criteria unclaimed() {
+        return new Criteria().orOperator(
+                Criteria.where("deleteClaim").is(null),
+                Criteria.where("deleteClaimedAt").lt(Instant.now().minus(DELETE_CLAIM_TIMEOUT)));
+    }
+
+    /**
+     * All public files, read lazily from a MongoDB cursor with only the listed fields.
+     * The caller must close the stream.
+     */
+    public Stream<PublicFile> streamPublic() {
+        Query query = Query.query(Criteria.where("visibility").is(Visibility.PUBLIC))
+                .with(Sort.by("filename", "_id"))
+                .cursorBatchSize(PUBLIC_BATCH_SIZE);
+        query.fields().include(PublicFile.FIELDS);
+        return mongoTemplate.stream(query, StoredFile.class).map(PublicFile::new);
+    }
+
+    public CursorPage<PublicFile> listPublicAfter(String cursor, int limit) {
+        // the cursor is made of the filename and _id, both among the fields read
+        CursorPage<StoredFile> page = listFilesAfter(null, Visibility.PUBLIC.name(), null, "filename",
+                Sort.Direction.ASC, cursor, limit, PublicFile.FIELDS);
+        return new CursorPage<>(page.getContent().stream().map(PublicFile::new).toList(), page.getNextCursor());
+    }
 
     public void delete(String id, String userId) {
         StoredFile sf = fileRepository.findById(id).orElseThrow(() -> new IllegalArgumentException("File not found"));
         if (!sf.getUserId().equals(userId)) {
             throw new SecurityException("User is not allowed to delete the file");
         }
-        storageService.delete(sf.getGridFsId());
-        fileRepository.deleteById(id);
+        // only the call that removed the document gives back its quota and blob reference; a
+        // concurrent or retried delete of the same file would otherwise release them twice
+        StoredFile removed = mongoTemplate.findAndRemove(
+                Query.query(Criteria.where("_id").is(id).and("userId").is(userId).andOperator(unclaimed())),
+                StoredFile.class);
+        if (removed == null) {
+            throw new IllegalArgumentException("File not found");
+        }
+        evictFromCaches(removed);
+        analysisService.cancel(id);
+        quotaService.release(removed.getUserId(), removed.getSize(), 1);
+        // shared content only goes away with its last file
+        if (removed.getBlobId() != null) blobService.release(removed.getBlobId());
+        else storageService.delete(removed.getBackend(), removed.getGridFsId());
+    }
+
+    /**
+     * A single file's metadata, including the state of its analysis; private files only for their owner.
+     */
+    public StoredFile getFile(String id, String userId) {
+        StoredFile file = fileRepository.findById(id)
+                .orElseThrow(() -> new NoSuchElementException("File not found"));
+        if (file.getVisibility() == Visibility.PRIVATE && !file.getUserId().equals(userId)) {
+            throw new SecurityException("You are not allowed to see this file");
+        }
+        file.setDownloadLink("/files/download/" + file.getPublicToken());
+        return file;
+    }
+
+    public StorageUsage getUsage(String userId) {
+        return quotaService.usage(userId);
     }
 
     public StoredFile renameFile(String fileId, String userId, String newFilename) {
@@ -149,6 +427,72 @@ public class FileService {
         }
 
         file.setFilename(newFilename);
-        return fileRepository.save(file);
+        StoredFile saved = fileRepository.save(file);
+        evictFromCaches(file);
+        return saved;
+    }
+
+    /**
+     * A new file on the content of one the caller can see, for the caller or, for the owner of
+     * the file, for another user. No content is read or written: the copy takes a reference on
+     * the blob, so it costs the same whatever the size. The receiving user is charged for it and
+     * must not have a file of that name or content already.
+     *
+     * @param targetUserId null for the caller
+     * @param filename     null for the name of the file
+     * @param tags         null for the tags of the file
+     */
+    public StoredFile copyFile(String fileId, String userId, String targetUserId, String filename,
+                               String visibilityStr, List<String> tags) {
+        StoredFile source = fileRepository.findById(fileId)
+                .orElseThrow(() -> new NoSuchElementException("File not found"));
+        boolean owner = source.getUserId().equals(userId);
+        if (!owner && source.getVisibility() == Visibility.PRIVATE) {
+            throw new SecurityException("You are not allowed to see this file");
+        }
+        if (targetUserId == null || targetUserId.isBlank()) {
+            targetUserId = userId;
+        } else if (!owner && !targetUserId.equals(userId)) {
+            throw new SecurityException("You can only give copies of your own files");
+        }
+        if (source.getBlobId() == null) {
+            // the content belongs to the file alone, deleting it would pull it from under the copy
+            throw new IllegalStateException("Files stored before content sharing cannot be copied");
+        }
+        if (filename == null || filename.isBlank()) filename = source.getFilename();
+        if (tags == null) tags = source.getTags() != null ? source.getTags() : List.of();
+
+        Visibility visibility = validateUpload(targetUserId, filename, visibilityStr, tags, source.getSize());
+        String receiver = targetUserId;
+        boolean owned = metrics.timeUploadPhase(StorageMetrics.DUPLICATE_LOOKUP,
+                () -> fileRepository.findByUserIdAndHash(receiver, source.getHash()).isPresent());
+        if (owned) {
+            metrics.duplicateRejected("content");
+            throw new IllegalArgumentException("File with same content already uploaded by this user.");
+        }
+
+        Blob blob = metrics.timeUploadPhase(StorageMetrics.BLOB, () -> blobService.retain(source.getBlobId()));
+        if (blob == null) {
+            // released with its last file since the lookup
+            throw new NoSuchElementException("File not found");
+        }
+        try {
+            quotaService.charge(receiver, blob.getSize(), 1);
+        } catch (RuntimeException e) {
+            blobService.release(blob.getId());
+            throw e;
+        }
+        String treeHash = source.getTreeHash();
+        StoredContent content = new StoredContent(blob.getBackend(), blob.getGridFsId(), source.getHash(),
+                treeHash == null ? blob.getId() : null, source.getDetectedContentType(), blob.getSize(),
+                blob.getCompression(), blob.getStoredSize(), treeHash, null);
+        return save(content, blob, filename, source.getContentType(), receiver, visibility, tags);
+    }
+
+    // any change to a file's metadata (name, visibility) or its removal must go through here,
+    // otherwise a cached token could keep serving a file the caller may no longer see
+    void evictFromCaches(StoredFile file) {
+        metadataCache.evict(file.getPublicToken());
+        downloadCache.invalidate(file.getGridFsId());
     }
 }
@@ -0,0 +1,140 @@
+package com.teletronics.storage.service;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Content kept as plain files under {@code app.storage.filesystem.root}, so downloads can be
+ * handed to the connector's sendfile instead of being copied through the JVM.
+ */
+@Component
+public class FileSystemBackend implements StorageBackend {
+
+    public static final String NAME = "fs";
+
+    private final Path root;
+
+    public FileSystemBackend(@Value("${app.storage.filesystem.root:data/blobs}") String root) {
+        this.root = Path.of(root).toAbsolutePath();
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public String store(InputStream content, String filename, String contentType, Document metadata) throws IOException {
+        String id = new ObjectId().toHexString();
+        Path target = path(id);
+        Files.createDirectories(target.getParent());
+
+        // written next to the target and moved into place, a crash never leaves a partial file under the id
+        Path tmp = Files.createTempFile(target.getParent(), id, ".part");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                OutputStream out = Channels.newOutputStream(channel);
+                content.transferTo(out);
+                channel.force(true);
+            }
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        return id;
+    }
+
+    @Override
+    public Resource open(String id) {
+        Path path = path(id);
+        return Files.exists(path) ? new FileSystemResource(path) : null;
+    }
+
+    @Override
+    public InputStream openRange(String id, long offset, long length) throws IOException {
+        FileChannel channel = FileChannel.open(path(id), StandardOpenOption.READ);
+        channel.position(offset);
+        return BoundedInputStream.builder().setInputStream(Channels.newInputStream(channel)).setMaxCount(length).get();
+    }
+
+    @Override
+    public void delete(String id) {
+        try {
+            Files.deleteIfExists(path(id));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // in directory order: the two levels of directories, then the ids within one directory
+    @Override
+    public List<Entry> list(String after, int limit) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        String from = after != null ? order(after) : "";
+        for (Path outer : directories(root)) {
+            for (Path inner : directories(outer)) {
+                String directory = outer.getFileName().toString() + inner.getFileName();
+                if (!from.isEmpty() && directory.compareTo(from.substring(0, 4)) < 0) continue;
+                List<String> ids;
+                // temp files of writes in progress are not valid ids
+                try (Stream<Path> files = Files.list(inner)) {
+                    ids = files.map(file -> file.getFileName().toString())
+                            .filter(ObjectId::isValid)
+                            .filter(id -> order(id).compareTo(from) > 0)
+                            .sorted()
+                            .toList();
+                }
+                for (String id : ids) {
+                    entries.add(new Entry(id, Files.size(inner.resolve(id))));
+                    if (entries.size() == limit) return entries;
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static List<Path> directories(Path parent) throws IOException {
+        if (!Files.isDirectory(parent)) return List.of();
+        try (Stream<Path> children = Files.list(parent)) {
+            return children.filter(Files::isDirectory).sorted(Comparator.comparing(Path::getFileName)).toList();
+        }
+    }
+
+    private static String order(String id) {
+        int n = id.length();
+        return id.substring(n - 2) + id.substring(n - 4, n - 2) + id;
+    }
+
+    @Override
+    public Path localPath(String id) {
+        Path path = path(id);
+        return Files.exists(path) ? path : null;
+    }
+
+    // the trailing ObjectId bytes are a counter, so they spread files evenly over the directories
+    private Path path(String id) {
+        int n = id.length();
+        return root.resolve(id.substring(n - 2)).resolve(id.substring(n - 4, n - 2)).resolve(id);
+    }
+}
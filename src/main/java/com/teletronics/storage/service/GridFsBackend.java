@@ -0,0 +1,109 @@
+package com.teletronics.storage.service;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.core.io.Resource;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.gridfs.GridFsOperations;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+@Component
+public class GridFsBackend implements StorageBackend {
+
+    public static final String NAME = "gridfs";
+
+    private final GridFsTemplate gridFsTemplate;
+    private final GridFsOperations operations;
+    private final MongoTemplate mongoTemplate;
+
+    public GridFsBackend(GridFsTemplate gridFsTemplate, GridFsOperations operations, MongoTemplate mongoTemplate) {
+        this.gridFsTemplate = gridFsTemplate;
+        this.operations = operations;
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public String store(InputStream content, String filename, String contentType, Document metadata) {
+        return gridFsTemplate.store(content, filename, contentType, metadata).toHexString();
+    }
+
+    @Override
+    public void annotate(String id, Document attributes) {
+        List<Bson> updates = new ArrayList<>();
+        for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+            updates.add(Updates.set("metadata." + attribute.getKey(), attribute.getValue()));
+        }
+        mongoTemplate.getCollection("fs.files").updateOne(Filters.eq("_id", new ObjectId(id)), Updates.combine(updates));
+    }
+
+    @Override
+    public Resource open(String id) {
+        GridFSFile file = find(id);
+        return file != null ? new GridFsContentResource(operations, file) : null;
+    }
+
+    @Override
+    public InputStream openRange(String id, long offset, long length) throws IOException {
+        GridFSFile file = find(id);
+        if (file == null) {
+            throw new IOException("GridFS file " + id + " not found");
+        }
+        InputStream in = operations.getResource(file).getInputStream();
+        // skip() on a GridFS stream seeks to the chunk holding the offset
+        in.skipNBytes(offset);
+        return BoundedInputStream.builder().setInputStream(in).setMaxCount(length).get();
+    }
+
+    @Override
+    public void delete(String id) {
+        gridFsTemplate.delete(new Query(Criteria.where("_id").is(new ObjectId(id))));
+    }
+
+    @Override
+    public List<Entry> list(String after, int limit) {
+        Bson filter = after != null ? Filters.gt("_id", new ObjectId(after)) : Filters.empty();
+        List<Entry> entries = new ArrayList<>();
+        mongoTemplate.getCollection("fs.files").find(filter)
+                .projection(Projections.include("length"))
+                .sort(Sorts.ascending("_id"))
+                .limit(limit)
+                .forEach(file -> entries.add(new Entry(file.getObjectId("_id").toHexString(),
+                        ((Number) file.get("length")).longValue())));
+        return entries;
+    }
+
+    // two deleteMany calls whatever the number of files, instead of two deletes per file
+    @Override
+    public void deleteAll(Collection<String> ids) {
+        if (ids.isEmpty()) return;
+        List<ObjectId> objectIds = ids.stream().map(ObjectId::new).toList();
+        mongoTemplate.getCollection("fs.files").deleteMany(Filters.in("_id", objectIds));
+        mongoTemplate.getCollection("fs.chunks").deleteMany(Filters.in("files_id", objectIds));
+    }
+
+    GridFSFile find(String id) {
+        return gridFsTemplate.findOne(new Query(Criteria.where("_id").is(new ObjectId(id))));
+    }
+}
@@ -0,0 +1,49 @@
+package com.teletronics.storage.service;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.data.mongodb.gridfs.GridFsOperations;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * GridFS content that can be opened more than once, which Spring needs to serve byte ranges.
+ * Each call opens a new download stream; skipping on that stream jumps straight to the chunk
+ * holding the target offset, so a range never reads the chunks before it.
+ */
+public class GridFsContentResource extends AbstractResource {
+
+    private final GridFsOperations operations;
+    private final GridFSFile file;
+
+    public GridFsContentResource(GridFsOperations operations, GridFSFile file) {
+        this.operations = operations;
+        this.file = file;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return operations.getResource(file).getInputStream();
+    }
+
+    @Override
+    public long contentLength() {
+        return file.getLength();
+    }
+
+    @Override
+    public String getFilename() {
+        return file.getFilename();
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public String getDescription() {
+        return "GridFS file [" + file.getObjectId() + "]";
+    }
+}
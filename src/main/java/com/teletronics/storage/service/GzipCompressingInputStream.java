@@ -0,0 +1,87 @@
+package com.teletronics.storage.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads as the gzip encoding of its source, compressing one buffer at a time, so content can be
+ * compressed on its way into storage without holding more than a buffer of it.
+ */
+class GzipCompressingInputStream extends InputStream {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream source;
+    private final PendingBytes pending = new PendingBytes();
+    private final GZIPOutputStream gzip;
+    private final byte[] readBuffer = new byte[BUFFER_SIZE];
+    private int position;
+    private boolean finished;
+    private long deflateNanos;
+
+    GzipCompressingInputStream(InputStream source, int level) throws IOException {
+        this.source = source;
+        this.gzip = new GZIPOutputStream(pending, BUFFER_SIZE) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (position == pending.size()) {
+            if (finished) {
+                return -1;
+            }
+            pending.reset();
+            position = 0;
+            int n = source.read(readBuffer);
+            long start = System.nanoTime();
+            if (n == -1) {
+                gzip.finish();
+                finished = true;
+            } else {
+                gzip.write(readBuffer, 0, n);
+            }
+            deflateNanos += System.nanoTime() - start;
+        }
+        int count = Math.min(len, pending.size() - position);
+        System.arraycopy(pending.buffer(), position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    // time spent compressing, apart from reading the source
+    long getDeflateNanos() {
+        return deflateNanos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            source.close();
+        } finally {
+            // ends the deflater, whose native memory is otherwise held until it is collected
+            gzip.close();
+        }
+    }
+
+    // compressed bytes not handed out yet, read in place instead of copied out with toByteArray()
+    private static class PendingBytes extends ByteArrayOutputStream {
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
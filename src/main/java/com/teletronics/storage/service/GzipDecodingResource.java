@@ -0,0 +1,48 @@
+package com.teletronics.storage.service;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Original bytes of gzip-stored content, decompressed while they are read. Opens again on every
+ * call, so Spring can still answer byte ranges (by decompressing up to the range start).
+ */
+public class GzipDecodingResource extends AbstractResource {
+
+    private final Resource stored;
+    private final long length;
+
+    public GzipDecodingResource(Resource stored, long length) {
+        this.stored = stored;
+        this.length = length;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new GZIPInputStream(stored.getInputStream(), 64 * 1024);
+    }
+
+    @Override
+    public long contentLength() {
+        return length;
+    }
+
+    @Override
+    public String getFilename() {
+        return stored.getFilename();
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public String getDescription() {
+        return "gzip-decoded " + stored.getDescription();
+    }
+}
@@ -0,0 +1,57 @@
+package com.teletronics.storage.service;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses gzip content one buffer at a time as buffers arrive, for readers that cannot block
+ * on a {@link java.util.zip.GZIPInputStream}. Only handles what {@link GzipCompressingInputStream}
+ * writes: a single member with the plain 10-byte header. The trailer is not checked, the content
+ * hashes are. Not thread-safe, one instance per stream.
+ */
+class GzipInflater {
+
+    // GZIPOutputStream writes no name, comment or extra field
+    private static final int HEADER_SIZE = 10;
+
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] out = new byte[64 * 1024];
+    private int headerRemaining = HEADER_SIZE;
+
+    List<DataBuffer> inflate(DataBuffer buffer, DataBufferFactory factory) {
+        try {
+            byte[] in = new byte[buffer.readableByteCount()];
+            buffer.read(in);
+            int offset = Math.min(headerRemaining, in.length);
+            headerRemaining -= offset;
+            if (inflater.finished() || offset == in.length) {
+                return List.of();
+            }
+            inflater.setInput(in, offset, in.length - offset);
+            List<DataBuffer> result = new ArrayList<>();
+            while (!inflater.finished() && !inflater.needsInput()) {
+                int n = inflater.inflate(out);
+                if (n == 0) {
+                    break;
+                }
+                result.add(factory.wrap(Arrays.copyOf(out, n)));
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Stored gzip content is corrupt", e);
+        } finally {
+            DataBufferUtils.release(buffer);
+        }
+    }
+
+    void end() {
+        inflater.end();
+    }
+}
@@ -0,0 +1,87 @@
+package com.teletronics.storage.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * Feeds every byte read to the MD5 digest and to the SHA-256 digest or the tree hash, and counts
+ * them, keeping the time spent in the digests apart from the time spent reading.
+ */
+class HashingInputStream extends FilterInputStream {
+
+    private final MessageDigest md5;
+    private final MessageDigest sha256;
+    private final TreeHasher.Digest tree;
+    private long byteCount;
+    private long digestNanos;
+
+    HashingInputStream(InputStream in, MessageDigest md5, MessageDigest sha256) {
+        this(in, md5, sha256, null);
+    }
+
+    // either digest of the whole content may be null
+    HashingInputStream(InputStream in, MessageDigest md5, MessageDigest sha256, TreeHasher.Digest tree) {
+        super(in);
+        this.md5 = md5;
+        this.sha256 = sha256;
+        this.tree = tree;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            long start = System.nanoTime();
+            md5.update((byte) b);
+            if (sha256 != null) sha256.update((byte) b);
+            if (tree != null) tree.update(new byte[]{(byte) b}, 0, 1);
+            digestNanos += System.nanoTime() - start;
+            byteCount++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            long start = System.nanoTime();
+            md5.update(b, off, n);
+            if (sha256 != null) sha256.update(b, off, n);
+            if (tree != null) tree.update(b, off, n);
+            digestNanos += System.nanoTime() - start;
+            byteCount += n;
+        }
+        return n;
+    }
+
+    // skipped bytes still have to go through the digests
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(8192, Math.max(n, 1))];
+        long remaining = n;
+        while (remaining > 0) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                break;
+            }
+            remaining -= read;
+        }
+        return n - remaining;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    long getByteCount() {
+        return byteCount;
+    }
+
+    long getDigestNanos() {
+        return digestNanos;
+    }
+}
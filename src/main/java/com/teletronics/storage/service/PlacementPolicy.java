@@ -0,0 +1,49 @@
+package com.teletronics.storage.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.util.List;
+
+/**
+ * Chooses the backend for new content: large files and the configured media types go to the
+ * filesystem tier when it is enabled, everything else to GridFS.
+ */
+@Component
+public class PlacementPolicy {
+
+    private final boolean filesystemEnabled;
+    private final long filesystemMinSize;
+    private final List<MimeType> filesystemTypes;
+
+    public PlacementPolicy(@Value("${app.storage.filesystem.enabled:false}") boolean filesystemEnabled,
+                           @Value("${app.storage.placement.filesystem-min-size:16MB}") DataSize filesystemMinSize,
+                           @Value("${app.storage.placement.filesystem-types:}") List<String> filesystemTypes) {
+        this.filesystemEnabled = filesystemEnabled;
+        this.filesystemMinSize = filesystemMinSize.toBytes();
+        this.filesystemTypes = filesystemTypes.stream()
+                .filter(type -> !type.isBlank())
+                .map(MimeTypeUtils::parseMimeType)
+                .toList();
+    }
+
+    /**
+     * @param sizeHint declared size of the upload, or -1 when unknown
+     * @param contentType type detected from the leading bytes
+     */
+    public String place(long sizeHint, String contentType) {
+        if (!filesystemEnabled) {
+            return GridFsBackend.NAME;
+        }
+        if (sizeHint >= filesystemMinSize) {
+            return FileSystemBackend.NAME;
+        }
+        MimeType type = MimeTypeUtils.parseMimeType(contentType);
+        return filesystemTypes.stream().anyMatch(pattern -> pattern.includes(type))
+                ? FileSystemBackend.NAME
+                : GridFsBackend.NAME;
+    }
+}
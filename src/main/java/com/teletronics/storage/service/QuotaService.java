@@ -0,0 +1,101 @@
+package com.teletronics.storage.service;
+
+import com.teletronics.storage.dto.StorageUsage;
+import com.teletronics.storage.exception.QuotaExceededException;
+import com.teletronics.storage.model.UserUsage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Instant;
+
+/**
+ * Per-user quotas on bytes and file count, checked against the user's {@link UserUsage}
+ * document. Uploads are checked twice: early from the declared size, before any content is
+ * read, and when the file is registered, with a conditional {@code $inc} that only applies
+ * while the usage stays within the limits, so concurrent uploads cannot overshoot together.
+ */
+@Service
+public class QuotaService {
+
+    private final MongoTemplate mongoTemplate;
+    private final long defaultMaxBytes;
+    private final long defaultMaxFiles;
+
+    public QuotaService(MongoTemplate mongoTemplate,
+                        @Value("${app.quota.max-bytes:-1B}") DataSize defaultMaxBytes,
+                        @Value("${app.quota.max-files:-1}") long defaultMaxFiles) {
+        this.mongoTemplate = mongoTemplate;
+        this.defaultMaxBytes = defaultMaxBytes.toBytes();
+        this.defaultMaxFiles = defaultMaxFiles;
+    }
+
+    public StorageUsage usage(String userId) {
+        UserUsage usage = mongoTemplate.findById(userId, UserUsage.class);
+        if (usage == null) {
+            return new StorageUsage(userId, 0, 0, defaultMaxBytes, defaultMaxFiles);
+        }
+        return new StorageUsage(userId, usage.getBytes(), usage.getFiles(),
+                usage.getMaxBytes() != null ? usage.getMaxBytes() : defaultMaxBytes,
+                usage.getMaxFiles() != null ? usage.getMaxFiles() : defaultMaxFiles);
+    }
+
+    /**
+     * Early check of one more file of {@code declaredSize} bytes (-1 when unknown). Returns the
+     * usage it was checked against.
+     */
+    public StorageUsage checkUpload(String userId, long declaredSize) {
+        StorageUsage usage = usage(userId);
+        if (usage.remainingFiles() < 1) {
+            throw new QuotaExceededException("File quota of " + usage.getMaxFiles() + " files reached");
+        }
+        if (declaredSize > usage.remainingBytes()) {
+            throw exceeded(usage, declaredSize);
+        }
+        return usage;
+    }
+
+    /**
+     * Adds the files to the user's usage if the result stays within the quota, otherwise
+     * changes nothing and throws.
+     */
+    public void charge(String userId, long bytes, long files) {
+        StorageUsage usage = usage(userId);
+        if (bytes > usage.remainingBytes() || files > usage.remainingFiles()) {
+            throw exceeded(usage, bytes);
+        }
+        Criteria withinQuota = Criteria.where("_id").is(userId);
+        if (usage.getMaxBytes() >= 0) withinQuota.and("bytes").lte(usage.getMaxBytes() - bytes);
+        if (usage.getMaxFiles() >= 0) withinQuota.and("files").lte(usage.getMaxFiles() - files);
+        try {
+            // creates the document on a user's first file, which has no earlier files to backfill;
+            // when it exists but is over the limit the upsert's insert collides with it
+            mongoTemplate.upsert(Query.query(withinQuota),
+                    new Update().inc("bytes", bytes).inc("files", files).set("updatedAt", Instant.now())
+                            .setOnInsert("migrated", true),
+                    UserUsage.class);
+        } catch (DuplicateKeyException e) {
+            throw exceeded(usage(userId), bytes);
+        }
+    }
+
+    public void release(String userId, long bytes, long files) {
+        if (files == 0) return;
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(userId)),
+                new Update().inc("bytes", -bytes).inc("files", -files).set("updatedAt", Instant.now()),
+                UserUsage.class);
+    }
+
+    private static QuotaExceededException exceeded(StorageUsage usage, long bytes) {
+        if (usage.remainingFiles() < 1) {
+            return new QuotaExceededException("File quota of " + usage.getMaxFiles() + " files reached");
+        }
+        return new QuotaExceededException("Storage quota exceeded: " + bytes + " bytes requested, "
+                + usage.remainingBytes() + " of " + usage.getMaxBytes() + " bytes left");
+    }
+}
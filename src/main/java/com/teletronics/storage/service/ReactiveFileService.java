@@ -0,0 +1,251 @@
+package com.teletronics.storage.service;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.teletronics.storage.dto.CursorPage;
+import com.teletronics.storage.dto.PublicFile;
+import com.teletronics.storage.dto.StorageUsage;
+import com.teletronics.storage.model.StoredFile;
+import com.teletronics.storage.model.Visibility;
+import org.apache.tika.Tika;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsResource;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking counterpart of {@link FileService} for the reactive stack. Content moves through
+ * the reactive GridFS driver with backpressure; the metadata rules (duplicate checks, visibility,
+ * token links) are still those of {@link FileService}, run on the bounded elastic scheduler.
+ */
+@Service
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveFileService {
+
+    private static final int PUBLIC_BATCH_SIZE = 500;
+
+    private final FileService fileService;
+    private final StorageService storageService;
+    private final ReactiveGridFsTemplate gridFsTemplate;
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final TreeHasher treeHasher;
+    private final Tika tika = new Tika();
+
+    public ReactiveFileService(FileService fileService, StorageService storageService,
+                               ReactiveGridFsTemplate gridFsTemplate, ReactiveMongoTemplate mongoTemplate,
+                               TreeHasher treeHasher) {
+        this.fileService = fileService;
+        this.storageService = storageService;
+        this.gridFsTemplate = gridFsTemplate;
+        this.mongoTemplate = mongoTemplate;
+        this.treeHasher = treeHasher;
+    }
+
+    /**
+     * Writes the body to GridFS as it arrives: a buffer is only requested once the previous ones
+     * were written, so a fast client cannot fill the heap. Type detection and hashing run on the
+     * buffers on their way through. Content always lands in GridFS uncompressed.
+     *
+     * @param declaredSize size announced by the client, -1 when unknown; checked against the quota
+     */
+    public Mono<StoredFile> upload(Flux<DataBuffer> body, String filename, String declaredContentType,
+                                   long declaredSize, String userId, String visibilityStr, List<String> tags) {
+        return upload(body, filename, declaredContentType, declaredSize, userId, visibilityStr, tags, null);
+    }
+
+    /**
+     * Upload with the SHA-256 the client computed, as on the servlet stack: the body is only
+     * subscribed to when the announced hash did not settle the upload.
+     */
+    public Mono<StoredFile> upload(Flux<DataBuffer> body, String filename, String declaredContentType,
+                                   long declaredSize, String userId, String visibilityStr, List<String> tags,
+                                   String contentHash) {
+        List<String> fileTags = tags == null ? List.of() : tags;
+        return blocking(() -> fileService.validateUpload(userId, filename, visibilityStr, fileTags, declaredSize))
+                .flatMap(visibility -> {
+                    String sha256 = contentHash != null ? FileService.parseContentHash(contentHash) : null;
+                    Mono<StoredFile> linked = sha256 != null
+                            ? blocking(() -> fileService.linkKnownContent(sha256, filename, declaredContentType,
+                                    userId, visibility, fileTags))
+                            : Mono.empty();
+                    return linked.switchIfEmpty(Mono.defer(() ->
+                            store(body, filename, declaredContentType, userId, visibility, fileTags)
+                                    .flatMap(content -> blocking(() -> {
+                                        fileService.checkContentHash(content, sha256);
+                                        return fileService.register(content, filename, declaredContentType,
+                                                userId, visibility, fileTags);
+                                    }))));
+                });
+    }
+
+    private Mono<StoredContent> store(Flux<DataBuffer> body, String filename, String declaredContentType,
+                                      String userId, Visibility visibility, List<String> tags) {
+        MessageDigest md5 = newDigest("MD5");
+        MessageDigest sha256 = treeHasher.isEnabled() ? null : newDigest("SHA-256");
+        // leaves are hashed in line, the event loop cannot wait for the pool
+        TreeHasher.Digest tree = treeHasher.isEnabled() ? treeHasher.newDigest(false) : null;
+        AtomicLong length = new AtomicLong();
+        String[] detectedType = {null};
+
+        Flux<DataBuffer> content = body
+                // Tika only sees the first buffer, which is the leading bytes it sniffs anyway
+                .switchOnFirst((first, buffers) -> {
+                    if (first.hasValue()) {
+                        DataBuffer buffer = first.get();
+                        byte[] prefix = new byte[buffer.readableByteCount()];
+                        buffer.toByteBuffer(buffer.readPosition(), ByteBuffer.wrap(prefix), 0, prefix.length);
+                        detectedType[0] = tika.detect(prefix);
+                    }
+                    return buffers;
+                })
+                .doOnNext(buffer -> {
+                    try (DataBuffer.ByteBufferIterator it = buffer.readableByteBuffers()) {
+                        it.forEachRemaining(bytes -> {
+                            md5.update(bytes.duplicate());
+                            if (sha256 != null) sha256.update(bytes.duplicate());
+                            if (tree != null) tree.update(bytes.duplicate());
+                        });
+                    }
+                    length.addAndGet(buffer.readableByteCount());
+                });
+
+        Document metadata = fileService.gridFsMetadata(userId, visibility, tags);
+        return gridFsTemplate.store(content, filename, declaredContentType, metadata)
+                .flatMap(id -> {
+                    String hash = HexFormat.of().formatHex(md5.digest());
+                    String contentSha256 = sha256 != null ? HexFormat.of().formatHex(sha256.digest()) : null;
+                    String treeHash;
+                    try {
+                        treeHash = tree != null ? tree.finish() : null;
+                    } catch (IOException e) {
+                        return Mono.error(e);
+                    }
+                    String type = detectedType[0] != null ? detectedType[0] : "application/octet-stream";
+                    Update update = new Update().set("metadata.contentType", type);
+                    StorageService.contentHashes(hash, contentSha256, treeHash)
+                            .forEach((key, value) -> update.set("metadata." + key, value));
+                    return mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(id)), update, "fs.files")
+                            .thenReturn(new StoredContent(GridFsBackend.NAME, id.toHexString(), hash, contentSha256,
+                                    type, length.get(), null, length.get(), treeHash,
+                                    tree != null ? tree.leafDigests() : null));
+                });
+    }
+
+    public Mono<StoredFile> findByToken(String token) {
+        return mongoTemplate.findOne(Query.query(Criteria.where("publicToken").is(token)), StoredFile.class)
+                .switchIfEmpty(Mono.error(new NoSuchElementException("Invalid or expired download token")));
+    }
+
+    /**
+     * Local file of content on the filesystem tier, null for GridFS content.
+     */
+    public Path localPath(StoredFile file) {
+        return storageService.localPath(file.getBackend(), file.getGridFsId());
+    }
+
+    public Mono<GridFSFile> gridFsFile(StoredFile file) {
+        return gridFsTemplate.findOne(Query.query(Criteria.where("_id").is(new ObjectId(file.getGridFsId()))))
+                .switchIfEmpty(Mono.error(new NoSuchElementException("File content not found")));
+    }
+
+    /**
+     * Content as stored, read chunk by chunk as the client takes it.
+     */
+    public Flux<DataBuffer> content(GridFSFile file) {
+        return gridFsTemplate.getResource(file).flatMapMany(ReactiveGridFsResource::getDownloadStream);
+    }
+
+    /**
+     * Original bytes of gzip-stored content, inflated buffer by buffer as the stored ones arrive.
+     */
+    public Flux<DataBuffer> decompress(Flux<DataBuffer> stored, DataBufferFactory bufferFactory) {
+        return Flux.using(GzipInflater::new,
+                inflater -> stored.concatMapIterable(buffer -> inflater.inflate(buffer, bufferFactory)),
+                GzipInflater::end);
+    }
+
+    public Mono<Page<StoredFile>> listFiles(String userId, String visibility, String tag, Pageable pageable) {
+        return blocking(() -> fileService.listFiles(userId, visibility, tag, pageable));
+    }
+
+    public Mono<CursorPage<StoredFile>> listFilesAfter(String userId, String visibility, String tag, String sortBy,
+                                                        Sort.Direction direction, String cursor, int size) {
+        return blocking(() -> fileService.listFilesAfter(userId, visibility, tag, sortBy, direction, cursor, size));
+    }
+
+    /**
+     * All public files, emitted as the MongoDB cursor is read and only as fast as they are written out.
+     */
+    public Flux<PublicFile> streamPublic() {
+        Query query = Query.query(Criteria.where("visibility").is(Visibility.PUBLIC))
+                .with(Sort.by("filename", "_id"))
+                .cursorBatchSize(PUBLIC_BATCH_SIZE);
+        query.fields().include(PublicFile.FIELDS);
+        return mongoTemplate.find(query, StoredFile.class).map(PublicFile::new);
+    }
+
+    public Mono<CursorPage<PublicFile>> listPublicAfter(String cursor, int limit) {
+        return blocking(() -> fileService.listPublicAfter(cursor, limit));
+    }
+
+    public Mono<StorageUsage> getUsage(String userId) {
+        return blocking(() -> fileService.getUsage(userId));
+    }
+
+    public Mono<StoredFile> getFile(String id, String userId) {
+        return blocking(() -> fileService.getFile(id, userId));
+    }
+
+    public Mono<Void> delete(String id, String userId) {
+        return blocking(() -> {
+            fileService.delete(id, userId);
+            return null;
+        });
+    }
+
+    public Mono<StoredFile> renameFile(String fileId, String userId, String newFilename) {
+        return blocking(() -> fileService.renameFile(fileId, userId, newFilename));
+    }
+
+    public Mono<StoredFile> copyFile(String fileId, String userId, String targetUserId, String filename,
+                                     String visibility, List<String> tags) {
+        return blocking(() -> fileService.copyFile(fileId, userId, targetUserId, filename, visibility, tags));
+    }
+
+    // metadata operations reuse the blocking rules of FileService off the event loop
+    private static <T> Mono<T> blocking(Callable<T> call) {
+        return Mono.fromCallable(call).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " not available", e);
+        }
+    }
+}
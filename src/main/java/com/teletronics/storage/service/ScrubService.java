@@ -0,0 +1,502 @@
+package com.teletronics.storage.service;
+
+import com.mongodb.MongoGridFSException;
+import com.teletronics.storage.model.Blob;
+import com.teletronics.storage.model.ScrubState;
+import com.teletronics.storage.model.StoredFile;
+import com.teletronics.storage.model.UploadSession;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Background integrity scrubber. A pass walks the blobs, the files, the content held by each
+ * backend, the expired upload sessions and the GridFS chunks in id order, one batch at a time,
+ * and checkpoints its position and counts in {@code scrub_state} after every batch, so a
+ * restarted instance resumes where the pass stopped. Expired upload sessions are removed with
+ * their chunks. Content and chunks nothing refers to, and blobs no file refers to, are removed
+ * once they are older than {@code app.scrub.grace-period}; stored content is read back at
+ * {@code app.scrub.verify-bytes-per-second} and checked against its hashes, each blob again
+ * once {@code app.scrub.reverify-after} has passed since it last matched. One instance scrubs
+ * at a time, under a lease on the state document; {@link ScrubWorker} drives the passes.
+ */
+@Service
+public class ScrubService {
+
+    public static final String BLOBS = "blobs";
+    public static final String FILES = "files";
+    // followed by the backend name
+    public static final String CONTENT = "content:";
+    public static final String SESSIONS = "sessions";
+    public static final String CHUNKS = "chunks";
+
+    public static final String ORPHAN_CONTENT = "orphan-content";
+    public static final String ORPHAN_CHUNKS = "orphan-chunks";
+    public static final String ORPHAN_BLOB = "orphan-blob";
+    public static final String EXPIRED_SESSION = "expired-session";
+    public static final String MISSING_CONTENT = "missing-content";
+    public static final String MISSING_BLOB = "missing-blob";
+    public static final String CORRUPT = "corrupt";
+
+    public static final String CHECKED = "checked";
+    public static final String VERIFIED_BYTES = "verified-bytes";
+    public static final String RECLAIMED_BYTES = "reclaimed-bytes";
+
+    private static final Logger log = LoggerFactory.getLogger(ScrubService.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final StorageService storageService;
+    private final TreeHasher treeHasher;
+    private final BlobService blobService;
+    private final UploadSessionService uploadSessionService;
+    private final StorageMetrics metrics;
+    private final boolean enabled;
+    private final Duration interval;
+    private final int batchSize;
+    private final Duration gracePeriod;
+    private final Duration lease;
+    private final boolean verify;
+    private final Duration reverifyAfter;
+    private final long verifyBytesPerSecond;
+    private final String owner = UUID.randomUUID().toString();
+
+    // only touched by the worker thread
+    private boolean stateEnsured;
+    private long leaseRenewedNanos;
+    private long paceStartNanos;
+    private long pacedBytes;
+
+    public ScrubService(MongoTemplate mongoTemplate, StorageService storageService, TreeHasher treeHasher,
+                        BlobService blobService, UploadSessionService uploadSessionService, StorageMetrics metrics,
+                        @Value("${app.scrub.enabled:true}") boolean enabled,
+                        @Value("${app.scrub.interval:24h}") Duration interval,
+                        @Value("${app.scrub.batch-size:100}") int batchSize,
+                        @Value("${app.scrub.grace-period:24h}") Duration gracePeriod,
+                        @Value("${app.scrub.lease:5m}") Duration lease,
+                        @Value("${app.scrub.verify:true}") boolean verify,
+                        @Value("${app.scrub.reverify-after:30d}") Duration reverifyAfter,
+                        @Value("${app.scrub.verify-bytes-per-second:16MB}") DataSize verifyBytesPerSecond) {
+        this.mongoTemplate = mongoTemplate;
+        this.storageService = storageService;
+        this.treeHasher = treeHasher;
+        this.blobService = blobService;
+        this.uploadSessionService = uploadSessionService;
+        this.metrics = metrics;
+        this.enabled = enabled;
+        this.interval = interval;
+        this.batchSize = batchSize;
+        this.gracePeriod = gracePeriod;
+        this.lease = lease;
+        this.verify = verify;
+        this.reverifyAfter = reverifyAfter;
+        this.verifyBytesPerSecond = verifyBytesPerSecond.toBytes();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public ScrubState status() {
+        ensureState();
+        return mongoTemplate.findById(ScrubState.ID, ScrubState.class);
+    }
+
+    /**
+     * Asks for a pass to start now, or right after the one that is running.
+     */
+    public ScrubState request() {
+        Instant now = Instant.now();
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(ScrubState.ID)),
+                new Update().set("requestedAt", now).setOnInsert("nextPassAt", now.plus(interval)), ScrubState.class);
+        return status();
+    }
+
+    // the first pass of a new deployment waits an interval, or until one is requested
+    private void ensureState() {
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(ScrubState.ID)),
+                new Update().setOnInsert("nextPassAt", Instant.now().plus(interval)), ScrubState.class);
+    }
+
+    /**
+     * Runs one batch of the current pass, starting a pass if one is due. Returns false when there
+     * was nothing to do or another instance holds the lease.
+     */
+    public boolean step() throws IOException {
+        if (!stateEnsured) {
+            ensureState();
+            stateEnsured = true;
+        }
+        Instant now = Instant.now();
+        ScrubState state = claim(now);
+        if (state == null) {
+            return false;
+        }
+        leaseRenewedNanos = System.nanoTime();
+        if (state.getPhase() == null) {
+            state = mongoTemplate.findAndModify(owned(),
+                    new Update().set("phase", phases().get(0)).unset("cursor").set("passStartedAt", now)
+                            .set("counts", new HashMap<>()).unset("requestedAt"),
+                    FindAndModifyOptions.options().returnNew(true), ScrubState.class);
+            if (state == null) return false;
+            log.info("Scrub pass started");
+        }
+
+        Map<String, Long> counts = new HashMap<>();
+        String phase = state.getPhase();
+        String cursor;
+        if (BLOBS.equals(phase)) cursor = scrubBlobs(state.getCursor(), counts);
+        else if (FILES.equals(phase)) cursor = scrubFiles(state.getCursor(), counts);
+        else if (SESSIONS.equals(phase)) cursor = expireSessions(state.getCursor(), counts);
+        else if (CHUNKS.equals(phase)) cursor = scrubChunks(state.getCursor(), counts);
+        else if (phases().contains(phase)) cursor = scrubContent(phase.substring(CONTENT.length()), state.getCursor(), counts);
+        // a backend that is no longer configured
+        else cursor = null;
+        metrics.scrubChecked(phase, counts.getOrDefault(CHECKED, 0L).intValue());
+        checkpoint(state, cursor, counts);
+        return true;
+    }
+
+    // the lease is free or already ours, and a pass is running or due
+    private ScrubState claim(Instant now) {
+        Criteria free = new Criteria().orOperator(
+                Criteria.where("lockedUntil").is(null),
+                Criteria.where("lockedUntil").lte(now),
+                Criteria.where("owner").is(owner));
+        Criteria due = new Criteria().orOperator(
+                Criteria.where("phase").ne(null),
+                Criteria.where("nextPassAt").lte(now),
+                Criteria.where("requestedAt").ne(null));
+        return mongoTemplate.findAndModify(
+                Query.query(Criteria.where("_id").is(ScrubState.ID).andOperator(free, due)),
+                new Update().set("owner", owner).set("lockedUntil", now.plus(lease)),
+                FindAndModifyOptions.options().returnNew(true),
+                ScrubState.class);
+    }
+
+    private Query owned() {
+        return Query.query(Criteria.where("_id").is(ScrubState.ID).and("owner").is(owner));
+    }
+
+    private List<String> phases() {
+        List<String> phases = new ArrayList<>(List.of(BLOBS, FILES));
+        storageService.backendNames().stream().sorted().forEach(backend -> phases.add(CONTENT + backend));
+        phases.add(SESSIONS);
+        phases.add(CHUNKS);
+        return phases;
+    }
+
+    // records the batch; a null cursor means the phase is done
+    private void checkpoint(ScrubState state, String cursor, Map<String, Long> counts) {
+        Instant now = Instant.now();
+        Update update = new Update();
+        if (cursor != null) {
+            update.set("cursor", cursor).set("lockedUntil", now.plus(lease));
+            counts.forEach((key, n) -> update.inc("counts." + key, n));
+            mongoTemplate.updateFirst(owned(), update, ScrubState.class);
+            return;
+        }
+        List<String> phases = phases();
+        int next = phases.indexOf(state.getPhase()) + 1;
+        if (next > 0 && next < phases.size()) {
+            update.set("phase", phases.get(next)).unset("cursor").set("lockedUntil", now.plus(lease));
+            counts.forEach((key, n) -> update.inc("counts." + key, n));
+            mongoTemplate.updateFirst(owned(), update, ScrubState.class);
+            return;
+        }
+
+        Map<String, Long> total = new HashMap<>(state.getCounts() != null ? state.getCounts() : Map.of());
+        counts.forEach((key, n) -> total.merge(key, n, Long::sum));
+        update.set("lastPass", new ScrubState.Pass(state.getPassStartedAt(), now, total))
+                .inc("passes", 1)
+                .unset("phase").unset("cursor").unset("passStartedAt").set("counts", new HashMap<>())
+                .set("nextPassAt", now.plus(interval))
+                .unset("owner").unset("lockedUntil");
+        mongoTemplate.updateFirst(owned(), update, ScrubState.class);
+        metrics.scrubPassFinished(Duration.between(state.getPassStartedAt(), now).toNanos());
+        log.info("Scrub pass finished: {}", total);
+    }
+
+    private String scrubBlobs(String cursor, Map<String, Long> counts) throws InterruptedIOException {
+        Query query = new Query().with(Sort.by("_id")).limit(batchSize);
+        if (cursor != null) query.addCriteria(Criteria.where("_id").gt(cursor));
+        List<Blob> blobs = mongoTemplate.find(BlobService.withoutLeaves(query), Blob.class);
+        for (Blob blob : blobs) {
+            Query referencing = Query.query(Criteria.where("blobId").is(blob.getId()));
+            referencing.fields().include("treeHash");
+            StoredFile file = mongoTemplate.findOne(referencing, StoredFile.class);
+            if (file == null) {
+                collectUnreferenced(blob, counts);
+                continue;
+            }
+            if (blob.getUnreferencedSince() != null) {
+                mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(blob.getId())),
+                        new Update().unset("unreferencedSince"), Blob.class);
+            }
+            boolean reverify = verify && (blob.getVerifiedAt() == null
+                    || blob.getVerifiedAt().isBefore(Instant.now().minus(reverifyAfter)));
+            boolean treeHashed = file.getTreeHash() != null;
+            byte[] leaves = reverify && treeHashed ? blobService.leafDigests(blob.getId()) : null;
+            String problem = check(blob.getBackend(), blob.getGridFsId(), blob.getCompression(), blob.getSize(),
+                    blob.getMd5(), blob.getId(), treeHashed, leaves, reverify, counts);
+            if (problem == null) {
+                if (reverify) {
+                    mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(blob.getId())),
+                            new Update().set("verifiedAt", Instant.now()), Blob.class);
+                }
+            // released with its last file while it was being read
+            } else if (mongoTemplate.exists(Query.query(Criteria.where("_id").is(blob.getId())), Blob.class)) {
+                finding(problem, "blob " + blob.getId(), counts);
+                markUnverified(Criteria.where("blobId").is(blob.getId()));
+            }
+        }
+        add(counts, CHECKED, blobs.size());
+        return blobs.size() < batchSize ? null : blobs.get(blobs.size() - 1).getId();
+    }
+
+    // noted on one pass and removed on a later one, provided no reference was taken in between
+    // (the count is unchanged) and the grace period is over; a leaked reference never frees it
+    private void collectUnreferenced(Blob blob, Map<String, Long> counts) {
+        Criteria unchanged = Criteria.where("_id").is(blob.getId()).and("refCount").is(blob.getRefCount());
+        if (blob.getUnreferencedSince() == null) {
+            mongoTemplate.updateFirst(Query.query(unchanged.and("unreferencedSince").is(null)),
+                    new Update().set("unreferencedSince", Instant.now()), Blob.class);
+            return;
+        }
+        if (blob.getUnreferencedSince().isAfter(Instant.now().minus(gracePeriod))) {
+            return;
+        }
+        boolean removed = mongoTemplate.remove(
+                Query.query(unchanged.and("unreferencedSince").is(blob.getUnreferencedSince())), Blob.class)
+                .getDeletedCount() == 1;
+        if (removed) {
+            storageService.delete(blob.getBackend(), blob.getGridFsId());
+            finding(ORPHAN_BLOB, "blob " + blob.getId(), counts);
+            reclaimed(blob.getStoredSize(), counts);
+        }
+    }
+
+    private String scrubFiles(String cursor, Map<String, Long> counts) throws InterruptedIOException {
+        Query query = new Query().with(Sort.by("_id")).limit(batchSize);
+        if (cursor != null) query.addCriteria(Criteria.where("_id").gt(cursor));
+        query.fields().include("blobId", "backend", "gridFsId", "compression", "size", "hash");
+        List<StoredFile> files = mongoTemplate.find(query, StoredFile.class);
+
+        Set<String> blobIds = files.stream().map(StoredFile::getBlobId).filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+        Query existing = Query.query(Criteria.where("_id").in(blobIds));
+        existing.fields().include("_id");
+        Set<String> known = mongoTemplate.find(existing, Blob.class).stream().map(Blob::getId)
+                .collect(Collectors.toSet());
+
+        for (StoredFile file : files) {
+            String problem;
+            if (file.getBlobId() != null) {
+                problem = known.contains(file.getBlobId()) ? null : MISSING_BLOB;
+            } else if (file.getGridFsId() == null) {
+                problem = MISSING_CONTENT;
+            } else {
+                // files stored before blobs own their content, only the MD5 was recorded for it;
+                // they are few and no longer grow, so they are read back on every pass
+                problem = check(file.getBackend(), file.getGridFsId(), file.getCompression(), file.getSize(),
+                        file.getHash(), null, false, null, verify, counts);
+            }
+            // deleted while it was being checked
+            if (problem != null && mongoTemplate.exists(Query.query(Criteria.where("_id").is(file.getId())), StoredFile.class)) {
+                finding(problem, "file " + file.getId(), counts);
+                markUnverified(Criteria.where("_id").is(file.getId()));
+            }
+        }
+        add(counts, CHECKED, files.size());
+        return files.size() < batchSize ? null : files.get(files.size() - 1).getId();
+    }
+
+    private String scrubContent(String backend, String cursor, Map<String, Long> counts) throws IOException {
+        List<StorageBackend.Entry> entries = storageService.list(backend, cursor, batchSize);
+        for (StorageBackend.Entry entry : entries) {
+            if (isRecent(entry.id()) || isReferenced(entry.id())) continue;
+            storageService.delete(backend, entry.id());
+            finding(ORPHAN_CONTENT, backend + " " + entry.id(), counts);
+            reclaimed(entry.size(), counts);
+        }
+        add(counts, CHECKED, entries.size());
+        return entries.size() < batchSize ? null : entries.get(entries.size() - 1).id();
+    }
+
+    // resumable uploads past their expiry go with their chunks, whichever parts they received;
+    // one a part or commit is still at work on is left for the next pass
+    private String expireSessions(String cursor, Map<String, Long> counts) {
+        List<UploadSession> sessions = uploadSessionService.expired(cursor, batchSize);
+        for (UploadSession session : sessions) {
+            if (uploadSessionService.expire(session)) {
+                finding(EXPIRED_SESSION, "session " + session.getId(), counts);
+            }
+        }
+        add(counts, CHECKED, sessions.size());
+        return sessions.size() < batchSize ? null : sessions.get(sessions.size() - 1).getId();
+    }
+
+    // chunks without an fs.files entry or an upload session: uploads that died
+    private String scrubChunks(String cursor, Map<String, Long> counts) {
+        List<String> ids = storageService.chunkedFileIds(cursor, batchSize);
+        for (String id : ids) {
+            if (isRecent(id) || storageService.findGridFsFileById(id) != null || hasUploadSession(id)) continue;
+            storageService.deleteChunks(id);
+            finding(ORPHAN_CHUNKS, "gridfs " + id, counts);
+        }
+        add(counts, CHECKED, ids.size());
+        return ids.size() < batchSize ? null : ids.get(ids.size() - 1);
+    }
+
+    // content ids are ObjectIds, so their age is known without reading anything; an upload in
+    // progress has not registered its content yet and must not be taken for an orphan
+    private boolean isRecent(String contentId) {
+        if (!ObjectId.isValid(contentId)) return true;
+        return new ObjectId(contentId).getDate().toInstant().isAfter(Instant.now().minus(gracePeriod));
+    }
+
+    private boolean isReferenced(String contentId) {
+        Query byContent = Query.query(Criteria.where("gridFsId").is(contentId));
+        return mongoTemplate.exists(byContent, Blob.class)
+                || mongoTemplate.exists(byContent, StoredFile.class)
+                || hasUploadSession(contentId);
+    }
+
+    private boolean hasUploadSession(String contentId) {
+        return mongoTemplate.exists(Query.query(Criteria.where("gridFsId").is(contentId)), UploadSession.class);
+    }
+
+    /**
+     * Null when the content is there and, if it is read back, matches its hashes; otherwise the
+     * finding.
+     *
+     * @param key SHA-256 or tree hash the content is keyed by, null when only the MD5 is known
+     * @param leaves the leaf digests recorded for tree-hashed content, if any; the read stops at
+     *               the first leaf that does not match
+     */
+    private String check(String backend, String contentId, String compression, long size, String md5, String key,
+                         boolean treeHashed, byte[] leaves, boolean readBack, Map<String, Long> counts)
+            throws InterruptedIOException {
+        Resource stored = storageService.open(backend, contentId);
+        if (stored == null) {
+            return MISSING_CONTENT;
+        }
+        if (!readBack) {
+            return null;
+        }
+        Resource content = CompressionPolicy.GZIP.equals(compression) ? new GzipDecodingResource(stored, size) : stored;
+        MessageDigest md5Digest = newDigest("MD5");
+        MessageDigest sha256 = key != null && !treeHashed ? newDigest("SHA-256") : null;
+        // hashed on this thread, the pool is left to uploads
+        TreeHasher.Digest tree = key != null && treeHashed ? treeHasher.newDigest(false).expecting(leaves) : null;
+        try (HashingInputStream in = new HashingInputStream(content.getInputStream(), md5Digest, sha256, tree)) {
+            byte[] buffer = new byte[StorageService.CHUNK_SIZE];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                pace(n);
+                if (tree != null && tree.mismatchedLeaf() >= 0) break;
+            }
+            add(counts, VERIFIED_BYTES, in.getByteCount());
+            metrics.scrubVerified(in.getByteCount());
+            String actualKey = tree != null ? tree.finish()
+                    : sha256 != null ? HexFormat.of().formatHex(sha256.digest()) : null;
+            if (tree != null && tree.mismatchedLeaf() >= 0) {
+                log.warn("Stored content {} {} differs from its upload from byte {}", backend, contentId,
+                        (long) tree.mismatchedLeaf() * TreeHasher.LEAF_SIZE);
+                return CORRUPT;
+            }
+            boolean matches = in.getByteCount() == size
+                    && (md5 == null || md5.equals(HexFormat.of().formatHex(md5Digest.digest())))
+                    && (key == null || key.equals(actualKey));
+            return matches ? null : CORRUPT;
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException | MongoGridFSException e) {
+            // a truncated gzip stream, a missing chunk
+            log.warn("Stored content {} {} is unreadable: {}", backend, contentId, e.getMessage());
+            return CORRUPT;
+        }
+    }
+
+    // files whose bytes no longer match; the metadata cache serves the old flag until its TTL
+    private void markUnverified(Criteria files) {
+        mongoTemplate.updateMulti(Query.query(files), new Update().set("checksumVerified", false), StoredFile.class);
+    }
+
+    // keeps verification reads at the configured rate without saving up idle time, and keeps
+    // the lease while a large content is read
+    private void pace(int bytes) throws InterruptedIOException {
+        long now = System.nanoTime();
+        if (now - leaseRenewedNanos > lease.toNanos() / 3) {
+            mongoTemplate.updateFirst(owned(), new Update().set("lockedUntil", Instant.now().plus(lease)),
+                    ScrubState.class);
+            leaseRenewedNanos = now;
+        }
+        if (verifyBytesPerSecond <= 0) return;
+        if (paceStartNanos + paceNanos(pacedBytes) - now < 0) {
+            paceStartNanos = now;
+            pacedBytes = 0;
+        }
+        pacedBytes += bytes;
+        long wait = paceStartNanos + paceNanos(pacedBytes) - now;
+        if (wait <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scrubbing");
+        }
+    }
+
+    private long paceNanos(long bytes) {
+        return (long) (bytes * 1e9 / verifyBytesPerSecond);
+    }
+
+    private void finding(String type, String target, Map<String, Long> counts) {
+        log.warn("Scrub found {}: {}", type, target);
+        add(counts, type, 1);
+        metrics.scrubFinding(type);
+    }
+
+    private void reclaimed(long bytes, Map<String, Long> counts) {
+        add(counts, RECLAIMED_BYTES, bytes);
+        metrics.scrubReclaimed(bytes);
+    }
+
+    private static void add(Map<String, Long> counts, String key, long n) {
+        counts.merge(key, n, Long::sum);
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " not available", e);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.teletronics.storage.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one thread running scrubber batches back to back while a pass is under way, and checking
+ * every poll interval whether one is due otherwise.
+ */
+@Component
+public class ScrubWorker implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(ScrubWorker.class);
+
+    private final ScrubService scrubService;
+    private final Duration pollInterval;
+    private volatile boolean running;
+    private ExecutorService executor;
+
+    public ScrubWorker(ScrubService scrubService,
+                       @Value("${app.scrub.poll-interval:30s}") Duration pollInterval) {
+        this.scrubService = scrubService;
+        this.pollInterval = pollInterval;
+    }
+
+    @Override
+    public void start() {
+        if (!scrubService.isEnabled()) {
+            return;
+        }
+        running = true;
+        executor = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("scrubber").daemon().factory());
+        executor.execute(this::scrub);
+    }
+
+    private void scrub() {
+        while (running) {
+            try {
+                if (!scrubService.step()) {
+                    Thread.sleep(pollInterval.toMillis());
+                }
+            } catch (InterruptedException | InterruptedIOException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                // the batch is not checkpointed, it runs again once the database or disk is back
+                log.warn("Scrubber error: {}", e.getMessage());
+                try {
+                    Thread.sleep(pollInterval.toMillis());
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+}
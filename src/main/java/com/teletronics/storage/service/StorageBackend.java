@@ -0,0 +1,54 @@
+package com.teletronics.storage.service;
+
+import org.bson.Document;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Where stored bytes live. Content is written once and addressed by the id the backend hands
+ * out; {@link StorageService} does the hashing and type detection around it.
+ */
+public interface StorageBackend {
+
+    /** A stored content and the bytes it takes in the backend. */
+    record Entry(String id, long size) {}
+
+    /** Name recorded on blobs and files, also used in the placement settings. */
+    String name();
+
+    /** Writes the stream to its end and returns the id of the new content. */
+    String store(InputStream content, String filename, String contentType, Document metadata) throws IOException;
+
+    /** Records attributes learned once the content has been read (hashes), if the backend keeps any. */
+    default void annotate(String id, Document attributes) {
+    }
+
+    /** The whole content as a resource that can be opened repeatedly, or null if it is gone. */
+    Resource open(String id);
+
+    /** {@code length} bytes starting at {@code offset}, without reading what comes before. */
+    InputStream openRange(String id, long offset, long length) throws IOException;
+
+    void delete(String id);
+
+    /**
+     * Up to {@code limit} stored contents following {@code after} (null from the start), in an
+     * order that stays the same between calls, so a walk over all content can resume.
+     */
+    List<Entry> list(String after, int limit) throws IOException;
+
+    /** Deletes several contents; backends that can should do it in one round trip. */
+    default void deleteAll(Collection<String> ids) {
+        ids.forEach(this::delete);
+    }
+
+    /** Local file holding the content, for zero-copy sends. Null when the content is not on local disk. */
+    default Path localPath(String id) {
+        return null;
+    }
+}
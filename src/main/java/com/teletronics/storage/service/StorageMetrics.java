@@ -0,0 +1,201 @@
+package com.teletronics.storage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Meters of the upload and download paths. Phase timers split where a request spends its time:
+ * <ul>
+ *   <li>{@code storage.upload.phase}: detect, hash, compress, write (backend write, including
+ *   reading the request body), duplicate-lookup, blob, metadata-save</li>
+ *   <li>{@code storage.download.phase}: token-lookup, open, stream</li>
+ * </ul>
+ * Post-ingest analysis attempts are timed apart in {@code storage.analysis}, by outcome, upload
+ * admission control reports under {@code storage.admission.*} and the integrity scrubber under
+ * {@code storage.scrub.*}.
+ */
+@Component
+public class StorageMetrics {
+
+    public static final String DETECT = "detect";
+    public static final String HASH = "hash";
+    public static final String COMPRESS = "compress";
+    public static final String WRITE = "write";
+    public static final String DUPLICATE_LOOKUP = "duplicate-lookup";
+    public static final String BLOB = "blob";
+    public static final String METADATA_SAVE = "metadata-save";
+
+    public static final String TOKEN_LOOKUP = "token-lookup";
+    public static final String OPEN = "open";
+    public static final String STREAM = "stream";
+
+    // bucket bounds of the bytes-per-request histograms
+    private static final double[] SIZE_BUCKETS = {
+            DataSize.ofKilobytes(1).toBytes(), DataSize.ofKilobytes(64).toBytes(), DataSize.ofMegabytes(1).toBytes(),
+            DataSize.ofMegabytes(16).toBytes(), DataSize.ofMegabytes(256).toBytes(), DataSize.ofGigabytes(1).toBytes(),
+            DataSize.ofGigabytes(16).toBytes()};
+
+    private final MeterRegistry registry;
+    private final AtomicInteger uploadsInFlight = new AtomicInteger();
+    private final AtomicInteger downloadsInFlight = new AtomicInteger();
+    private final AtomicInteger uploadsAdmitted = new AtomicInteger();
+    private final AtomicInteger uploadsQueued = new AtomicInteger();
+    private final DistributionSummary uploadBytes;
+    private final DistributionSummary downloadBytes;
+
+    public StorageMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        Gauge.builder("storage.uploads.active", uploadsInFlight, AtomicInteger::get)
+                .description("Uploads currently being read and stored").register(registry);
+        Gauge.builder("storage.downloads.active", downloadsInFlight, AtomicInteger::get)
+                .description("Downloads currently being served").register(registry);
+        Gauge.builder("storage.admission.admitted", uploadsAdmitted, AtomicInteger::get)
+                .description("Uploads holding an admission slot").register(registry);
+        Gauge.builder("storage.admission.queued", uploadsQueued, AtomicInteger::get)
+                .description("Uploads waiting for an admission slot").register(registry);
+        uploadBytes = DistributionSummary.builder("storage.upload.bytes").baseUnit("bytes")
+                .description("Original size of stored uploads").serviceLevelObjectives(SIZE_BUCKETS).register(registry);
+        downloadBytes = DistributionSummary.builder("storage.download.bytes").baseUnit("bytes")
+                .description("Body size of download responses").serviceLevelObjectives(SIZE_BUCKETS).register(registry);
+    }
+
+    public void recordUploadPhase(String phase, long nanos) {
+        phaseTimer("storage.upload.phase", phase).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public <T> T timeUploadPhase(String phase, Supplier<T> action) {
+        return time("storage.upload.phase", phase, action);
+    }
+
+    public void recordDownloadPhase(String phase, long nanos) {
+        phaseTimer("storage.download.phase", phase).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public <T> T timeDownloadPhase(String phase, Supplier<T> action) {
+        return time("storage.download.phase", phase, action);
+    }
+
+    /**
+     * One analysis attempt; {@code outcome} is done, retry or failed.
+     */
+    public void recordAnalysis(String outcome, long nanos) {
+        Timer.builder("storage.analysis").tag("outcome", outcome).register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * An upload rejected because the user already has a file with that name or content;
+     * {@code check} is filename, content or constraint (caught by the unique index).
+     */
+    public void duplicateRejected(String check) {
+        Counter.builder("storage.upload.duplicates").tag("check", check)
+                .description("Uploads rejected as duplicates").register(registry).increment();
+    }
+
+    /**
+     * An upload turned away by admission control; {@code reason} is user-limit (429),
+     * queue-full or queue-timeout (503).
+     */
+    public void uploadRejected(String reason) {
+        Counter.builder("storage.admission.rejected").tag("reason", reason)
+                .description("Uploads rejected by admission control").register(registry).increment();
+    }
+
+    public void uploadAdmitted() {
+        uploadsAdmitted.incrementAndGet();
+    }
+
+    public void uploadReleased() {
+        uploadsAdmitted.decrementAndGet();
+    }
+
+    public void admissionQueued() {
+        uploadsQueued.incrementAndGet();
+    }
+
+    public void admissionDequeued(long waitedNanos) {
+        uploadsQueued.decrementAndGet();
+        Timer.builder("storage.admission.wait").description("Time uploads spent queued for admission")
+                .register(registry).record(waitedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // time an upload was held back by the byte-rate limit
+    public void uploadThrottled(long nanos) {
+        Timer.builder("storage.admission.throttle").description("Time uploads were paced by the byte-rate limit")
+                .register(registry).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Something the scrubber found; {@code type} is one of the finding constants of ScrubService.
+     */
+    public void scrubFinding(String type) {
+        Counter.builder("storage.scrub.findings").tag("type", type)
+                .description("Problems found by the integrity scrubber").register(registry).increment();
+    }
+
+    public void scrubChecked(String phase, int items) {
+        Counter.builder("storage.scrub.checked").tag("phase", phase)
+                .description("Items the integrity scrubber has checked").register(registry).increment(items);
+    }
+
+    public void scrubVerified(long bytes) {
+        Counter.builder("storage.scrub.verified.bytes").baseUnit("bytes")
+                .description("Stored bytes read back and checked against their hashes").register(registry)
+                .increment(bytes);
+    }
+
+    public void scrubReclaimed(long bytes) {
+        Counter.builder("storage.scrub.reclaimed.bytes").baseUnit("bytes")
+                .description("Stored bytes freed by removing orphaned content").register(registry).increment(bytes);
+    }
+
+    public void scrubPassFinished(long nanos) {
+        Timer.builder("storage.scrub.pass").description("Duration of complete scrubber passes")
+                .register(registry).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void uploadStarted() {
+        uploadsInFlight.incrementAndGet();
+    }
+
+    public void uploadFinished(long bytes) {
+        uploadsInFlight.decrementAndGet();
+        if (bytes >= 0) {
+            uploadBytes.record(bytes);
+        }
+    }
+
+    public void downloadStarted() {
+        downloadsInFlight.incrementAndGet();
+    }
+
+    public void downloadFinished(long bytes) {
+        downloadsInFlight.decrementAndGet();
+        if (bytes >= 0) {
+            downloadBytes.record(bytes);
+        }
+    }
+
+    private <T> T time(String name, String phase, Supplier<T> action) {
+        long start = System.nanoTime();
+        try {
+            return action.get();
+        } finally {
+            phaseTimer(name, phase).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // the registry returns the existing meter for the same name and tags
+    private Timer phaseTimer(String name, String phase) {
+        return Timer.builder(name).tag("phase", phase).register(registry);
+    }
+}
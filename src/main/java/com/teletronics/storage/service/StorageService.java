@@ -1,42 +1,328 @@
 package com.teletronics.storage.service;
 
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.tika.Tika;
 import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexOperations;
 import org.springframework.data.mongodb.gridfs.GridFsTemplate;
 import org.springframework.data.mongodb.gridfs.GridFsOperations;
 import org.springframework.data.mongodb.gridfs.GridFsResource;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Criteria;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
-import java.security.DigestInputStream;
+import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
 import java.util.HexFormat;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 @Service
 public class StorageService {
 
+    // GridFS default chunk size, also large enough to hold the prefix Tika sniffs
+    public static final int CHUNK_SIZE = 255 * 1024;
+    private static final int READ_BUFFER_SIZE = CHUNK_SIZE;
+    // chunks sent per bulk write when parts are written directly to fs.chunks
+    private static final int CHUNK_BATCH = 4;
+    private static final String FILES_COLLECTION = "fs.files";
+    private static final String CHUNKS_COLLECTION = "fs.chunks";
+
     private final GridFsTemplate gridFsTemplate;
     private final GridFsOperations operations;
+    private final MongoTemplate mongoTemplate;
+    private final Map<String, StorageBackend> backends;
+    private final PlacementPolicy placementPolicy;
+    private final CompressionPolicy compressionPolicy;
+    private final StorageMetrics metrics;
+    private final UploadAdmission admission;
+    private final TreeHasher treeHasher;
+    private final Tika tika = new Tika();
+    private volatile boolean chunkIndexEnsured;
 
     @Autowired
-    public StorageService(GridFsTemplate gridFsTemplate, GridFsOperations operations) {
+    public StorageService(GridFsTemplate gridFsTemplate, GridFsOperations operations, MongoTemplate mongoTemplate,
+                          List<StorageBackend> backends, PlacementPolicy placementPolicy,
+                          CompressionPolicy compressionPolicy, StorageMetrics metrics, UploadAdmission admission,
+                          TreeHasher treeHasher) {
         this.gridFsTemplate = gridFsTemplate;
         this.operations = operations;
+        this.mongoTemplate = mongoTemplate;
+        this.backends = backends.stream().collect(Collectors.toMap(StorageBackend::name, Function.identity()));
+        this.placementPolicy = placementPolicy;
+        this.compressionPolicy = compressionPolicy;
+        this.metrics = metrics;
+        this.admission = admission;
+        this.treeHasher = treeHasher;
+    }
+
+    /**
+     * Streams the content into the backend chosen by the placement policy in a single pass: the
+     * content type is sniffed from the buffered leading bytes, compressible types are gzipped on
+     * the way, and the MD5 and SHA-256 (or tree hash) of the original bytes are computed while the
+     * content is written. The hashes are recorded once the stream is exhausted.
+     *
+     * @param sizeHint declared size of the content, or -1 when unknown
+     */
+    public StoredContent store(InputStream source, String filename, String contentType, long sizeHint,
+                               Document metadata) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(admission.throttle(source), READ_BUFFER_SIZE);
+        // Tika marks the stream and resets it, so the sniffed bytes are served again from the buffer
+        long detectStart = System.nanoTime();
+        String detectedType = tika.detect(in);
+        metrics.recordUploadPhase(StorageMetrics.DETECT, System.nanoTime() - detectStart);
+        metadata.put("contentType", detectedType);
+        StorageBackend backend = backend(placementPolicy.place(sizeHint, detectedType));
+        String compression = compressionPolicy.encoding(sizeHint, detectedType);
+        if (compression != null) {
+            metadata.put("compression", compression);
+        }
+
+        // hashes and length describe the original bytes, the backend receives the stored encoding
+        MessageDigest md5 = newDigest("MD5");
+        MessageDigest sha256 = treeHasher.isEnabled() ? null : newDigest("SHA-256");
+        TreeHasher.Digest tree = treeHasher.isEnabled() ? treeHasher.newDigest(true) : null;
+        HashingInputStream original = new HashingInputStream(in, md5, sha256, tree);
+        GzipCompressingInputStream gzip = compression != null
+                ? new GzipCompressingInputStream(original, compressionPolicy.level())
+                : null;
+        long writeStart = System.nanoTime();
+        String id;
+        long storedSize;
+        try (CountingInputStream stored = new CountingInputStream(gzip != null ? gzip : original)) {
+            id = backend.store(stored, filename, contentType, metadata);
+            storedSize = stored.getByteCount();
+        }
+        String hash = HexFormat.of().formatHex(md5.digest());
+        long treeStart = System.nanoTime();
+        String treeHash = tree != null ? tree.finish() : null;
+        long treeWaitNanos = System.nanoTime() - treeStart;
+        String contentSha256 = sha256 != null ? HexFormat.of().formatHex(sha256.digest()) : null;
+        backend.annotate(id, contentHashes(hash, contentSha256, treeHash));
+
+        // digests and gzip run inside the backend's reads, their share is taken out of the write
+        long hashNanos = original.getDigestNanos() + treeWaitNanos;
+        long compressNanos = gzip != null ? gzip.getDeflateNanos() : 0;
+        metrics.recordUploadPhase(StorageMetrics.HASH, hashNanos);
+        if (gzip != null) {
+            metrics.recordUploadPhase(StorageMetrics.COMPRESS, compressNanos);
+        }
+        metrics.recordUploadPhase(StorageMetrics.WRITE, System.nanoTime() - writeStart - hashNanos - compressNanos);
+
+        return new StoredContent(backend.name(), id, hash, contentSha256, detectedType, original.getByteCount(),
+                compression, storedSize, treeHash, tree != null ? tree.leafDigests() : null);
+    }
+
+    public Resource open(String backend, String id) {
+        return backend(backend).open(id);
+    }
+
+    public InputStream openRange(String backend, String id, long offset, long length) throws IOException {
+        return backend(backend).openRange(id, offset, length);
     }
 
-    public String store(MultipartFile file, Document metadata) throws IOException {
-        try (InputStream is = file.getInputStream()) {
-            ObjectId id = gridFsTemplate.store(is, file.getOriginalFilename(), file.getContentType(), metadata);
-            return id.toHexString();
+    public Path localPath(String backend, String id) {
+        return backend(backend).localPath(id);
+    }
+
+    public void delete(String backend, String id) {
+        backend(backend).delete(id);
+    }
+
+    public void deleteAll(String backend, Collection<String> ids) {
+        backend(backend).deleteAll(ids);
+    }
+
+    public Collection<String> backendNames() {
+        return backends.keySet();
+    }
+
+    public List<StorageBackend.Entry> list(String backend, String after, int limit) throws IOException {
+        return backend(backend).list(after, limit);
+    }
+
+    // files and blobs written before backends were recorded are in GridFS
+    private StorageBackend backend(String name) {
+        StorageBackend backend = backends.get(name != null ? name : GridFsBackend.NAME);
+        if (backend == null) {
+            throw new IllegalStateException("Unknown storage backend: " + name);
         }
+        return backend;
+    }
+
+    public String newGridFsId() {
+        return new ObjectId().toHexString();
+    }
+
+    /**
+     * Resumable uploads always land in GridFS. Writes exactly {@code length} bytes as GridFS chunks numbered from {@code firstChunk}, for a
+     * file whose fs.files entry is created later by {@link #completeChunkedFile}. Writing the same
+     * chunks again replaces them, so a failed part can simply be re-sent.
+     *
+     * @return under the tree scheme the leaf digests of the chunks written, one leaf per chunk,
+     *         so that the commit does not hash them again; otherwise null
+     */
+    public byte[] writeChunks(String gridFsId, int firstChunk, InputStream in, long length) throws IOException {
+        ensureChunkIndex();
+        ObjectId filesId = new ObjectId(gridFsId);
+        MongoCollection<Document> chunks = mongoTemplate.getCollection(CHUNKS_COLLECTION);
+        List<ReplaceOneModel<Document>> batch = new ArrayList<>(CHUNK_BATCH);
+
+        in = admission.throttle(in);
+        ByteArrayOutputStream leaves = treeHasher.isEnabled() ? new ByteArrayOutputStream() : null;
+        long hashNanos = 0;
+        long remaining = length;
+        int n = firstChunk;
+        while (remaining > 0) {
+            int size = (int) Math.min(CHUNK_SIZE, remaining);
+            byte[] data = in.readNBytes(size);
+            if (data.length < size) {
+                throw new IllegalArgumentException("Part content is shorter than expected (" + length + " bytes)");
+            }
+            if (leaves != null) {
+                long hashStart = System.nanoTime();
+                leaves.writeBytes(TreeHasher.leafDigests(data, size));
+                hashNanos += System.nanoTime() - hashStart;
+            }
+            batch.add(new ReplaceOneModel<>(
+                    Filters.and(Filters.eq("files_id", filesId), Filters.eq("n", n)),
+                    new Document("files_id", filesId).append("n", n).append("data", new Binary(data)),
+                    new ReplaceOptions().upsert(true)));
+            if (batch.size() == CHUNK_BATCH) {
+                chunks.bulkWrite(batch);
+                batch.clear();
+            }
+            remaining -= size;
+            n++;
+        }
+        if (!batch.isEmpty()) {
+            chunks.bulkWrite(batch);
+        }
+        if (in.read() != -1) {
+            throw new IllegalArgumentException("Part content is longer than expected (" + length + " bytes)");
+        }
+        if (leaves == null) {
+            return null;
+        }
+        metrics.recordUploadPhase(StorageMetrics.HASH, hashNanos);
+        return leaves.toByteArray();
+    }
+
+    /**
+     * Creates the fs.files entry for chunks written with {@link #writeChunks}, then reads the
+     * chunks once to compute the hashes and detect the content type. No chunk is copied.
+     * <p>
+     * With the leaf digests of every chunk, as returned by {@code writeChunks}, the tree hash is
+     * taken from them and only MD5 and the type detection read the chunks. That read is serial
+     * and is what a commit waits for until the duplicate index no longer needs MD5.
+     *
+     * @param leafDigests the leaf digests of all chunks in order, or null to hash them here
+     */
+    public StoredContent completeChunkedFile(String gridFsId, String filename, String contentType,
+                                             long length, Document metadata, byte[] leafDigests) throws IOException {
+        ObjectId id = new ObjectId(gridFsId);
+        if (contentType != null) {
+            // same field GridFsTemplate.store uses for the declared content type
+            metadata.put("_contentType", contentType);
+        }
+        Document files = new Document("_id", id)
+                .append("length", length)
+                .append("chunkSize", CHUNK_SIZE)
+                .append("uploadDate", new Date())
+                .append("filename", filename)
+                .append("metadata", metadata);
+        mongoTemplate.getCollection(FILES_COLLECTION).insertOne(files);
+
+        String detectedType;
+        MessageDigest md5 = newDigest("MD5");
+        MessageDigest sha256 = treeHasher.isEnabled() ? null : newDigest("SHA-256");
+        long chunkCount = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        boolean hashLeaves = leafDigests == null || leafDigests.length != chunkCount * TreeHasher.DIGEST_SIZE;
+        TreeHasher.Digest tree = treeHasher.isEnabled() && hashLeaves ? treeHasher.newDigest(true) : null;
+        String treeHash;
+        GridFsResource resource = getResource(findGridFsFileById(gridFsId));
+        try (BufferedInputStream in = new BufferedInputStream(resource.getInputStream(), READ_BUFFER_SIZE)) {
+            long detectStart = System.nanoTime();
+            detectedType = tika.detect(in);
+            metrics.recordUploadPhase(StorageMetrics.DETECT, System.nanoTime() - detectStart);
+            HashingInputStream hashing = new HashingInputStream(in, md5, sha256, tree);
+            hashing.transferTo(OutputStream.nullOutputStream());
+            long treeStart = System.nanoTime();
+            if (tree != null) {
+                treeHash = tree.finish();
+                leafDigests = tree.leafDigests();
+            } else {
+                treeHash = treeHasher.isEnabled() ? TreeHasher.root(leafDigests) : null;
+            }
+            metrics.recordUploadPhase(StorageMetrics.HASH, hashing.getDigestNanos() + System.nanoTime() - treeStart);
+        } catch (IOException | RuntimeException e) {
+            // leave only the chunks behind so the file can be completed again
+            mongoTemplate.getCollection(FILES_COLLECTION).deleteOne(Filters.eq("_id", id));
+            throw e;
+        }
+        String hash = HexFormat.of().formatHex(md5.digest());
+        String contentSha256 = sha256 != null ? HexFormat.of().formatHex(sha256.digest()) : null;
+
+        List<Bson> updates = new ArrayList<>();
+        contentHashes(hash, contentSha256, treeHash).forEach((key, value) -> updates.add(Updates.set("metadata." + key, value)));
+        updates.add(Updates.set("metadata.contentType", detectedType));
+        mongoTemplate.getCollection(FILES_COLLECTION).updateOne(Filters.eq("_id", id), Updates.combine(updates));
+        return new StoredContent(GridFsBackend.NAME, gridFsId, hash, contentSha256, detectedType, length, null, length,
+                treeHash, treeHasher.isEnabled() ? leafDigests : null);
+    }
+
+    /**
+     * Removes chunks that have no fs.files entry yet (abandoned chunked uploads).
+     */
+    public void deleteChunks(String gridFsId) {
+        mongoTemplate.getCollection(CHUNKS_COLLECTION).deleteMany(Filters.eq("files_id", new ObjectId(gridFsId)));
+    }
+
+    /**
+     * Up to {@code limit} GridFS ids after {@code after} (null from the start) that have chunks,
+     * in order, whether or not they have an fs.files entry. Only chunk 0 of each is read, through
+     * the {@code files_id, n} index; parts of a resumable upload that never received its first
+     * part are not seen, they go with their session when it expires.
+     */
+    public List<String> chunkedFileIds(String after, int limit) {
+        Bson filter = Filters.eq("n", 0);
+        if (after != null) filter = Filters.and(Filters.gt("files_id", new ObjectId(after)), filter);
+        List<String> ids = new ArrayList<>();
+        for (Document chunk : mongoTemplate.getCollection(CHUNKS_COLLECTION).find(filter)
+                .projection(Projections.include("files_id"))
+                .sort(Sorts.ascending("files_id"))
+                .limit(limit)) {
+            ids.add(chunk.getObjectId("files_id").toHexString());
+        }
+        return ids;
     }
 
     public GridFSFile findGridFsFileById(String gridFsId) {
@@ -47,11 +333,41 @@ public class StorageService {
         return operations.getResource(file);
     }
 
-    public void delete(String gridFsId) {
-        gridFsTemplate.delete(new Query(Criteria.where("_id").is(new ObjectId(gridFsId))));
+    public Resource getContentResource(GridFSFile file) {
+        return new GridFsContentResource(operations, file);
     }
 
     public Optional<GridFSFile> findByFilename(String filename) {
         return Optional.ofNullable(gridFsTemplate.findOne(new Query(Criteria.where("filename").is(filename))));
     }
+
+    private void ensureChunkIndex() {
+        // GridFS only creates its indexes on the first regular upload, direct chunk writes need it too
+        if (!chunkIndexEnsured) {
+            IndexOperations indexOps = mongoTemplate.indexOps(CHUNKS_COLLECTION);
+            // an index a GridFS driver already created under the same name is kept as it is
+            boolean exists = indexOps.getIndexInfo().stream()
+                    .anyMatch(index -> index.isIndexForFields(List.of("files_id", "n")));
+            if (!exists) {
+                indexOps.ensureIndex(new Index().on("files_id", Sort.Direction.ASC).on("n", Sort.Direction.ASC).unique());
+            }
+            chunkIndexEnsured = true;
+        }
+    }
+
+    // content metadata: hash is MD5, plus sha256 or treeHash depending on the scheme
+    static Document contentHashes(String hash, String sha256, String treeHash) {
+        Document hashes = new Document("hash", hash);
+        if (sha256 != null) hashes.append("sha256", sha256);
+        if (treeHash != null) hashes.append("treeHash", treeHash);
+        return hashes;
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " not available", e);
+        }
+    }
 }
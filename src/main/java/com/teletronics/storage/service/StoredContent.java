@@ -0,0 +1,17 @@
+package com.teletronics.storage.service;
+
+/**
+ * Result of streaming a file into storage: where it landed and what was learned while reading it.
+ * {@code gridFsId} is the content id within {@code backend}. {@code size} and the hashes are those
+ * of the original bytes; {@code storedSize} is what the backend holds in {@code compression}
+ * (null when stored as is). Content hashed under the tree scheme has a {@code treeHash}, the
+ * {@code leafDigests} it was computed from, and no {@code sha256}.
+ */
+public record StoredContent(String backend, String gridFsId, String hash, String sha256, String contentType, long size,
+                            String compression, long storedSize, String treeHash, byte[] leafDigests) {
+
+    // the blob id: the tree hash when the content has one, its SHA-256 otherwise
+    public String key() {
+        return treeHash != null ? treeHash : sha256;
+    }
+}
@@ -0,0 +1,79 @@
+package com.teletronics.storage.service;
+
+import com.teletronics.storage.model.StoredFile;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * One-off backfill of {@code tagKeys} for files stored before tags were normalized.
+ * Only documents without the field are touched, so running it again is a no-op.
+ */
+@Component
+public class TagKeyMigration implements ApplicationRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(TagKeyMigration.class);
+    private static final int BATCH_SIZE = 500;
+
+    private final MongoTemplate mongoTemplate;
+    private final boolean enabled;
+
+    public TagKeyMigration(MongoTemplate mongoTemplate,
+                           @Value("${app.migration.tag-keys.enabled:true}") boolean enabled) {
+        this.mongoTemplate = mongoTemplate;
+        this.enabled = enabled;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (enabled) {
+            migrate();
+        }
+    }
+
+    public long migrate() {
+        Query pending = Query.query(Criteria.where("tagKeys").exists(false));
+        pending.fields().include("tags");
+
+        long migrated = 0;
+        BulkOperations bulk = null;
+        int batched = 0;
+        try (Stream<Document> docs = mongoTemplate.stream(pending, Document.class, "files")) {
+            Iterator<Document> it = docs.iterator();
+            while (it.hasNext()) {
+                Document doc = it.next();
+                if (bulk == null) {
+                    bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, "files");
+                }
+                List<String> tags = doc.getList("tags", String.class);
+                bulk.updateOne(Query.query(Criteria.where("_id").is(doc.get("_id"))),
+                        Update.update("tagKeys", StoredFile.tagKeys(tags)));
+                if (++batched == BATCH_SIZE) {
+                    migrated += bulk.execute().getModifiedCount();
+                    bulk = null;
+                    batched = 0;
+                }
+            }
+        }
+        if (bulk != null) {
+            migrated += bulk.execute().getModifiedCount();
+        }
+        if (migrated > 0) {
+            log.info("Backfilled tagKeys on {} files", migrated);
+        }
+        return migrated;
+    }
+}
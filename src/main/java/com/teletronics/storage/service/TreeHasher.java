@@ -0,0 +1,250 @@
+package com.teletronics.storage.service;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * SHA-256 tree hash of content. Every GridFS-chunk-sized leaf is hashed on its own (prefixed with
+ * 0x00) and the root is the SHA-256 of 0x01 followed by the leaf digests in order. Leaves do not
+ * depend on each other, so they are hashed on a pool of {@code app.hash.tree.threads} while the
+ * upload is still being read. The leaf digests are kept on the blob, so content read back can be
+ * checked leaf by leaf and a mismatch points at the chunk that changed.
+ * <p>
+ * With {@code app.hash.scheme=tree} new content is keyed by its tree hash instead of its plain
+ * SHA-256. The MD5 {@code hash} is still computed under both schemes because the per-user
+ * duplicate index ({@code user_hash_idx}) is keyed by it; MD5 cannot be split into leaves, so one
+ * serial MD5 pass over the content stays the bottleneck of hashing until that index moves to the
+ * tree hash.
+ */
+@Component
+public class TreeHasher implements DisposableBean {
+
+    public static final String SHA256 = "sha256";
+    public static final String TREE = "tree";
+    public static final int LEAF_SIZE = StorageService.CHUNK_SIZE;
+    public static final int DIGEST_SIZE = 32;
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final boolean enabled;
+    private final ExecutorService pool;
+    // leaves waiting for or being hashed, across all uploads; bounds the memory they hold
+    private final Semaphore inFlight;
+
+    public TreeHasher(@Value("${app.hash.scheme:sha256}") String scheme,
+                      @Value("${app.hash.tree.threads:0}") int threads) {
+        if (!SHA256.equals(scheme) && !TREE.equals(scheme)) {
+            throw new IllegalArgumentException("app.hash.scheme must be " + SHA256 + " or " + TREE);
+        }
+        this.enabled = TREE.equals(scheme);
+        int size = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.pool = Executors.newFixedThreadPool(size, Thread.ofPlatform().name("tree-hash-", 1).daemon().factory());
+        this.inFlight = new Semaphore(size * 4);
+    }
+
+    /**
+     * Whether new content is keyed by its tree hash.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param parallel leaves go to the pool; otherwise they are hashed by the calling thread,
+     *                 for callers that must not block such as the event loop
+     */
+    public Digest newDigest(boolean parallel) {
+        return new Digest(parallel);
+    }
+
+    public String hash(InputStream in) throws IOException {
+        Digest digest = newDigest(true);
+        byte[] buffer = new byte[LEAF_SIZE];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            digest.update(buffer, 0, n);
+        }
+        return digest.finish();
+    }
+
+    /**
+     * The hex root over leaf digests computed earlier, e.g. one part of a resumable upload at a
+     * time, concatenated in order.
+     */
+    public static String root(byte[] leafDigests) {
+        MessageDigest root = sha256();
+        root.update((byte) 1);
+        root.update(leafDigests);
+        return HEX.formatHex(root.digest());
+    }
+
+    /**
+     * Digests of every {@link #LEAF_SIZE} piece of {@code data}, concatenated.
+     */
+    public static byte[] leafDigests(byte[] data, int length) {
+        byte[] digests = new byte[(length + LEAF_SIZE - 1) / LEAF_SIZE * DIGEST_SIZE];
+        for (int off = 0, i = 0; off < length; off += LEAF_SIZE, i++) {
+            byte[] leaf = leafDigest(data, off, Math.min(LEAF_SIZE, length - off));
+            System.arraycopy(leaf, 0, digests, i * DIGEST_SIZE, DIGEST_SIZE);
+        }
+        return digests;
+    }
+
+    @Override
+    public void destroy() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * The tree hash of one stream of content, fed in order.
+     */
+    public final class Digest {
+
+        private final boolean parallel;
+        private final List<Future<byte[]>> leaves = new ArrayList<>();
+        private byte[] leaf = new byte[LEAF_SIZE];
+        private int filled;
+        private byte[] expected;
+        private int mismatchedLeaf = -1;
+        private byte[] leafDigests;
+
+        private Digest(boolean parallel) {
+            this.parallel = parallel;
+        }
+
+        /**
+         * Compares every leaf with {@code expected}, the concatenated leaf digests recorded for
+         * the content. Leaves hashed on the calling thread are compared as soon as they are
+         * complete, pooled ones in {@link #finish}.
+         */
+        public Digest expecting(byte[] expected) {
+            this.expected = expected;
+            return this;
+        }
+
+        /**
+         * Index of the first leaf that did not match the expected digests, or -1.
+         */
+        public int mismatchedLeaf() {
+            return mismatchedLeaf;
+        }
+
+        public void update(byte[] bytes, int off, int len) {
+            while (len > 0) {
+                int n = Math.min(len, LEAF_SIZE - filled);
+                System.arraycopy(bytes, off, leaf, filled, n);
+                filled += n;
+                off += n;
+                len -= n;
+                if (filled == LEAF_SIZE) flushLeaf();
+            }
+        }
+
+        public void update(ByteBuffer bytes) {
+            while (bytes.hasRemaining()) {
+                int n = Math.min(bytes.remaining(), LEAF_SIZE - filled);
+                bytes.get(leaf, filled, n);
+                filled += n;
+                if (filled == LEAF_SIZE) flushLeaf();
+            }
+        }
+
+        private void flushLeaf() {
+            byte[] data = leaf;
+            int length = filled;
+            leaf = new byte[LEAF_SIZE];
+            filled = 0;
+            if (!parallel) {
+                byte[] digest = leafDigest(data, 0, length);
+                check(leaves.size(), digest);
+                leaves.add(CompletableFuture.completedFuture(digest));
+                return;
+            }
+            inFlight.acquireUninterruptibly();
+            try {
+                leaves.add(pool.submit(() -> {
+                    try {
+                        return leafDigest(data, 0, length);
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            } catch (RuntimeException e) {
+                inFlight.release();
+                throw e;
+            }
+        }
+
+        private void check(int index, byte[] digest) {
+            if (expected == null || mismatchedLeaf >= 0) return;
+            int from = index * DIGEST_SIZE;
+            if (from + DIGEST_SIZE > expected.length
+                    || !Arrays.equals(digest, 0, DIGEST_SIZE, expected, from, from + DIGEST_SIZE)) {
+                mismatchedLeaf = index;
+            }
+        }
+
+        /**
+         * Waits for the leaves still being hashed and returns the hex root.
+         */
+        public String finish() throws IOException {
+            if (filled > 0) flushLeaf();
+            leafDigests = new byte[leaves.size() * DIGEST_SIZE];
+            for (int i = 0; i < leaves.size(); i++) {
+                try {
+                    byte[] digest = leaves.get(i).get();
+                    if (parallel) check(i, digest);
+                    System.arraycopy(digest, 0, leafDigests, i * DIGEST_SIZE, DIGEST_SIZE);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while hashing", e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Hashing failed", e.getCause());
+                }
+            }
+            // fewer leaves than recorded: the content was cut short
+            if (expected != null && mismatchedLeaf < 0 && expected.length > leafDigests.length) {
+                mismatchedLeaf = leaves.size();
+            }
+            return root(leafDigests);
+        }
+
+        /**
+         * The digests of all leaves in order, concatenated; available once {@link #finish} returned.
+         */
+        public byte[] leafDigests() {
+            return leafDigests;
+        }
+    }
+
+    private static byte[] leafDigest(byte[] data, int off, int length) {
+        MessageDigest digest = sha256();
+        digest.update((byte) 0);
+        digest.update(data, off, length);
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.teletronics.storage.service;
+
+import com.teletronics.storage.exception.UploadRejectedException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control for uploads, separate from downloads. An upload needs one of the user's
+ * {@code app.admission.max-concurrent-per-user} slots (or is answered 429) and one of the
+ * {@code app.admission.max-concurrent} global slots; when those are taken it waits up to
+ * {@code queue-timeout} in a queue of at most {@code max-queued} uploads, and is answered 503
+ * after that. Admitted uploads share a byte rate of {@code max-bytes-per-second} into storage.
+ */
+@Service
+public class UploadAdmission {
+
+    public static final String USER_LIMIT = "user-limit";
+    public static final String QUEUE_FULL = "queue-full";
+    public static final String QUEUE_TIMEOUT = "queue-timeout";
+
+    // an idle period lets this much time's worth of bytes through at full speed
+    private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final StorageMetrics metrics;
+    private final boolean enabled;
+    private final int maxPerUser;
+    private final int maxQueued;
+    private final Duration queueTimeout;
+    private final Duration retryAfter;
+    private final long bytesPerSecond;
+    private final Semaphore slots;
+    private final Map<String, Integer> perUser = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Object rateLock = new Object();
+    private long nextFreeNanos = System.nanoTime() - BURST_NANOS;
+
+    public UploadAdmission(StorageMetrics metrics,
+                           @Value("${app.admission.enabled:true}") boolean enabled,
+                           @Value("${app.admission.max-concurrent:32}") int maxConcurrent,
+                           @Value("${app.admission.max-concurrent-per-user:4}") int maxPerUser,
+                           @Value("${app.admission.max-queued:64}") int maxQueued,
+                           @Value("${app.admission.queue-timeout:2s}") Duration queueTimeout,
+                           @Value("${app.admission.retry-after:5s}") Duration retryAfter,
+                           @Value("${app.admission.max-bytes-per-second:-1B}") DataSize bytesPerSecond) {
+        this.metrics = metrics;
+        this.enabled = enabled;
+        this.maxPerUser = maxPerUser;
+        this.maxQueued = maxQueued;
+        this.queueTimeout = queueTimeout;
+        this.retryAfter = retryAfter;
+        this.bytesPerSecond = bytesPerSecond.toBytes();
+        this.slots = new Semaphore(maxConcurrent, true);
+    }
+
+    /**
+     * Takes a slot for one upload of the user, to be closed when the upload is over.
+     *
+     * @param mayWait whether the caller can block in the queue; the event loop cannot
+     * @throws UploadRejectedException when the upload is not admitted
+     */
+    public Permit admit(String userId, boolean mayWait) {
+        if (!enabled) {
+            return new Permit(null);
+        }
+        boolean[] taken = {false};
+        perUser.compute(userId, (user, running) -> {
+            int count = running != null ? running : 0;
+            if (count >= maxPerUser) return running;
+            taken[0] = true;
+            return count + 1;
+        });
+        if (!taken[0]) {
+            metrics.uploadRejected(USER_LIMIT);
+            throw new UploadRejectedException(429,
+                    "Too many concurrent uploads for this user (at most " + maxPerUser + ")", retryAfter);
+        }
+        try {
+            acquireSlot(mayWait);
+        } catch (RuntimeException e) {
+            releaseUser(userId);
+            throw e;
+        }
+        metrics.uploadAdmitted();
+        return new Permit(userId);
+    }
+
+    private void acquireSlot(boolean mayWait) {
+        if (slots.tryAcquire()) return;
+        if (!mayWait || queued.incrementAndGet() > maxQueued) {
+            if (mayWait) queued.decrementAndGet();
+            throw saturated(QUEUE_FULL);
+        }
+        metrics.admissionQueued();
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = slots.tryAcquire(queueTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        } finally {
+            queued.decrementAndGet();
+            metrics.admissionDequeued(System.nanoTime() - start);
+        }
+        if (!acquired) throw saturated(QUEUE_TIMEOUT);
+    }
+
+    private UploadRejectedException saturated(String reason) {
+        metrics.uploadRejected(reason);
+        return new UploadRejectedException(503, "Too many uploads in progress, try again later", retryAfter);
+    }
+
+    private void releaseUser(String userId) {
+        perUser.computeIfPresent(userId, (user, running) -> running > 1 ? running - 1 : null);
+    }
+
+    /**
+     * The upload's bytes, paced to the shared byte rate. Unchanged when there is no limit.
+     */
+    public InputStream throttle(InputStream in) {
+        if (!enabled || bytesPerSecond <= 0) return in;
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) pace(1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int off, int len) throws IOException {
+                int n = super.read(buffer, off, len);
+                if (n > 0) pace(n);
+                return n;
+            }
+        };
+    }
+
+    // token bucket kept as the time at which the bytes handed out so far are paid for
+    private void pace(int bytes) throws InterruptedIOException {
+        long wait;
+        synchronized (rateLock) {
+            long now = System.nanoTime();
+            if (nextFreeNanos - (now - BURST_NANOS) < 0) nextFreeNanos = now - BURST_NANOS;
+            nextFreeNanos += bytes * 1_000_000_000L / bytesPerSecond;
+            wait = nextFreeNanos - now;
+        }
+        if (wait <= 0) return;
+        metrics.uploadThrottled(wait);
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+
+    public final class Permit implements AutoCloseable {
+
+        private final String userId;
+        private final AtomicBoolean open = new AtomicBoolean(true);
+
+        private Permit(String userId) {
+            this.userId = userId;
+        }
+
+        @Override
+        public void close() {
+            if (userId != null && open.compareAndSet(true, false)) {
+                slots.release();
+                releaseUser(userId);
+                metrics.uploadReleased();
+            }
+        }
+    }
+}
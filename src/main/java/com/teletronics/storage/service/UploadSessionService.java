@@ -0,0 +1,279 @@
+package com.teletronics.storage.service;
+
+import com.teletronics.storage.dto.CreateUploadRequest;
+import com.teletronics.storage.model.StoredFile;
+import com.teletronics.storage.model.UploadSession;
+import com.teletronics.storage.model.Visibility;
+import com.teletronics.storage.repository.UploadSessionRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+@Service
+public class UploadSessionService implements SmartInitializingSingleton {
+
+    private static final Logger log = LoggerFactory.getLogger(UploadSessionService.class);
+
+    private final FileService fileService;
+    private final StorageService storageService;
+    private final UploadSessionRepository sessionRepository;
+    private final MongoTemplate mongoTemplate;
+    private final long partSize;
+    private final long maxSize;
+    private final Duration sessionTtl;
+    private final Duration partTimeout;
+
+    public UploadSessionService(FileService fileService, StorageService storageService,
+                                UploadSessionRepository sessionRepository, MongoTemplate mongoTemplate,
+                                @Value("${app.upload.part-size:8MB}") DataSize partSize,
+                                @Value("${app.upload.max-size:50GB}") DataSize maxSize,
+                                @Value("${app.upload.session-ttl:24h}") Duration sessionTtl,
+                                @Value("${app.upload.part-timeout:10m}") Duration partTimeout) {
+        this.fileService = fileService;
+        this.storageService = storageService;
+        this.sessionRepository = sessionRepository;
+        this.mongoTemplate = mongoTemplate;
+        // parts must cover whole GridFS chunks so that part N always maps onto the same chunk numbers
+        long chunks = Math.max(1, partSize.toBytes() / StorageService.CHUNK_SIZE);
+        this.partSize = chunks * StorageService.CHUNK_SIZE;
+        this.maxSize = maxSize.toBytes();
+        this.sessionTtl = sessionTtl;
+        this.partTimeout = partTimeout;
+    }
+
+    /**
+     * Sessions used to be dropped by a TTL index on {@code expiresAt}, which left the chunks of
+     * sessions without a part 0 where the scrubber cannot see them. The TTL index is replaced by
+     * a plain one; {@link #expire} removes sessions together with their chunks.
+     */
+    @Override
+    public void afterSingletonsInstantiated() {
+        IndexOperations indexOps = mongoTemplate.indexOps(UploadSession.class);
+        for (IndexInfo index : indexOps.getIndexInfo()) {
+            if (index.isIndexForFields(List.of("expiresAt")) && index.getExpireAfter().isPresent()) {
+                indexOps.dropIndex(index.getName());
+                log.info("Dropped TTL index {} of upload sessions", index.getName());
+            }
+        }
+        indexOps.ensureIndex(new Index().on("expiresAt", Sort.Direction.ASC));
+    }
+
+    public UploadSession create(String userId, CreateUploadRequest request) {
+        List<String> tags = request.getTags() == null ? List.of() : request.getTags();
+        if (request.getSize() <= 0) {
+            throw new IllegalArgumentException("Upload size must be greater than 0");
+        }
+        if (request.getSize() > maxSize) {
+            throw new IllegalArgumentException("Upload size exceeds the maximum of " + maxSize + " bytes");
+        }
+        Visibility visibility = fileService.validateUpload(userId, request.getFilename(), request.getVisibility(), tags,
+                request.getSize());
+
+        Instant now = Instant.now();
+        UploadSession session = new UploadSession(userId, request.getFilename(), request.getContentType(), visibility,
+                tags, request.getSize(), partSize, storageService.newGridFsId(), now, now.plus(sessionTtl));
+        return sessionRepository.save(session);
+    }
+
+    public UploadSession status(String sessionId, String userId) {
+        return findOwned(sessionId, userId);
+    }
+
+    public UploadSession putPart(String sessionId, String userId, int part, long contentLength, InputStream in) throws IOException {
+        UploadSession session = findOwned(sessionId, userId);
+        if (part < 0 || part >= session.getPartCount()) {
+            throw new IllegalArgumentException("Part number must be between 0 and " + (session.getPartCount() - 1));
+        }
+        long expected = session.partLength(part);
+        if (contentLength >= 0 && contentLength != expected) {
+            throw new IllegalArgumentException("Part " + part + " must be exactly " + expected + " bytes");
+        }
+
+        // registered before any chunk is written, so a commit either started first and the part is
+        // refused, or waits until the part is written
+        UploadSession writing = mongoTemplate.findAndModify(
+                withoutLeaves(Query.query(Criteria.where("_id").is(sessionId).and("status").is(UploadSession.Status.OPEN))),
+                new Update().inc("inFlight", 1).set("partStartedAt", Instant.now()),
+                UploadSession.class);
+        if (writing == null) {
+            throw new IllegalStateException("Upload session is being committed or aborted");
+        }
+
+        int firstChunk = (int) (session.partOffset(part) / StorageService.CHUNK_SIZE);
+        byte[] leaves;
+        try {
+            leaves = storageService.writeChunks(session.getGridFsId(), firstChunk, in, expected);
+        } catch (IOException | RuntimeException e) {
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(sessionId)),
+                    new Update().inc("inFlight", -1), UploadSession.class);
+            throw e;
+        }
+
+        // $addToSet keeps parallel part uploads from overwriting each other
+        Update received = new Update().addToSet("receivedParts", part).inc("inFlight", -1);
+        if (leaves != null) {
+            received.set("partLeaves." + part, leaves);
+        } else {
+            received.unset("partLeaves." + part);
+        }
+        return mongoTemplate.findAndModify(
+                withoutLeaves(Query.query(Criteria.where("_id").is(sessionId))),
+                received,
+                FindAndModifyOptions.options().returnNew(true),
+                UploadSession.class);
+    }
+
+    public StoredFile commit(String sessionId, String userId) throws IOException {
+        UploadSession session = findOwned(sessionId, userId);
+        if (!session.isComplete()) {
+            throw new IllegalArgumentException("Upload is incomplete, missing parts: " + session.getMissingParts());
+        }
+        claim(sessionId, UploadSession.Status.COMMITTING);
+
+        StoredContent content;
+        try {
+            content = storageService.completeChunkedFile(session.getGridFsId(), session.getFilename(),
+                    session.getContentType(), session.getSize(),
+                    fileService.gridFsMetadata(userId, session.getVisibility(), session.getTags()),
+                    partLeaves(sessionId));
+        } catch (IOException | RuntimeException e) {
+            // parts are kept, the commit can be retried
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(sessionId)),
+                    Update.update("status", UploadSession.Status.OPEN), UploadSession.class);
+            throw e;
+        }
+
+        try {
+            return fileService.register(content, session.getFilename(), session.getContentType(), userId,
+                    session.getVisibility(), session.getTags());
+        } finally {
+            // register() already removed the GridFS file if it was rejected, chunks are either
+            // referenced by the new StoredFile or gone
+            sessionRepository.deleteById(sessionId);
+        }
+    }
+
+    public void abort(String sessionId, String userId) {
+        UploadSession session = findOwned(sessionId, userId);
+        // taken like a commit, so no part or commit is still reading or writing the chunks
+        claim(sessionId, UploadSession.Status.ABORTING);
+        storageService.deleteChunks(session.getGridFsId());
+        sessionRepository.deleteById(sessionId);
+    }
+
+    // moves an open session with no part being written to the given status; a part whose
+    // writer died long ago no longer counts
+    private void claim(String sessionId, UploadSession.Status status) {
+        UploadSession claimed = mongoTemplate.findAndModify(
+                withoutLeaves(Query.query(Criteria.where("_id").is(sessionId).and("status").is(UploadSession.Status.OPEN)
+                        .andOperator(idle(Instant.now())))),
+                Update.update("status", status).set("inFlight", 0),
+                UploadSession.class);
+        if (claimed != null) {
+            return;
+        }
+        UploadSession current = mongoTemplate.findOne(withoutLeaves(Query.query(Criteria.where("_id").is(sessionId))),
+                UploadSession.class);
+        if (current == null) {
+            throw new NoSuchElementException("Upload session not found");
+        }
+        throw new IllegalStateException(switch (current.getStatus()) {
+            case COMMITTING -> "Upload session is already being committed";
+            case ABORTING -> "Upload session is being aborted";
+            case OPEN -> "Parts of the upload are still being written";
+        });
+    }
+
+    /**
+     * Up to {@code limit} sessions past their expiry with an id after {@code after} (null from
+     * the start), in id order.
+     */
+    public List<UploadSession> expired(String after, int limit) {
+        Query query = withoutLeaves(Query.query(Criteria.where("expiresAt").lt(Instant.now())))
+                .with(Sort.by("_id"))
+                .limit(limit);
+        if (after != null) query.addCriteria(Criteria.where("_id").gt(after));
+        return mongoTemplate.find(query, UploadSession.class);
+    }
+
+    /**
+     * Removes an expired session and its chunks, unless a part or a commit is still at work on
+     * it. Returns whether it was removed.
+     */
+    public boolean expire(UploadSession session) {
+        Instant now = Instant.now();
+        // an open session is taken like an abort; a commit or abort claimed before the expiry has
+        // created the file entry or deleted the chunks long before partTimeout has passed since
+        Criteria open = Criteria.where("status").is(UploadSession.Status.OPEN).andOperator(idle(now));
+        Criteria stuck = Criteria.where("status").ne(UploadSession.Status.OPEN)
+                .and("expiresAt").lt(now.minus(partTimeout));
+        UploadSession claimed = mongoTemplate.findAndModify(
+                withoutLeaves(Query.query(Criteria.where("_id").is(session.getId()).and("expiresAt").lt(now)
+                        .orOperator(open, stuck))),
+                Update.update("status", UploadSession.Status.ABORTING).set("inFlight", 0),
+                UploadSession.class);
+        if (claimed == null) {
+            return false;
+        }
+        // a commit that created the file entry handed the chunks to the file, or to the
+        // scrubber's content phase if it died before registering it
+        if (storageService.findGridFsFileById(claimed.getGridFsId()) == null) {
+            storageService.deleteChunks(claimed.getGridFsId());
+        }
+        sessionRepository.deleteById(claimed.getId());
+        return true;
+    }
+
+    // no part is being written, or the last one started so long ago that its writer died
+    private Criteria idle(Instant now) {
+        return new Criteria().orOperator(
+                Criteria.where("inFlight").not().gt(0),
+                Criteria.where("partStartedAt").lt(now.minus(partTimeout)));
+    }
+
+    // the leaf digests of the parts, hashed as they were written; null if any part lacks them
+    private byte[] partLeaves(String sessionId) {
+        Query query = Query.query(Criteria.where("_id").is(sessionId));
+        query.fields().include("partCount", "partLeaves");
+        UploadSession session = mongoTemplate.findOne(query, UploadSession.class);
+        return session != null ? session.leafDigests() : null;
+    }
+
+    private UploadSession findOwned(String sessionId, String userId) {
+        UploadSession session = mongoTemplate.findOne(withoutLeaves(Query.query(Criteria.where("_id").is(sessionId))),
+                UploadSession.class);
+        // an expired session waits for the scrubber to remove it, but can no longer be used
+        if (session == null || session.getExpiresAt().isBefore(Instant.now())) {
+            throw new NoSuchElementException("Upload session not found");
+        }
+        if (!session.getUserId().equals(userId)) {
+            throw new SecurityException("You can only access your own upload sessions");
+        }
+        return session;
+    }
+
+    // up to a few MB for the largest uploads, only the commit needs them
+    private static Query withoutLeaves(Query query) {
+        query.fields().exclude("partLeaves");
+        return query;
+    }
+}
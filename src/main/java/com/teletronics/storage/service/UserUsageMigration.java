@@ -0,0 +1,74 @@
+package com.teletronics.storage.service;
+
+import com.teletronics.storage.model.UserUsage;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Backfill of {@code user_usage} for files stored before quotas were tracked. It runs while the
+ * context starts, before the web server takes uploads, and adds each user's totals to their
+ * document once: a document is flagged {@code migrated} when its totals are added, and the
+ * documents quota accounting creates carry the flag from the start.
+ */
+@Component
+public class UserUsageMigration implements SmartInitializingSingleton {
+
+    private static final Logger log = LoggerFactory.getLogger(UserUsageMigration.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final boolean enabled;
+
+    public UserUsageMigration(MongoTemplate mongoTemplate,
+                              @Value("${app.migration.user-usage.enabled:true}") boolean enabled) {
+        this.mongoTemplate = mongoTemplate;
+        this.enabled = enabled;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        if (enabled) {
+            migrate();
+        }
+    }
+
+    public long migrate() {
+        List<Document> totals = mongoTemplate.aggregate(Aggregation.newAggregation(
+                        Aggregation.group("userId").sum("size").as("bytes").count().as("files")),
+                "files", Document.class).getMappedResults();
+        if (totals.isEmpty()) {
+            return 0;
+        }
+
+        // the documents first, then the totals; the flag makes the $inc apply once per user,
+        // also when another instance runs the backfill at the same time
+        BulkOperations documents = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, UserUsage.class);
+        BulkOperations increments = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, UserUsage.class);
+        Instant now = Instant.now();
+        for (Document total : totals) {
+            String userId = total.getString("_id");
+            documents.upsert(Query.query(Criteria.where("_id").is(userId)),
+                    new Update().setOnInsert("bytes", 0L).setOnInsert("files", 0L).setOnInsert("updatedAt", now));
+            increments.updateOne(Query.query(Criteria.where("_id").is(userId).and("migrated").ne(true)),
+                    new Update().inc("bytes", ((Number) total.get("bytes")).longValue())
+                            .inc("files", ((Number) total.get("files")).longValue())
+                            .set("migrated", true).set("updatedAt", now));
+        }
+        documents.execute();
+        long migrated = increments.execute().getModifiedCount();
+        if (migrated > 0) log.info("Backfilled storage usage of {} users", migrated);
+        return migrated;
+    }
+}
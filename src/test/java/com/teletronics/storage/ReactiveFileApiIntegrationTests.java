@@ -0,0 +1,367 @@
+package com.teletronics.storage;
+
+import com.teletronics.storage.dto.CreateUploadRequest;
+import com.teletronics.storage.model.StoredFile;
+import com.teletronics.storage.model.UploadSession;
+import com.teletronics.storage.repository.FileRepository;
+import com.teletronics.storage.service.BlobService;
+import com.teletronics.storage.service.FileService;
+import com.teletronics.storage.service.TreeHasher;
+import com.teletronics.storage.service.UploadSessionService;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.BodyInserters;
+import reactor.netty.http.client.HttpClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Integration tests of the reactive stack (spring.main.web-application-type=reactive):
+ * 2.1 Raw-body upload streamed to GridFS, duplicate content and name rejected
+ * 2.2 Whole, ranged and conditional download, private files refused to others
+ * 2.3 Multipart upload and public listing as NDJSON
+ * 2.4 Gzip-stored text downloaded compressed, decoded and by range
+ * 2.5 Filesystem-tier content sent zero-copy, whole and by range
+ * 2.6 Content keyed by its tree hash (app.hash.scheme=tree) on every upload path, its leaf digests
+ *     kept with the blob and checked leaf by leaf
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        // the scrubber is exercised by the servlet suite, whose context shares this database
+        properties = {"spring.main.web-application-type=reactive", "app.hash.scheme=tree", "app.scrub.enabled=false"})
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class ReactiveFileApiIntegrationTests {
+
+    @Autowired
+    private WebTestClient client;
+    @Autowired
+    private FileService fileService;
+    @Autowired
+    private FileRepository fileRepository;
+    @Autowired
+    private TreeHasher treeHasher;
+    @Autowired
+    private BlobService blobService;
+    @Autowired
+    private MongoTemplate mongoTemplate;
+    @Autowired
+    private UploadSessionService uploadSessionService;
+
+    // the database is shared with the servlet tests, so every run uses its own users
+    private final String owner = "reactiveOwner-" + UUID.randomUUID();
+    private final String other = "reactiveOther-" + UUID.randomUUID();
+    private byte[] content;
+    private String downloadLink;
+
+    @BeforeAll
+    void rawClient() {
+        // a plain client: no decompression of gzip responses, whole files buffered for comparison
+        client = client.mutate()
+                .clientConnector(new ReactorClientHttpConnector(HttpClient.create().compress(false)))
+                .codecs(codecs -> codecs.defaultCodecs().maxInMemorySize(16 * 1024 * 1024))
+                .build();
+    }
+
+    // =============================================================
+    // 2.1 Raw-body upload, duplicates rejected
+    // =============================================================
+    @Test
+    @Order(1)
+    void streamedUpload() {
+        content = new byte[3 * 255 * 1024 + 17];
+        new java.util.Random(14).nextBytes(content);
+
+        Map<?, ?> stored = client.put().uri("/files/stream")
+                .header("X-User-Id", owner)
+                .header("X-Filename", "reactive.bin")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .bodyValue(content)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(Map.class).returnResult().getResponseBody();
+        assertThat(((Number) stored.get("size")).longValue()).isEqualTo(content.length);
+        assertThat(stored.get("visibility")).isEqualTo("PRIVATE");
+        downloadLink = (String) stored.get("downloadLink");
+        assertThat(downloadLink).startsWith("/files/download/");
+
+        // same content under another name, then another content under the same name
+        client.put().uri("/files/stream")
+                .header("X-User-Id", owner)
+                .header("X-Filename", "reactive-copy.bin")
+                .bodyValue(content)
+                .exchange()
+                .expectStatus().isBadRequest();
+        client.put().uri("/files/stream")
+                .header("X-User-Id", owner)
+                .header("X-Filename", "reactive.bin")
+                .bodyValue("other".getBytes(StandardCharsets.UTF_8))
+                .exchange()
+                .expectStatus().isBadRequest();
+    }
+
+    // =============================================================
+    // 2.2 Download: whole, range, 304 and 403
+    // =============================================================
+    @Test
+    @Order(2)
+    void download() {
+        var whole = client.get().uri(downloadLink)
+                .header("X-User-Id", owner)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(byte[].class).returnResult();
+        assertThat(whole.getResponseBody()).isEqualTo(content);
+        String eTag = whole.getResponseHeaders().getETag();
+
+        // a range across a GridFS chunk boundary
+        int start = 255 * 1024 - 10;
+        byte[] part = client.get().uri(downloadLink)
+                .header("X-User-Id", owner)
+                .header(HttpHeaders.RANGE, "bytes=" + start + "-" + (start + 99))
+                .exchange()
+                .expectStatus().isEqualTo(206)
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_RANGE,
+                        "bytes " + start + "-" + (start + 99) + "/" + content.length)
+                .expectBody(byte[].class).returnResult().getResponseBody();
+        assertThat(part).isEqualTo(Arrays.copyOfRange(content, start, start + 100));
+
+        client.get().uri(downloadLink)
+                .header("X-User-Id", owner)
+                .header(HttpHeaders.RANGE, "bytes=" + content.length + "-")
+                .exchange()
+                .expectStatus().isEqualTo(416);
+
+        client.get().uri(downloadLink)
+                .header("X-User-Id", owner)
+                .header(HttpHeaders.IF_NONE_MATCH, eTag)
+                .exchange()
+                .expectStatus().isNotModified();
+
+        client.get().uri(downloadLink)
+                .header("X-User-Id", other)
+                .exchange()
+                .expectStatus().isForbidden();
+
+        client.get().uri("/files/download/" + UUID.randomUUID())
+                .header("X-User-Id", owner)
+                .exchange()
+                .expectStatus().isNotFound();
+    }
+
+    // =============================================================
+    // 2.3 Multipart upload and NDJSON public listing
+    // =============================================================
+    @Test
+    @Order(3)
+    void multipartUploadAndPublicListing() {
+        String filename = "reactive-public-" + UUID.randomUUID() + ".txt";
+        MultipartBodyBuilder parts = new MultipartBodyBuilder();
+        parts.part("file", ("public " + filename).getBytes(StandardCharsets.UTF_8))
+                .filename(filename)
+                .contentType(MediaType.TEXT_PLAIN);
+        parts.part("visibility", "PUBLIC");
+        parts.part("tags", "Reactive");
+
+        Map<?, ?> stored = client.post().uri("/files/upload")
+                .header("X-User-Id", owner)
+                .body(BodyInserters.fromMultipartData(parts.build()))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(Map.class).returnResult().getResponseBody();
+        assertThat(stored.get("visibility")).isEqualTo("PUBLIC");
+        assertThat(stored.get("tags")).isEqualTo(List.of("Reactive"));
+
+        String ndjson = client.get().uri("/files/public")
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+                .expectBody(String.class).returnResult().getResponseBody();
+        assertThat(ndjson.lines().filter(line -> line.contains(filename)).count()).isEqualTo(1);
+
+        // a public file can be downloaded by anyone
+        client.get().uri((String) stored.get("downloadLink"))
+                .header("X-User-Id", other)
+                .exchange()
+                .expectStatus().isOk();
+    }
+
+    // =============================================================
+    // 2.4 Gzip-stored text, sent as stored or decoded
+    // =============================================================
+    @Test
+    @Order(4)
+    void compressedDownload() throws IOException {
+        byte[] text = "reactive stored compression line\n".repeat(2000).getBytes(StandardCharsets.UTF_8);
+        // reactive uploads are stored as is, compressed files come from the blocking upload path
+        StoredFile stored = fileService.upload(new ByteArrayInputStream(text), "reactive.txt", "text/plain",
+                text.length, owner, "PRIVATE", List.of());
+        assertThat(stored.getCompression()).isEqualTo("gzip");
+        String link = stored.getDownloadLink();
+
+        byte[] gzip = client.get().uri(link)
+                .header("X-User-Id", owner)
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .expectBody(byte[].class).returnResult().getResponseBody();
+        assertThat(gzip.length).isLessThan(text.length);
+        assertThat(new GZIPInputStream(new ByteArrayInputStream(gzip)).readAllBytes()).isEqualTo(text);
+
+        byte[] decoded = client.get().uri(link)
+                .header("X-User-Id", owner)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().doesNotExist(HttpHeaders.CONTENT_ENCODING)
+                .expectBody(byte[].class).returnResult().getResponseBody();
+        assertThat(decoded).isEqualTo(text);
+
+        byte[] range = client.get().uri(link)
+                .header("X-User-Id", owner)
+                .header(HttpHeaders.RANGE, "bytes=1000-1999")
+                .exchange()
+                .expectStatus().isEqualTo(206)
+                .expectBody(byte[].class).returnResult().getResponseBody();
+        assertThat(range).isEqualTo(Arrays.copyOfRange(text, 1000, 2000));
+    }
+
+    // =============================================================
+    // 2.5 Filesystem tier (image/png in test properties)
+    // =============================================================
+    @Test
+    @Order(5)
+    void filesystemTierDownload() throws IOException {
+        byte[] picture = new byte[300 * 1024];
+        new java.util.Random(15).nextBytes(picture);
+        System.arraycopy(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'}, 0, picture, 0, 8);
+        StoredFile stored = fileService.upload(new ByteArrayInputStream(picture), "reactive.png", null,
+                picture.length, owner, "PRIVATE", List.of());
+        assertThat(stored.getBackend()).isEqualTo("fs");
+
+        byte[] whole = client.get().uri(stored.getDownloadLink())
+                .header("X-User-Id", owner)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(MediaType.IMAGE_PNG)
+                .expectBody(byte[].class).returnResult().getResponseBody();
+        assertThat(whole).isEqualTo(picture);
+
+        byte[] tail = client.get().uri(stored.getDownloadLink())
+                .header("X-User-Id", owner)
+                .header(HttpHeaders.RANGE, "bytes=-100")
+                .exchange()
+                .expectStatus().isEqualTo(206)
+                .expectBody(byte[].class).returnResult().getResponseBody();
+        assertThat(tail).isEqualTo(Arrays.copyOfRange(picture, picture.length - 100, picture.length));
+    }
+
+    // =============================================================
+    // 2.6 Tree hash as the content key
+    // =============================================================
+    @Test
+    @Order(6)
+    void treeHashedContent() throws Exception {
+        byte[] data = new byte[5 * 255 * 1024 + 99];
+        new java.util.Random(16).nextBytes(data);
+        String expected = treeHash(data);
+
+        // hashed on the event loop, leaf by leaf
+        Map<?, ?> streamed = client.put().uri("/files/stream")
+                .header("X-User-Id", owner)
+                .header("X-Filename", "tree.bin")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .bodyValue(data)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(Map.class).returnResult().getResponseBody();
+        StoredFile file = fileRepository.findById((String) streamed.get("id")).orElseThrow();
+        assertThat(file.getTreeHash()).isEqualTo(expected);
+        assertThat(file.getBlobId()).isEqualTo(expected);
+
+        // leaves hashed on the pool while the upload is read
+        StoredFile blocking = fileService.upload(new ByteArrayInputStream(data), "tree-copy.bin", null,
+                data.length, other, "PRIVATE", List.of());
+        assertThat(blocking.getTreeHash()).isEqualTo(expected);
+        assertThat(blocking.getBlobId()).isEqualTo(expected);
+        assertThat(treeHasher.hash(new ByteArrayInputStream(data))).isEqualTo(expected);
+
+        // the leaf digests are kept with the blob
+        byte[] leaves = blobService.leafDigests(expected);
+        assertThat(leaves).isEqualTo(leafDigests(data));
+
+        // resumable parts are hashed as they are written, the commit only adds up their leaves
+        String resumer = "reactiveResumer-" + UUID.randomUUID();
+        CreateUploadRequest request = new CreateUploadRequest();
+        request.setFilename("tree-parts.bin");
+        request.setSize(data.length);
+        UploadSession session = uploadSessionService.create(resumer, request);
+        for (int part = session.getPartCount() - 1; part >= 0; part--) {
+            int offset = (int) session.partOffset(part);
+            int length = (int) session.partLength(part);
+            uploadSessionService.putPart(session.getId(), resumer, part, length,
+                    new ByteArrayInputStream(data, offset, length));
+        }
+        assertThat(mongoTemplate.findById(session.getId(), UploadSession.class).leafDigests()).isEqualTo(leaves);
+        StoredFile committed = uploadSessionService.commit(session.getId(), resumer);
+        assertThat(committed.getTreeHash()).isEqualTo(expected);
+        assertThat(committed.getBlobId()).isEqualTo(expected);
+
+        // a changed byte is pinned to its leaf while the content is read
+        byte[] changed = data.clone();
+        changed[2 * TreeHasher.LEAF_SIZE + 7] ^= 1;
+        TreeHasher.Digest check = treeHasher.newDigest(false).expecting(leaves);
+        check.update(changed, 0, 3 * TreeHasher.LEAF_SIZE);
+        assertThat(check.mismatchedLeaf()).isEqualTo(2);
+        TreeHasher.Digest truncated = treeHasher.newDigest(true).expecting(leaves);
+        truncated.update(data, 0, data.length - 99);
+        truncated.finish();
+        assertThat(truncated.mismatchedLeaf()).isEqualTo(5);
+
+        // the analysis checks the stored bytes against the tree hash
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (file.getChecksumVerified() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            file = fileRepository.findById(file.getId()).orElseThrow();
+        }
+        assertThat(file.getChecksumVerified()).isTrue();
+    }
+
+    // reference tree hash: SHA-256 of 0x01 and the SHA-256 of 0x00 and every 255 KiB leaf
+    private static String treeHash(byte[] data) throws NoSuchAlgorithmException {
+        MessageDigest root = MessageDigest.getInstance("SHA-256");
+        root.update((byte) 1);
+        root.update(leafDigests(data));
+        return HexFormat.of().formatHex(root.digest());
+    }
+
+    private static byte[] leafDigests(byte[] data) throws NoSuchAlgorithmException {
+        java.io.ByteArrayOutputStream leaves = new java.io.ByteArrayOutputStream();
+        for (int offset = 0; offset < data.length; offset += TreeHasher.LEAF_SIZE) {
+            MessageDigest leaf = MessageDigest.getInstance("SHA-256");
+            leaf.update((byte) 0);
+            leaf.update(data, offset, Math.min(TreeHasher.LEAF_SIZE, data.length - offset));
+            leaves.writeBytes(leaf.digest());
+        }
+        return leaves.toByteArray();
+    }
+}
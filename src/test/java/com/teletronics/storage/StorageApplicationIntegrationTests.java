@@ -1,18 +1,33 @@
 package com.teletronics.storage;
 
+import com.teletronics.storage.model.Blob;
+import com.teletronics.storage.model.UploadSession;
+import com.teletronics.storage.model.Visibility;
 import com.teletronics.storage.repository.FileRepository;
+import com.teletronics.storage.service.DownloadCache;
+import com.teletronics.storage.service.FileService;
+import com.teletronics.storage.service.TagKeyMigration;
+import com.teletronics.storage.service.UploadAdmission;
+import com.teletronics.storage.service.UserUsageMigration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.types.ObjectId;
 import org.junit.jupiter.api.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.data.mongodb.gridfs.GridFsTemplate;
 import org.springframework.http.*;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.util.unit.DataSize;
 
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
@@ -29,6 +44,26 @@ import static org.assertj.core.api.Assertions.assertThat;
  * 1.3 Upload of a 2GB file
  * 1.4 Unauthorized delete attempt
  * 1.5 Listing of public files
+ * 1.6 Raw-body streamed upload
+ * 1.7 Resumable upload with parts sent out of order, commit, abort and part writes fenced off
+ * 1.8 Range and conditional download
+ * 1.9 Hot download served from the caches, invalidated on rename and delete, evicted within budget
+ * 1.10 Cursor pagination of a user's files
+ * 1.11 Case-insensitive exact and prefix tag filters, including migrated files
+ * 1.12 Public listing streamed as NDJSON and paged with a cursor
+ * 1.13 Same content from several users stored once, freed with the last file, double delete released once
+ * 1.14 Filesystem tier: placement by type, whole and ranged downloads, delete
+ * 1.15 Text stored gzip-compressed, downloaded compressed or decoded
+ * 1.16 Upload and download phase metrics on the Prometheus endpoint
+ * 1.17 Post-ingest analysis: provisional type settled by a worker, checksum mismatch reported
+ * 1.18 Batch upload and batch delete with per-item results, overlapping deletes released once
+ * 1.19 ZIP archive of files selected by tag or by id, visibility enforced
+ * 1.20 Per-user quotas: early rejection, check at registration, usage released on delete, backfill
+ * 1.21 Upload admission control: 429 per user, 503 when saturated, no user 400, downloads unaffected
+ * 1.22 Checks before the body is read, and uploads linked to published content by its hash
+ * 1.23 Integrity scrubber: orphaned content and chunks collected, expired upload sessions removed with their
+ *      chunks, leaked blobs freed, corruption reported
+ * 1.24 Server-side copy on the stored content: name and content constraints, visibility, quota
  */
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
@@ -38,6 +73,10 @@ public class StorageApplicationIntegrationTests {
     @Autowired private MongoTemplate mongoTemplate;
     @Autowired private FileRepository fileRepository;
     @Autowired private GridFsTemplate gridFsTemplate;
+    @Autowired private FileService fileService;
+    @Autowired private TagKeyMigration tagKeyMigration;
+    @Autowired private UploadAdmission uploadAdmission;
+    @Autowired private UserUsageMigration userUsageMigration;
 
     @LocalServerPort
     private int port;
@@ -59,12 +98,16 @@ public class StorageApplicationIntegrationTests {
     @BeforeAll
     void cleanDatabaseBeforeAllTests() {
         fileRepository.deleteAll();
+        mongoTemplate.remove(new Query(), "blobs");
+        mongoTemplate.remove(new Query(), "analysis_jobs");
+        mongoTemplate.remove(new Query(), "user_usage");
+        mongoTemplate.remove(new Query(), "scrub_state");
         gridFsTemplate.delete(new Query());
     }
 
     private MultiValueMap<String, Object> multipart(String filename, byte[] content) {
         MultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
-        body.add("file", new org.springframework.core.io.ByteArrayResource(content) {
+        body.add("file", new ByteArrayResource(content) {
             @Override
             public String getFilename() {
                 return filename;
@@ -217,7 +260,7 @@ public class StorageApplicationIntegrationTests {
         ownerHeaders.add("X-User-Id", "userOwner");
 
         MultiValueMap<String, Object> uploadBody = new LinkedMultiValueMap<>();
-        uploadBody.add("file", new org.springframework.core.io.ByteArrayResource("delete secured content".getBytes(StandardCharsets.UTF_8)) {
+        uploadBody.add("file", new ByteArrayResource("delete secured content".getBytes(StandardCharsets.UTF_8)) {
             @Override
             public String getFilename() {
                 return "test_delete.txt";
@@ -276,7 +319,7 @@ public class StorageApplicationIntegrationTests {
         uploadHeaders.add("X-User-Id", "userList");
 
         MultiValueMap<String, Object> uploadBody = new LinkedMultiValueMap<>();
-        uploadBody.add("file", new org.springframework.core.io.ByteArrayResource("test list secured content".getBytes(StandardCharsets.UTF_8)) {
+        uploadBody.add("file", new ByteArrayResource("test list secured content".getBytes(StandardCharsets.UTF_8)) {
             @Override
             public String getFilename() {
                 return "test_list_public.txt";
@@ -313,4 +356,1222 @@ public class StorageApplicationIntegrationTests {
         assertThat(response.getBody()).contains("PUBLIC");
 
     }
+
+    // =============================================================
+    // 1.6 Upload a file as a raw request body (no multipart)
+    // =============================================================
+    @Test
+    @Order(6)
+    void uploadRawBodyStream() {
+        byte[] content = "streamed body content".getBytes(StandardCharsets.UTF_8);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("X-User-Id", "userStream");
+        headers.add("X-Filename", "streamed%20file.txt");
+        headers.add("X-Visibility", "PUBLIC");
+        headers.add("X-Tags", "stream,raw");
+        headers.setContentType(MediaType.TEXT_PLAIN);
+
+        ResponseEntity<Map> response = restTemplate.exchange(
+                getBaseUrl() + "/files/stream",
+                HttpMethod.PUT,
+                new HttpEntity<>(content, headers),
+                Map.class
+        );
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(response.getBody()).isNotNull();
+        assertThat(response.getBody().get("filename")).isEqualTo("streamed file.txt");
+        assertThat(((Number) response.getBody().get("size")).longValue()).isEqualTo(content.length);
+        assertThat(response.getBody().get("hash"))
+                .isEqualTo(org.springframework.util.DigestUtils.md5DigestAsHex(content));
+        assertThat((List<String>) response.getBody().get("tags")).containsExactly("stream", "raw");
+
+        ResponseEntity<String> duplicate = restTemplate.exchange(
+                getBaseUrl() + "/files/stream",
+                HttpMethod.PUT,
+                new HttpEntity<>(content, headers),
+                String.class
+        );
+        assertThat(duplicate.getStatusCode().is4xxClientError()).isTrue();
+    }
+
+    // =============================================================
+    // 1.7 Resumable upload: parts sent out of order, then committed
+    // =============================================================
+    @Test
+    @Order(7)
+    void resumableUploadOutOfOrder() {
+        int partSize = 255 * 1024; // app.upload.part-size in test properties
+        byte[] content = new byte[partSize * 2 + 1000];
+        new Random(7).nextBytes(content);
+
+        HttpHeaders jsonHeaders = new HttpHeaders();
+        jsonHeaders.add("X-User-Id", "userResumable");
+        jsonHeaders.setContentType(MediaType.APPLICATION_JSON);
+        Map<String, Object> create = Map.of("filename", "resumable.bin", "size", content.length);
+
+        ResponseEntity<Map> session = restTemplate.postForEntity(
+                getBaseUrl() + "/files/uploads", new HttpEntity<>(create, jsonHeaders), Map.class);
+        assertThat(session.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(session.getBody().get("partCount")).isEqualTo(3);
+        String sessionId = (String) session.getBody().get("id");
+
+        HttpHeaders partHeaders = new HttpHeaders();
+        partHeaders.add("X-User-Id", "userResumable");
+        partHeaders.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        for (int part : new int[]{2, 0}) {
+            byte[] bytes = Arrays.copyOfRange(content, part * partSize, Math.min(content.length, (part + 1) * partSize));
+            ResponseEntity<Map> put = restTemplate.exchange(getBaseUrl() + "/files/uploads/" + sessionId + "/parts/" + part,
+                    HttpMethod.PUT, new HttpEntity<>(bytes, partHeaders), Map.class);
+            assertThat(put.getStatusCode()).isEqualTo(HttpStatus.OK);
+        }
+
+        ResponseEntity<Map> status = restTemplate.exchange(getBaseUrl() + "/files/uploads/" + sessionId,
+                HttpMethod.GET, new HttpEntity<>(partHeaders), Map.class);
+        assertThat((List<Integer>) status.getBody().get("missingParts")).containsExactly(1);
+
+        ResponseEntity<String> early = restTemplate.postForEntity(
+                getBaseUrl() + "/files/uploads/" + sessionId + "/commit", new HttpEntity<>(partHeaders), String.class);
+        assertThat(early.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+
+        byte[] middle = Arrays.copyOfRange(content, partSize, 2 * partSize);
+        restTemplate.exchange(getBaseUrl() + "/files/uploads/" + sessionId + "/parts/1",
+                HttpMethod.PUT, new HttpEntity<>(middle, partHeaders), Map.class);
+
+        // a part still being written holds the commit off
+        Query bySession = Query.query(Criteria.where("_id").is(sessionId));
+        mongoTemplate.updateFirst(bySession, new Update().inc("inFlight", 1).set("partStartedAt", java.time.Instant.now()),
+                UploadSession.class);
+        ResponseEntity<Map> writing = restTemplate.postForEntity(
+                getBaseUrl() + "/files/uploads/" + sessionId + "/commit", new HttpEntity<>(partHeaders), Map.class);
+        assertThat(writing.getStatusCode()).isEqualTo(HttpStatus.CONFLICT);
+        assertThat(writing.getBody().get("error")).isEqualTo("Parts of the upload are still being written");
+        assertThat(restTemplate.exchange(getBaseUrl() + "/files/uploads/" + sessionId, HttpMethod.DELETE,
+                new HttpEntity<>(partHeaders), String.class).getStatusCode()).isEqualTo(HttpStatus.CONFLICT);
+        mongoTemplate.updateFirst(bySession, new Update().inc("inFlight", -1), UploadSession.class);
+
+        // and a commit in progress turns parts away before they touch the chunks
+        mongoTemplate.updateFirst(bySession, new Update().set("status", UploadSession.Status.COMMITTING), UploadSession.class);
+        ResponseEntity<Map> late = restTemplate.exchange(getBaseUrl() + "/files/uploads/" + sessionId + "/parts/1",
+                HttpMethod.PUT, new HttpEntity<>(new byte[partSize], partHeaders), Map.class);
+        assertThat(late.getStatusCode()).isEqualTo(HttpStatus.CONFLICT);
+        // nor can an abort pull the chunks from under the commit
+        assertThat(restTemplate.exchange(getBaseUrl() + "/files/uploads/" + sessionId, HttpMethod.DELETE,
+                new HttpEntity<>(partHeaders), String.class).getStatusCode()).isEqualTo(HttpStatus.CONFLICT);
+        mongoTemplate.updateFirst(bySession, new Update().set("status", UploadSession.Status.OPEN), UploadSession.class);
+
+        ResponseEntity<Map> committed = restTemplate.postForEntity(
+                getBaseUrl() + "/files/uploads/" + sessionId + "/commit", new HttpEntity<>(partHeaders), Map.class);
+        assertThat(committed.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(committed.getBody().get("hash")).isEqualTo(org.springframework.util.DigestUtils.md5DigestAsHex(content));
+
+        ResponseEntity<byte[]> download = restTemplate.exchange(getBaseUrl() + committed.getBody().get("downloadLink"),
+                HttpMethod.GET, new HttpEntity<>(partHeaders), byte[].class);
+        assertThat(download.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(download.getBody()).isEqualTo(content);
+
+        // an idle session is aborted with its chunks
+        ResponseEntity<Map> abandoned = restTemplate.postForEntity(getBaseUrl() + "/files/uploads",
+                new HttpEntity<>(Map.of("filename", "abandoned.bin", "size", content.length), jsonHeaders), Map.class);
+        String abandonedId = (String) abandoned.getBody().get("id");
+        restTemplate.exchange(getBaseUrl() + "/files/uploads/" + abandonedId + "/parts/1",
+                HttpMethod.PUT, new HttpEntity<>(middle, partHeaders), Map.class);
+        ObjectId abandonedChunks = new ObjectId(mongoTemplate.findById(abandonedId, UploadSession.class).getGridFsId());
+        assertThat(chunks(abandonedChunks)).isEqualTo(1);
+        assertThat(restTemplate.exchange(getBaseUrl() + "/files/uploads/" + abandonedId, HttpMethod.DELETE,
+                new HttpEntity<>(partHeaders), String.class).getStatusCode()).isEqualTo(HttpStatus.NO_CONTENT);
+        assertThat(chunks(abandonedChunks)).isZero();
+        assertThat(mongoTemplate.findById(abandonedId, UploadSession.class)).isNull();
+    }
+
+    // =============================================================
+    // 1.8 Download byte ranges and revalidate with the ETag
+    // =============================================================
+    @Test
+    @Order(8)
+    void rangeAndConditionalDownload() {
+        byte[] content = new byte[600 * 1024]; // spans three GridFS chunks
+        new Random(8).nextBytes(content);
+
+        HttpHeaders uploadHeaders = new HttpHeaders();
+        uploadHeaders.add("X-User-Id", "userRange");
+        uploadHeaders.add("X-Filename", "range.bin");
+        uploadHeaders.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        ResponseEntity<Map> upload = restTemplate.exchange(getBaseUrl() + "/files/stream",
+                HttpMethod.PUT, new HttpEntity<>(content, uploadHeaders), Map.class);
+        assertThat(upload.getStatusCode()).isEqualTo(HttpStatus.OK);
+        String url = getBaseUrl() + upload.getBody().get("downloadLink");
+
+        HttpHeaders rangeHeaders = new HttpHeaders();
+        rangeHeaders.add("X-User-Id", "userRange");
+        rangeHeaders.add(HttpHeaders.RANGE, "bytes=300000-300009");
+        ResponseEntity<byte[]> partial = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(rangeHeaders), byte[].class);
+        assertThat(partial.getStatusCode()).isEqualTo(HttpStatus.PARTIAL_CONTENT);
+        assertThat(partial.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 300000-300009/" + content.length);
+        assertThat(partial.getBody()).isEqualTo(Arrays.copyOfRange(content, 300000, 300010));
+
+        rangeHeaders.set(HttpHeaders.RANGE, "bytes=0-1,-2");
+        ResponseEntity<byte[]> multi = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(rangeHeaders), byte[].class);
+        assertThat(multi.getStatusCode()).isEqualTo(HttpStatus.PARTIAL_CONTENT);
+        assertThat(multi.getHeaders().getContentType().toString()).startsWith("multipart/byteranges");
+
+        rangeHeaders.set(HttpHeaders.RANGE, "bytes=" + content.length + "-");
+        ResponseEntity<byte[]> unsatisfiable = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(rangeHeaders), byte[].class);
+        assertThat(unsatisfiable.getStatusCode()).isEqualTo(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+
+        HttpHeaders plainHeaders = new HttpHeaders();
+        plainHeaders.add("X-User-Id", "userRange");
+        ResponseEntity<byte[]> full = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(plainHeaders), byte[].class);
+        assertThat(full.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(full.getBody()).isEqualTo(content);
+        String eTag = full.getHeaders().getETag();
+        assertThat(eTag).contains((String) upload.getBody().get("hash"));
+
+        plainHeaders.setIfNoneMatch(eTag);
+        ResponseEntity<byte[]> notModified = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(plainHeaders), byte[].class);
+        assertThat(notModified.getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+
+        HttpHeaders staleRange = new HttpHeaders();
+        staleRange.add("X-User-Id", "userRange");
+        staleRange.add(HttpHeaders.RANGE, "bytes=0-9");
+        staleRange.add(HttpHeaders.IF_RANGE, "\"stale\"");
+        ResponseEntity<byte[]> whole = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(staleRange), byte[].class);
+        assertThat(whole.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(whole.getBody()).hasSize(content.length);
+    }
+
+    // =============================================================
+    // 1.9 Repeated downloads hit the cache until the file is deleted
+    // =============================================================
+    @Test
+    @Order(9)
+    void hotDownloadCachedUntilDeleted() throws Exception {
+        byte[] content = "popular public content".getBytes(StandardCharsets.UTF_8);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("X-User-Id", "userCache");
+        headers.add("X-Filename", "popular.txt");
+        headers.add("X-Visibility", "PUBLIC");
+        ResponseEntity<Map> upload = restTemplate.exchange(getBaseUrl() + "/files/stream",
+                HttpMethod.PUT, new HttpEntity<>(content, headers), Map.class);
+        assertThat(upload.getStatusCode()).isEqualTo(HttpStatus.OK);
+        String url = getBaseUrl() + upload.getBody().get("downloadLink");
+
+        HttpHeaders reader = new HttpHeaders();
+        reader.add("X-User-Id", "anyReader");
+        for (int i = 0; i < 4; i++) {
+            ResponseEntity<byte[]> download = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(reader), byte[].class);
+            assertThat(download.getStatusCode()).isEqualTo(HttpStatus.OK);
+            assertThat(download.getBody()).isEqualTo(content);
+        }
+
+        ResponseEntity<Map> hits = restTemplate.getForEntity(
+                getBaseUrl() + "/actuator/metrics/cache.gets?tag=cache:download&tag=result:hit", Map.class);
+        assertThat(hits.getStatusCode()).isEqualTo(HttpStatus.OK);
+        List<Map<String, Object>> measurements = (List<Map<String, Object>>) hits.getBody().get("measurements");
+        assertThat(((Number) measurements.get(0).get("value")).doubleValue()).isGreaterThanOrEqualTo(2.0);
+
+        // rename must not be hidden by the cached token metadata (the JDK client cannot send PATCH)
+        fileService.renameFile((String) upload.getBody().get("id"), "userCache", "renamed-popular.txt");
+        ResponseEntity<byte[]> renamed = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(reader), byte[].class);
+        assertThat(renamed.getHeaders().getContentDisposition().getFilename()).isEqualTo("renamed-popular.txt");
+
+        restTemplate.exchange(getBaseUrl() + "/files/" + upload.getBody().get("id"),
+                HttpMethod.DELETE, new HttpEntity<>(headers), Void.class);
+        ResponseEntity<String> gone = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(reader), String.class);
+        assertThat(gone.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+
+        // a cache of its own: the byte budget holds as entries come in, a new entry is not the
+        // one evicted, and invalidating a file drops every entry of it
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        DownloadCache cache = new DownloadCache(registry, true, DataSize.ofKilobytes(3), DataSize.ofKilobytes(1));
+        for (int i = 0; i < 20; i++) {
+            String id = "content" + i;
+            Resource source = new ByteArrayResource(new byte[1024]);
+            assertThat(cache.load(id, "h", "application/octet-stream", source)).isNull();
+            assertThat(cache.load(id, "h", "application/octet-stream", source)).isNotNull();
+            assertThat(cache.get(id, "h")).isNotNull();
+            assertThat(registry.get("cache.bytes").gauge().value()).isLessThanOrEqualTo(3 * 1024);
+        }
+        assertThat(registry.get("cache.evictions").functionCounter().count()).isEqualTo(17);
+        Resource other = new ByteArrayResource(new byte[512]);
+        cache.load("content19", "h2", "application/octet-stream", other);
+        cache.load("content19", "h2", "application/octet-stream", other);
+        cache.invalidate("content19");
+        assertThat(cache.get("content19", "h")).isNull();
+        assertThat(cache.get("content19", "h2")).isNull();
+    }
+
+    // =============================================================
+    // 1.10 Cursor pagination walks all files once, in order
+    // =============================================================
+    @Test
+    @Order(10)
+    void cursorPaginationOfUserFiles() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("X-User-Id", "userCursor");
+        for (int i = 0; i < 7; i++) {
+            headers.set("X-Filename", "cursor-" + i + ".txt");
+            ResponseEntity<Map> upload = restTemplate.exchange(getBaseUrl() + "/files/stream", HttpMethod.PUT,
+                    new HttpEntity<>(("cursor content " + i).getBytes(StandardCharsets.UTF_8), headers), Map.class);
+            assertThat(upload.getStatusCode()).isEqualTo(HttpStatus.OK);
+        }
+
+        List<String> seen = new ArrayList<>();
+        String cursor = "";
+        int pages = 0;
+        do {
+            ResponseEntity<Map> page = restTemplate.exchange(
+                    getBaseUrl() + "/files?size=3&sortBy=filename&cursor=" + cursor,
+                    HttpMethod.GET, new HttpEntity<>(headers), Map.class);
+            assertThat(page.getStatusCode()).isEqualTo(HttpStatus.OK);
+            for (Map<String, Object> file : (List<Map<String, Object>>) page.getBody().get("content")) {
+                seen.add((String) file.get("filename"));
+                assertThat(file.get("downloadLink")).isNotNull();
+            }
+            cursor = (String) page.getBody().get("nextCursor");
+            pages++;
+        } while (cursor != null);
+
+        assertThat(pages).isEqualTo(3);
+        assertThat(seen).containsExactly("cursor-0.txt", "cursor-1.txt", "cursor-2.txt", "cursor-3.txt",
+                "cursor-4.txt", "cursor-5.txt", "cursor-6.txt");
+
+        ResponseEntity<String> invalid = restTemplate.exchange(getBaseUrl() + "/files?cursor=not-a-cursor",
+                HttpMethod.GET, new HttpEntity<>(headers), String.class);
+        assertThat(invalid.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    // =============================================================
+    // 1.11 Tag filters match whole tags ignoring case, or a prefix with '*'
+    // =============================================================
+    @Test
+    @Order(11)
+    void tagFilterExactAndPrefix() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("X-User-Id", "userTags");
+        headers.add("X-Filename", "tagged.txt");
+        headers.add("X-Tags", "Report, Finance-2024");
+        ResponseEntity<Map> upload = restTemplate.exchange(getBaseUrl() + "/files/stream", HttpMethod.PUT,
+                new HttpEntity<>("tagged content".getBytes(StandardCharsets.UTF_8), headers), Map.class);
+        assertThat(upload.getStatusCode()).isEqualTo(HttpStatus.OK);
+
+        // a file written before tagKeys existed
+        mongoTemplate.getCollection("files").insertOne(new org.bson.Document("userId", "userTags")
+                .append("filename", "legacy.txt").append("visibility", "PRIVATE")
+                .append("tags", List.of("Legacy")).append("hash", "legacy-hash")
+                .append("publicToken", UUID.randomUUID().toString()).append("size", 1L));
+        assertThat(tagKeyMigration.migrate()).isGreaterThanOrEqualTo(1);
+        assertThat(tagKeyMigration.migrate()).isZero();
+
+        assertThat(filenamesTagged(headers, "REPORT")).containsExactly("tagged.txt");
+        assertThat(filenamesTagged(headers, "fin*")).containsExactly("tagged.txt");
+        assertThat(filenamesTagged(headers, "rep")).isEmpty();
+        assertThat(filenamesTagged(headers, "legacy")).containsExactly("legacy.txt");
+    }
+
+    private List<String> filenamesTagged(HttpHeaders headers, String tag) {
+        ResponseEntity<Map> page = restTemplate.exchange(getBaseUrl() + "/files?tag=" + tag,
+                HttpMethod.GET, new HttpEntity<>(headers), Map.class);
+        assertThat(page.getStatusCode()).isEqualTo(HttpStatus.OK);
+        return ((List<Map<String, Object>>) page.getBody().get("content")).stream()
+                .map(file -> (String) file.get("filename"))
+                .collect(Collectors.toList());
+    }
+
+    // =============================================================
+    // 1.12 Public listing as NDJSON, and in cursor/limit pages
+    // =============================================================
+    @Test
+    @Order(12)
+    void publicListingStreamedAndPaged() throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("X-User-Id", "userPublicList");
+        headers.add("X-Visibility", "PUBLIC");
+        for (int i = 0; i < 3; i++) {
+            headers.set("X-Filename", "public-" + i + ".txt");
+            restTemplate.exchange(getBaseUrl() + "/files/stream", HttpMethod.PUT,
+                    new HttpEntity<>(("public listing " + i).getBytes(StandardCharsets.UTF_8), headers), Map.class);
+        }
+        long publicCount = fileRepository.findAll().stream()
+                .filter(file -> file.getVisibility() == com.teletronics.storage.model.Visibility.PUBLIC).count();
+
+        HttpHeaders ndjson = new HttpHeaders();
+        ndjson.add("X-User-Id", "anonymous");
+        ndjson.setAccept(List.of(MediaType.APPLICATION_NDJSON));
+        ResponseEntity<String> stream = restTemplate.exchange(getBaseUrl() + "/files/public",
+                HttpMethod.GET, new HttpEntity<>(ndjson), String.class);
+        assertThat(stream.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(stream.getHeaders().getContentType().isCompatibleWith(MediaType.APPLICATION_NDJSON)).isTrue();
+        List<String> lines = stream.getBody().lines().toList();
+        assertThat(lines).hasSize((int) publicCount);
+        com.fasterxml.jackson.databind.ObjectMapper mapper = new com.fasterxml.jackson.databind.ObjectMapper();
+        for (String line : lines) {
+            Map<String, Object> entry = mapper.readValue(line, Map.class);
+            assertThat(entry.get("downloadLink")).isNotNull();
+            assertThat(entry).doesNotContainKeys("hash", "gridFsId", "publicToken");
+        }
+
+        HttpHeaders json = new HttpHeaders();
+        json.add("X-User-Id", "anonymous");
+        int paged = 0;
+        String cursor = "";
+        do {
+            ResponseEntity<Map> page = restTemplate.exchange(getBaseUrl() + "/files/public?limit=2&cursor=" + cursor,
+                    HttpMethod.GET, new HttpEntity<>(json), Map.class);
+            assertThat(page.getStatusCode()).isEqualTo(HttpStatus.OK);
+            List<Map<String, Object>> content = (List<Map<String, Object>>) page.getBody().get("content");
+            paged += content.size();
+            for (Map<String, Object> entry : content) {
+                assertThat((String) entry.get("downloadLink")).doesNotEndWith("/null");
+                assertThat(entry.get("filename")).isNotNull();
+            }
+            cursor = (String) page.getBody().get("nextCursor");
+        } while (cursor != null);
+        assertThat(paged).isEqualTo(publicCount);
+    }
+
+    // =============================================================
+    // 1.13 Content shared across users, freed when the last file is deleted
+    // =============================================================
+    @Test
+    @Order(13)
+    void sameContentSharedAcrossUsers() throws Exception {
+        byte[] content = "installer shared by many users".getBytes(StandardCharsets.UTF_8);
+        List<Map> uploaded = new ArrayList<>();
+        for (String user : List.of("userShareA", "userShareB")) {
+            HttpHeaders headers = new HttpHeaders();
+            headers.add("X-User-Id", user);
+            headers.add("X-Filename", "installer.bin");
+            ResponseEntity<Map> upload = restTemplate.exchange(getBaseUrl() + "/files/stream", HttpMethod.PUT,
+                    new HttpEntity<>(content, headers), Map.class);
+            assertThat(upload.getStatusCode()).isEqualTo(HttpStatus.OK);
+            uploaded.add(upload.getBody());
+        }
+        String blobId = (String) uploaded.get(0).get("blobId");
+        assertThat(uploaded.get(1).get("blobId")).isEqualTo(blobId);
+        assertThat(uploaded.get(1).get("gridFsId")).isEqualTo(uploaded.get(0).get("gridFsId"));
+        org.bson.Document byContent = new org.bson.Document("metadata.sha256", blobId);
+        assertThat(mongoTemplate.getCollection("fs.files").countDocuments(byContent)).isEqualTo(1);
+        assertThat(mongoTemplate.getCollection("blobs").find(new org.bson.Document("_id", blobId))
+                .first().get("refCount", Number.class).longValue()).isEqualTo(2);
+
+        // a delete sent twice at once, e.g. by a client retrying, drops one reference only
+        HttpHeaders owner = new HttpHeaders();
+        owner.add("X-User-Id", "userShareA");
+        String deleteUrl = getBaseUrl() + "/files/" + uploaded.get(0).get("id");
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<HttpStatusCode>> deletes = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            deletes.add(executor.submit(() -> {
+                start.await();
+                return restTemplate.exchange(deleteUrl, HttpMethod.DELETE, new HttpEntity<>(owner), String.class)
+                        .getStatusCode();
+            }));
+        }
+        start.countDown();
+        List<HttpStatusCode> statuses = new ArrayList<>();
+        for (Future<HttpStatusCode> delete : deletes) statuses.add(delete.get(30, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertThat(statuses.stream().filter(HttpStatusCode::is2xxSuccessful).count()).isEqualTo(1);
+        assertThat(mongoTemplate.getCollection("blobs").find(new org.bson.Document("_id", blobId))
+                .first().get("refCount", Number.class).longValue()).isEqualTo(1);
+        assertThat(fileService.getUsage("userShareA").getFiles()).isZero();
+
+        HttpHeaders reader = new HttpHeaders();
+        reader.add("X-User-Id", "userShareB");
+        ResponseEntity<byte[]> stillThere = restTemplate.exchange(getBaseUrl() + uploaded.get(1).get("downloadLink"),
+                HttpMethod.GET, new HttpEntity<>(reader), byte[].class);
+        assertThat(stillThere.getBody()).isEqualTo(content);
+
+        fileService.delete((String) uploaded.get(1).get("id"), "userShareB");
+        assertThat(mongoTemplate.getCollection("blobs").countDocuments(new org.bson.Document("_id", blobId))).isZero();
+        assertThat(mongoTemplate.getCollection("fs.files").countDocuments(byContent)).isZero();
+    }
+
+    // =============================================================
+    // 1.14 Content placed on the filesystem tier (image/png in test properties)
+    // =============================================================
+    @Test
+    @Order(14)
+    void filesystemTierPlacementAndDownload() throws Exception {
+        byte[] content = new byte[300 * 1024];
+        new Random(14).nextBytes(content);
+        System.arraycopy(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'}, 0, content, 0, 8);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("X-User-Id", "userFs");
+        headers.add("X-Filename", "picture.png");
+        ResponseEntity<Map> upload = restTemplate.exchange(getBaseUrl() + "/files/stream", HttpMethod.PUT,
+                new HttpEntity<>(content, headers), Map.class);
+        assertThat(upload.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(upload.getBody().get("backend")).isEqualTo("fs");
+        String id = (String) upload.getBody().get("gridFsId");
+        java.nio.file.Path stored = java.nio.file.Path.of("target/test-blobs",
+                id.substring(id.length() - 2), id.substring(id.length() - 4, id.length() - 2), id);
+        assertThat(java.nio.file.Files.size(stored)).isEqualTo(content.length);
+
+        String url = getBaseUrl() + upload.getBody().get("downloadLink");
+        ResponseEntity<byte[]> whole = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+        assertThat(whole.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(whole.getHeaders().getContentType()).isEqualTo(MediaType.IMAGE_PNG);
+        assertThat(whole.getBody()).isEqualTo(content);
+
+        HttpHeaders ranged = new HttpHeaders();
+        ranged.addAll(headers);
+        ranged.set(HttpHeaders.RANGE, "bytes=1000-1999");
+        ResponseEntity<byte[]> part = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(ranged), byte[].class);
+        assertThat(part.getStatusCode()).isEqualTo(HttpStatus.PARTIAL_CONTENT);
+        assertThat(part.getBody()).isEqualTo(Arrays.copyOfRange(content, 1000, 2000));
+
+        fileService.delete((String) upload.getBody().get("id"), "userFs");
+        assertThat(java.nio.file.Files.exists(stored)).isFalse();
+    }
+
+    // =============================================================
+    // 1.15 Text content stored compressed, served per Accept-Encoding
+    // =============================================================
+    @Test
+    @Order(15)
+    void compressedStorageAndNegotiation() throws Exception {
+        StringBuilder csv = new StringBuilder("id,name,amount\n");
+        for (int i = 0; i < 5000; i++) {
+            csv.append(i).append(",item-").append(i % 50).append(",").append(i * 7 % 1000).append("\n");
+        }
+        byte[] content = csv.toString().getBytes(StandardCharsets.UTF_8);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("X-User-Id", "userGzip");
+        headers.add("X-Filename", "report.csv");
+        ResponseEntity<Map> upload = restTemplate.exchange(getBaseUrl() + "/files/stream", HttpMethod.PUT,
+                new HttpEntity<>(content, headers), Map.class);
+        assertThat(upload.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(upload.getBody().get("compression")).isEqualTo("gzip");
+        assertThat(((Number) upload.getBody().get("size")).longValue()).isEqualTo(content.length);
+        assertThat(((Number) upload.getBody().get("storedSize")).longValue()).isLessThan(content.length / 3);
+        assertThat(((Number) upload.getBody().get("compressionRatio")).doubleValue()).isGreaterThan(3.0);
+        String url = getBaseUrl() + upload.getBody().get("downloadLink");
+
+        ResponseEntity<byte[]> plain = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+        assertThat(plain.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING)).isNull();
+        assertThat(plain.getBody()).isEqualTo(content);
+
+        HttpHeaders gzip = new HttpHeaders();
+        gzip.addAll(headers);
+        gzip.set(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate");
+        ResponseEntity<byte[]> encoded = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(gzip), byte[].class);
+        assertThat(encoded.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING)).isEqualTo("gzip");
+        assertThat(encoded.getHeaders().getETag()).isNotEqualTo(plain.getHeaders().getETag());
+        try (InputStream in = new java.util.zip.GZIPInputStream(new java.io.ByteArrayInputStream(encoded.getBody()))) {
+            assertThat(in.readAllBytes()).isEqualTo(content);
+        }
+
+        gzip.set(HttpHeaders.RANGE, "bytes=100-199");
+        ResponseEntity<byte[]> part = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(gzip), byte[].class);
+        assertThat(part.getStatusCode()).isEqualTo(HttpStatus.PARTIAL_CONTENT);
+        assertThat(part.getBody()).isEqualTo(Arrays.copyOfRange(content, 100, 200));
+    }
+
+    // =============================================================
+    // 1.16 Phase timers, bytes histograms and duplicate counters on /actuator/prometheus
+    // =============================================================
+    @Test
+    @Order(16)
+    void storageMetricsExposedToPrometheus() {
+        byte[] content = "metrics test content".getBytes(StandardCharsets.UTF_8);
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("X-User-Id", "userMetrics");
+        headers.add("X-Filename", "metrics.txt");
+        ResponseEntity<Map> upload = restTemplate.exchange(getBaseUrl() + "/files/stream", HttpMethod.PUT,
+                new HttpEntity<>(content, headers), Map.class);
+        assertThat(upload.getStatusCode()).isEqualTo(HttpStatus.OK);
+        ResponseEntity<String> duplicate = restTemplate.exchange(getBaseUrl() + "/files/stream", HttpMethod.PUT,
+                new HttpEntity<>(content, headers), String.class);
+        assertThat(duplicate.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+
+        HttpHeaders download = new HttpHeaders();
+        download.add("X-User-Id", "userMetrics");
+        ResponseEntity<byte[]> body = restTemplate.exchange(getBaseUrl() + upload.getBody().get("downloadLink"),
+                HttpMethod.GET, new HttpEntity<>(download), byte[].class);
+        assertThat(body.getBody()).isEqualTo(content);
+
+        String scrape = restTemplate.getForObject(getBaseUrl() + "/actuator/prometheus", String.class);
+        for (String phase : List.of("detect", "hash", "write", "duplicate-lookup", "blob", "metadata-save")) {
+            assertThat(scrape).contains("storage_upload_phase_seconds_count{phase=\"" + phase + "\"}");
+        }
+        for (String phase : List.of("token-lookup", "open", "stream")) {
+            assertThat(scrape).contains("storage_download_phase_seconds_count{phase=\"" + phase + "\"}");
+        }
+        assertThat(scrape).contains("storage_upload_duplicates_total{check=\"filename\"}");
+        assertThat(scrape).contains("storage_upload_bytes_bucket{le=\"1024.0\"}");
+        assertThat(scrape).contains("storage_download_bytes_count");
+        assertThat(scrape).contains("storage_uploads_active 0.0");
+        // the scrape itself is not a download
+        assertThat(scrape).contains("storage_downloads_active 0.0");
+    }
+
+    // =============================================================
+    // 1.17 Analysis job settles the type and verifies the stored bytes after the upload
+    // =============================================================
+    @Test
+    @Order(17)
+    void contentAnalysedAfterUpload() throws InterruptedException {
+        // over the compression threshold, so the worker reads it back through gzip
+        byte[] content = "id,name,size\n".concat("1,analysis,42\n".repeat(200)).getBytes(StandardCharsets.UTF_8);
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("X-User-Id", "userAnalysis");
+        headers.add("X-Filename", "analysis.csv");
+        ResponseEntity<Map> upload = restTemplate.exchange(getBaseUrl() + "/files/stream", HttpMethod.PUT,
+                new HttpEntity<>(content, headers), Map.class);
+        assertThat(upload.getStatusCode()).isEqualTo(HttpStatus.OK);
+        // the response carries what the leading bytes told
+        assertThat(upload.getBody().get("detectedContentType")).isEqualTo("text/plain");
+        assertThat(upload.getBody().get("analysisStatus")).isEqualTo("PENDING");
+        String id = (String) upload.getBody().get("id");
+
+        Map<?, ?> analysed = awaitAnalysis(id, "userAnalysis");
+        assertThat(analysed.get("analysisStatus")).isEqualTo("DONE");
+        assertThat(analysed.get("detectedContentType")).isEqualTo("text/csv");
+        assertThat(analysed.get("checksumVerified")).isEqualTo(true);
+        assertThat(analysed.get("analyzedAt")).isNotNull();
+
+        HttpHeaders other = new HttpHeaders();
+        other.add("X-User-Id", "userAnalysisOther");
+        assertThat(restTemplate.exchange(getBaseUrl() + "/files/" + id, HttpMethod.GET, new HttpEntity<>(other),
+                String.class).getStatusCode()).isEqualTo(HttpStatus.FORBIDDEN);
+
+        // recorded hash no longer matches the stored bytes: reported, not retried
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(id)),
+                Update.update("hash", "0".repeat(32)).set("analysisStatus", "PENDING"), "files");
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(id)),
+                Update.update("status", "PENDING").set("nextAttemptAt", new Date()), "analysis_jobs");
+        Map<?, ?> failed = awaitAnalysis(id, "userAnalysis");
+        assertThat(failed.get("analysisStatus")).isEqualTo("FAILED");
+        assertThat(failed.get("checksumVerified")).isEqualTo(false);
+        org.bson.Document job = mongoTemplate.findById(id, org.bson.Document.class, "analysis_jobs");
+        assertThat(job.getString("status")).isEqualTo("FAILED");
+        assertThat(job.getString("lastError")).contains("does not match");
+
+        HttpHeaders owner = new HttpHeaders();
+        owner.add("X-User-Id", "userAnalysis");
+        restTemplate.exchange(getBaseUrl() + "/files/" + id, HttpMethod.DELETE, new HttpEntity<>(owner), Void.class);
+        assertThat(mongoTemplate.findById(id, org.bson.Document.class, "analysis_jobs")).isNull();
+    }
+
+    // =============================================================
+    // 1.18 Batch upload and delete: one result per item, duplicates and strangers' files refused
+    // =============================================================
+    @Test
+    @Order(18)
+    void batchUploadAndDelete() throws Exception {
+        String unique = UUID.randomUUID().toString();
+        HttpHeaders single = new HttpHeaders();
+        single.add("X-User-Id", "userBatch");
+        single.add("X-Filename", "batch-existing.txt");
+        restTemplate.exchange(getBaseUrl() + "/files/stream", HttpMethod.PUT,
+                new HttpEntity<>(("existing " + unique).getBytes(StandardCharsets.UTF_8), single), Map.class);
+        single.set("X-User-Id", "userBatchOther");
+        single.set("X-Filename", "batch-other.txt");
+        String otherId = (String) restTemplate.exchange(getBaseUrl() + "/files/stream", HttpMethod.PUT,
+                new HttpEntity<>(("other " + unique).getBytes(StandardCharsets.UTF_8), single), Map.class)
+                .getBody().get("id");
+
+        MultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
+        String[][] items = {
+                {"batch-a.txt", "alpha " + unique},
+                {"batch-b.txt", "beta " + unique},
+                {"batch-c.txt", "alpha " + unique},      // same content as batch-a.txt
+                {"batch-existing.txt", "gamma " + unique}, // name already taken
+                {"batch-a.txt", "delta " + unique}       // name repeated in the batch
+        };
+        for (String[] item : items) {
+            body.add("files", new ByteArrayResource(item[1].getBytes(StandardCharsets.UTF_8)) {
+                @Override
+                public String getFilename() {
+                    return item[0];
+                }
+            });
+        }
+        body.add("tags", "Batch");
+        ResponseEntity<List> upload = restTemplate.exchange(getBaseUrl() + "/files/batch", HttpMethod.POST,
+                new HttpEntity<>(body, headersForUser("userBatch")), List.class);
+        assertThat(upload.getStatusCode()).isEqualTo(HttpStatus.OK);
+        List<Map<String, Object>> results = upload.getBody();
+        assertThat(results).extracting(result -> result.get("status"))
+                .containsExactly("STORED", "STORED", "DUPLICATE", "DUPLICATE", "DUPLICATE");
+        Map<?, ?> a = (Map<?, ?>) results.get(0).get("file");
+        Map<?, ?> b = (Map<?, ?>) results.get(1).get("file");
+        assertThat(a.get("filename")).isEqualTo("batch-a.txt");
+        assertThat(a.get("tags")).isEqualTo(List.of("Batch"));
+        assertThat(a.get("downloadLink")).asString().startsWith("/files/download/");
+        assertThat(fileRepository.findByUserIdAndFilename("userBatch", "batch-b.txt")).isPresent();
+        String blobId = fileRepository.findById((String) a.get("id")).orElseThrow().getBlobId();
+        assertThat(mongoTemplate.findById(blobId, org.bson.Document.class, "blobs").get("refCount", Number.class).longValue())
+                .isEqualTo(1);
+
+        HttpHeaders json = new HttpHeaders();
+        json.add("X-User-Id", "userBatch");
+        json.setContentType(MediaType.APPLICATION_JSON);
+        String missing = new org.bson.types.ObjectId().toHexString();
+        ResponseEntity<List> delete = restTemplate.exchange(getBaseUrl() + "/files/batch/delete", HttpMethod.POST,
+                new HttpEntity<>(Map.of("ids", List.of(a.get("id"), b.get("id"), otherId, missing, a.get("id"))), json),
+                List.class);
+        assertThat(delete.getStatusCode()).isEqualTo(HttpStatus.OK);
+        List<Map<String, Object>> deleted = delete.getBody();
+        assertThat(deleted).extracting(result -> result.get("status"))
+                .containsExactly("DELETED", "DELETED", "FORBIDDEN", "NOT_FOUND");
+        assertThat(deleted.get(0).get("id")).isEqualTo(a.get("id"));
+        assertThat(fileRepository.findById((String) a.get("id"))).isEmpty();
+        assertThat(fileRepository.findById((String) b.get("id"))).isEmpty();
+        assertThat(fileRepository.findById(otherId)).isPresent();
+        // the last reference went with the file, and the content with the blob
+        assertThat(mongoTemplate.findById(blobId, org.bson.Document.class, "blobs")).isNull();
+        assertThat(mongoTemplate.findById((String) a.get("id"), org.bson.Document.class, "analysis_jobs")).isNull();
+
+        // overlapping batch deletes of content another user shares release each file once
+        byte[] shared = ("batch shared " + UUID.randomUUID()).getBytes(StandardCharsets.UTF_8);
+        var mine = fileService.upload(new java.io.ByteArrayInputStream(shared), "batch-shared.txt", null, -1,
+                "userBatch", "PRIVATE", List.of());
+        var theirs = fileService.upload(new java.io.ByteArrayInputStream(shared), "batch-shared.txt", null, -1,
+                "userBatchOther", "PRIVATE", List.of());
+        long filesBefore = fileService.getUsage("userBatch").getFiles();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        List<Future<List>> deletes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            deletes.add(executor.submit(() -> {
+                start.await();
+                return restTemplate.exchange(getBaseUrl() + "/files/batch/delete", HttpMethod.POST,
+                        new HttpEntity<>(Map.of("ids", List.of(mine.getId())), json), List.class).getBody();
+            }));
+        }
+        start.countDown();
+        long deletedOnce = 0;
+        for (Future<List> batch : deletes) {
+            Map<?, ?> result = (Map<?, ?>) batch.get(30, TimeUnit.SECONDS).get(0);
+            if ("DELETED".equals(result.get("status"))) deletedOnce++;
+            else assertThat(result.get("status")).isEqualTo("NOT_FOUND");
+        }
+        executor.shutdown();
+        assertThat(deletedOnce).isEqualTo(1);
+        assertThat(fileService.getUsage("userBatch").getFiles()).isEqualTo(filesBefore - 1);
+        assertThat(mongoTemplate.findById(theirs.getBlobId(), org.bson.Document.class, "blobs")
+                .get("refCount", Number.class).longValue()).isEqualTo(1);
+        HttpHeaders otherUser = new HttpHeaders();
+        otherUser.add("X-User-Id", "userBatchOther");
+        assertThat(restTemplate.exchange(getBaseUrl() + "/files/download/" + theirs.getPublicToken(), HttpMethod.GET,
+                new HttpEntity<>(otherUser), byte[].class).getBody()).isEqualTo(shared);
+
+        ResponseEntity<String> empty = restTemplate.exchange(getBaseUrl() + "/files/batch/delete", HttpMethod.POST,
+                new HttpEntity<>(Map.of("ids", List.of()), json), String.class);
+        assertThat(empty.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    // =============================================================
+    // 1.19 Streamed ZIP of a tagged set or of listed ids, from GridFS (plain and gzip) and the filesystem tier
+    // =============================================================
+    @Test
+    @Order(19)
+    void archiveDownload() throws Exception {
+        byte[] text = "archived line\n".repeat(500).getBytes(StandardCharsets.UTF_8);
+        byte[] binary = new byte[600 * 1024];
+        new Random(19).nextBytes(binary);
+        byte[] picture = new byte[20 * 1024];
+        new Random(20).nextBytes(picture);
+        System.arraycopy(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'}, 0, picture, 0, 8);
+        String tag = "archive-" + UUID.randomUUID();
+
+        var textFile = fileService.upload(new java.io.ByteArrayInputStream(text), "notes.txt", null, text.length,
+                "userArchive", "PRIVATE", List.of(tag));
+        var binaryFile = fileService.upload(new java.io.ByteArrayInputStream(binary), "data.bin", null, binary.length,
+                "userArchive", "PUBLIC", List.of(tag));
+        var pictureFile = fileService.upload(new java.io.ByteArrayInputStream(picture), "picture.png", null,
+                picture.length, "userArchive", "PRIVATE", List.of(tag));
+        assertThat(textFile.getCompression()).isEqualTo("gzip");
+        assertThat(pictureFile.getBackend()).isEqualTo("fs");
+        var othersPrivate = fileService.upload(new java.io.ByteArrayInputStream(("private " + tag).getBytes()),
+                "private-notes.txt", null, -1, "userArchiveOther", "PRIVATE", List.of(tag));
+        var othersPublic = fileService.upload(new java.io.ByteArrayInputStream(("public " + tag).getBytes()),
+                "notes.txt", null, -1, "userArchiveOther", "PUBLIC", List.of(tag));
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("X-User-Id", "userArchive");
+        ResponseEntity<byte[]> own = restTemplate.exchange(getBaseUrl() + "/files/archive?tag=" + tag.toUpperCase(),
+                HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+        assertThat(own.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(own.getHeaders().getContentType().toString()).isEqualTo("application/zip");
+        Map<String, byte[]> entries = unzip(own.getBody());
+        assertThat(entries.keySet()).containsExactly("data.bin", "notes.txt", "picture.png");
+        assertThat(entries.get("data.bin")).isEqualTo(binary);
+        assertThat(entries.get("notes.txt")).isEqualTo(text);
+        assertThat(entries.get("picture.png")).isEqualTo(picture);
+
+        // everyone's public files: the other user's notes.txt gets a distinct entry name
+        ResponseEntity<byte[]> shared = restTemplate.exchange(getBaseUrl() + "/files/archive?visibility=PUBLIC&tag=" + tag
+                        + "&ids=" + othersPublic.getId() + "," + textFile.getId(),
+                HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+        entries = unzip(shared.getBody());
+        assertThat(entries.keySet()).containsExactly("notes.txt", "notes (2).txt");
+        assertThat(entries.get("notes.txt")).isEqualTo(("public " + tag).getBytes());
+        assertThat(entries.get("notes (2).txt")).isEqualTo(text);
+
+        ResponseEntity<byte[]> publicSet = restTemplate.exchange(getBaseUrl() + "/files/archive?visibility=PUBLIC&tag=" + tag,
+                HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+        assertThat(unzip(publicSet.getBody()).keySet()).containsExactly("data.bin", "notes.txt");
+
+        ResponseEntity<String> forbidden = restTemplate.exchange(getBaseUrl() + "/files/archive?ids="
+                + binaryFile.getId() + "," + othersPrivate.getId(), HttpMethod.GET, new HttpEntity<>(headers), String.class);
+        assertThat(forbidden.getStatusCode()).isEqualTo(HttpStatus.FORBIDDEN);
+        ResponseEntity<String> missing = restTemplate.exchange(getBaseUrl() + "/files/archive?ids="
+                + new org.bson.types.ObjectId().toHexString(), HttpMethod.GET, new HttpEntity<>(headers), String.class);
+        assertThat(missing.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+    }
+
+    // =============================================================
+    // 1.20 Per-user quotas: rejected from the declared size, checked again on the actual size, released on delete
+    // =============================================================
+    @Test
+    @Order(20)
+    void perUserQuota() {
+        // files stored before quotas are added to their user's usage once
+        mongoTemplate.getCollection("files").insertOne(new org.bson.Document("userId", "userQuotaLegacy")
+                .append("filename", "legacy-quota.bin").append("visibility", "PRIVATE").append("hash", "legacy-quota")
+                .append("publicToken", UUID.randomUUID().toString()).append("size", 700L));
+        assertThat(userUsageMigration.migrate()).isGreaterThanOrEqualTo(1);
+        assertThat(userUsageMigration.migrate()).isZero();
+        org.bson.Document legacyUsage = mongoTemplate.findById("userQuotaLegacy", org.bson.Document.class, "user_usage");
+        assertThat(legacyUsage.get("bytes", Number.class).longValue()).isEqualTo(700);
+        assertThat(legacyUsage.get("files", Number.class).longValue()).isEqualTo(1);
+
+        String user = "userQuota";
+        mongoTemplate.insert(new org.bson.Document("_id", user).append("bytes", 0L).append("files", 0L)
+                .append("maxBytes", 10_000L).append("maxFiles", 3L), "user_usage");
+        byte[] first = new byte[6000];
+        new Random(201).nextBytes(first);
+        byte[] second = new byte[6000];
+        new Random(202).nextBytes(second);
+
+        ResponseEntity<Map> stored = restTemplate.exchange(getBaseUrl() + "/files/upload", HttpMethod.POST,
+                new HttpEntity<>(multipart("quota-1.bin", first), headersForUser(user)), Map.class);
+        assertThat(stored.getStatusCode()).isEqualTo(HttpStatus.OK);
+
+        // the declared length alone is over the quota
+        HttpHeaders stream = new HttpHeaders();
+        stream.add("X-User-Id", user);
+        stream.add("X-Filename", "quota-2.bin");
+        stream.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        ResponseEntity<String> tooLarge = restTemplate.exchange(getBaseUrl() + "/files/stream", HttpMethod.PUT,
+                new HttpEntity<>(second, stream), String.class);
+        assertThat(tooLarge.getStatusCode()).isEqualTo(HttpStatus.PAYLOAD_TOO_LARGE);
+
+        // without a declared size the content is stored, then rejected and removed once its size is known
+        long gridFsFiles = mongoTemplate.getCollection("fs.files").countDocuments();
+        Assertions.assertThrows(com.teletronics.storage.exception.QuotaExceededException.class,
+                () -> fileService.upload(new java.io.ByteArrayInputStream(second), "quota-2.bin", null, -1,
+                        user, "PRIVATE", List.of()));
+        assertThat(mongoTemplate.getCollection("fs.files").countDocuments()).isEqualTo(gridFsFiles);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("X-User-Id", user);
+        Map<?, ?> usage = restTemplate.exchange(getBaseUrl() + "/files/usage", HttpMethod.GET,
+                new HttpEntity<>(headers), Map.class).getBody();
+        assertThat(((Number) usage.get("bytes")).longValue()).isEqualTo(6000);
+        assertThat(((Number) usage.get("files")).longValue()).isEqualTo(1);
+        assertThat(((Number) usage.get("maxBytes")).longValue()).isEqualTo(10_000);
+
+        // batch items are admitted in order while there is room left
+        MultiValueMap<String, Object> batch = new LinkedMultiValueMap<>();
+        for (int i = 0; i < 3; i++) {
+            byte[] content = ("small file " + i).getBytes(StandardCharsets.UTF_8);
+            String name = "quota-small-" + i + ".txt";
+            batch.add("files", new ByteArrayResource(content) {
+                @Override
+                public String getFilename() {
+                    return name;
+                }
+            });
+        }
+        ResponseEntity<List> results = restTemplate.exchange(getBaseUrl() + "/files/batch", HttpMethod.POST,
+                new HttpEntity<>(batch, headersForUser(user)), List.class);
+        assertThat(((List<Map<String, Object>>) results.getBody())).extracting(result -> result.get("status"))
+                .containsExactly("STORED", "STORED", "QUOTA_EXCEEDED");
+
+        ResponseEntity<Void> deleted = restTemplate.exchange(getBaseUrl() + "/files/" + stored.getBody().get("id"),
+                HttpMethod.DELETE, new HttpEntity<>(headers), Void.class);
+        assertThat(deleted.getStatusCode().is2xxSuccessful()).isTrue();
+        usage = restTemplate.exchange(getBaseUrl() + "/files/usage", HttpMethod.GET,
+                new HttpEntity<>(headers), Map.class).getBody();
+        assertThat(((Number) usage.get("files")).longValue()).isEqualTo(2);
+        assertThat(((Number) usage.get("bytes")).longValue()).isEqualTo(2 * "small file 0".length());
+    }
+
+    // =============================================================
+    // 1.21 Upload admission: per-user limit (429), global limit with a short queue (503), downloads unaffected
+    // =============================================================
+    @Test
+    @Order(21)
+    void uploadAdmissionControl() throws Exception {
+        ResponseEntity<Map> shared = restTemplate.exchange(getBaseUrl() + "/files/upload", HttpMethod.POST,
+                new HttpEntity<>(multipart("admission.txt", ("admitted " + UUID.randomUUID()).getBytes()),
+                        headersForUser("userAdmissionOther")), Map.class);
+        assertThat(shared.getStatusCode()).isEqualTo(HttpStatus.OK);
+
+        // uploads in flight are stood in for by permits held here: 8 per user, 32 in total
+        List<UploadAdmission.Permit> held = new ArrayList<>();
+        try {
+            for (int i = 0; i < 8; i++) held.add(uploadAdmission.admit("userAdmission", false));
+            ResponseEntity<String> perUser = restTemplate.exchange(getBaseUrl() + "/files/upload", HttpMethod.POST,
+                    new HttpEntity<>(multipart("admission-1.txt", "one".getBytes()), headersForUser("userAdmission")),
+                    String.class);
+            assertThat(perUser.getStatusCode()).isEqualTo(HttpStatus.TOO_MANY_REQUESTS);
+            assertThat(perUser.getHeaders().getFirst(HttpHeaders.RETRY_AFTER)).isEqualTo("5");
+
+            for (int i = 0; i < 24; i++) held.add(uploadAdmission.admit("userAdmissionFiller" + i / 8, false));
+            ResponseEntity<String> saturated = restTemplate.exchange(getBaseUrl() + "/files/upload", HttpMethod.POST,
+                    new HttpEntity<>(multipart("admission-2.txt", "two".getBytes()), headersForUser("userAdmissionOther")),
+                    String.class);
+            assertThat(saturated.getStatusCode()).isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+            assertThat(saturated.getHeaders().getFirst(HttpHeaders.RETRY_AFTER)).isEqualTo("5");
+
+            HttpHeaders headers = new HttpHeaders();
+            headers.add("X-User-Id", "userAdmissionOther");
+            ResponseEntity<byte[]> download = restTemplate.exchange(getBaseUrl() + shared.getBody().get("downloadLink"),
+                    HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+            assertThat(download.getStatusCode()).isEqualTo(HttpStatus.OK);
+        } finally {
+            held.forEach(UploadAdmission.Permit::close);
+        }
+
+        ResponseEntity<String> admitted = restTemplate.exchange(getBaseUrl() + "/files/upload", HttpMethod.POST,
+                new HttpEntity<>(multipart("admission-1.txt", "one".getBytes()), headersForUser("userAdmission")),
+                String.class);
+        assertThat(admitted.getStatusCode()).isEqualTo(HttpStatus.OK);
+
+        // an upload without a user is not admitted, and answered before its multipart body is read
+        assertThat(expectContinue("POST", "/files/upload",
+                Map.of("Content-Type", "multipart/form-data; boundary=admission"), 1_000_000))
+                .startsWith("HTTP/1.1 400");
+        HttpHeaders anonymous = new HttpHeaders();
+        anonymous.setContentType(MediaType.MULTIPART_FORM_DATA);
+        ResponseEntity<Map> missingUser = restTemplate.exchange(getBaseUrl() + "/files/batch", HttpMethod.POST,
+                new HttpEntity<>(multipart("admission-3.txt", "three".getBytes()), anonymous), Map.class);
+        assertThat(missingUser.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(missingUser.getBody().get("error")).isEqualTo("Missing X-User-Id header");
+
+        String scrape = restTemplate.getForObject(getBaseUrl() + "/actuator/prometheus", String.class);
+        assertThat(scrape).contains("storage_admission_rejected_total{reason=\"user-limit\"}");
+        assertThat(scrape).contains("storage_admission_rejected_total{reason=\"queue-timeout\"}");
+        assertThat(scrape).contains("storage_admission_wait_seconds_count");
+        assertThat(scrape).contains("storage_admission_admitted 0.0");
+    }
+
+    // =============================================================
+    // 1.22 Fast-fail checks and X-Content-Hash: rejected or linked without reading the body
+    // =============================================================
+    @Test
+    @Order(22)
+    void contentHashAnnouncedBeforeBody() throws Exception {
+        byte[] published = ("published content " + UUID.randomUUID()).getBytes(StandardCharsets.UTF_8);
+        byte[] secret = ("private content " + UUID.randomUUID()).getBytes(StandardCharsets.UTF_8);
+        String publishedHash = sha256Hex(published);
+        String secretHash = sha256Hex(secret);
+        var source = fileService.upload(new java.io.ByteArrayInputStream(published), "published.txt", null,
+                published.length, "userHashOwner", "PUBLIC", List.of());
+        fileService.upload(new java.io.ByteArrayInputStream(secret), "secret.txt", null, secret.length,
+                "userHashOwner", "PRIVATE", List.of());
+
+        // fails the test if anything reads it
+        InputStream untouched = new InputStream() {
+            @Override
+            public int read() {
+                throw new AssertionError("the body was read");
+            }
+        };
+        Assertions.assertThrows(IllegalArgumentException.class, () -> fileService.upload(untouched, "published.txt",
+                null, -1, "userHashOwner", "PUBLIC", List.of()));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> fileService.upload(untouched, "again.txt",
+                null, -1, "userHashOwner", "PUBLIC", List.of(), publishedHash));
+        var linked = fileService.upload(untouched, "linked.txt", null, -1, "userHashLinker", "PRIVATE", List.of(),
+                publishedHash.toUpperCase());
+        assertThat(linked.getSize()).isEqualTo(published.length);
+        assertThat(linked.getHash()).isEqualTo(source.getHash());
+        assertThat(linked.getGridFsId()).isEqualTo(source.getGridFsId());
+        assertThat(mongoTemplate.findById(publishedHash, org.bson.Document.class, "blobs")
+                .get("refCount", Number.class).longValue()).isEqualTo(2);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("X-User-Id", "userHashLinker");
+        ResponseEntity<byte[]> download = restTemplate.exchange(getBaseUrl() + linked.getDownloadLink(),
+                HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+        assertThat(download.getBody()).isEqualTo(published);
+
+        // private content is never linked: an empty body does not match the hash, the real one is stored
+        headers.add("X-Filename", "guessed.txt");
+        headers.add("X-Content-Hash", secretHash);
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        ResponseEntity<String> guessed = restTemplate.exchange(getBaseUrl() + "/files/stream", HttpMethod.PUT,
+                new HttpEntity<>(new byte[0], headers), String.class);
+        assertThat(guessed.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(fileRepository.findByUserIdAndFilename("userHashLinker", "guessed.txt")).isEmpty();
+        ResponseEntity<Map> sent = restTemplate.exchange(getBaseUrl() + "/files/stream", HttpMethod.PUT,
+                new HttpEntity<>(secret, headers), Map.class);
+        assertThat(sent.getStatusCode()).isEqualTo(HttpStatus.OK);
+
+        long gridFsFiles = mongoTemplate.getCollection("fs.files").countDocuments();
+        headers.set("X-Filename", "mismatch.txt");
+        ResponseEntity<String> mismatch = restTemplate.exchange(getBaseUrl() + "/files/stream", HttpMethod.PUT,
+                new HttpEntity<>("something else".getBytes(), headers), String.class);
+        assertThat(mismatch.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(mongoTemplate.getCollection("fs.files").countDocuments()).isEqualTo(gridFsFiles);
+
+        headers.set("X-Content-Hash", "not-a-hash");
+        ResponseEntity<String> invalid = restTemplate.exchange(getBaseUrl() + "/files/stream", HttpMethod.PUT,
+                new HttpEntity<>(new byte[0], headers), String.class);
+        assertThat(invalid.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+
+        // with Expect: 100-continue the final answer comes before any of the body is sent
+        assertThat(expectContinue("PUT", "/files/stream", Map.of("X-User-Id", "userHashOwner",
+                "X-Filename", "published.txt", "Content-Type", "application/octet-stream"), 1_000_000))
+                .startsWith("HTTP/1.1 400");
+        assertThat(expectContinue("PUT", "/files/stream", Map.of("X-User-Id", "userHashContinue",
+                "X-Filename", "linked.txt", "X-Content-Hash", publishedHash,
+                "Content-Type", "application/octet-stream"), published.length))
+                .startsWith("HTTP/1.1 200");
+        assertThat(fileRepository.findByUserIdAndFilename("userHashContinue", "linked.txt")).isPresent();
+    }
+
+    // sends only the headers of a request with a body and returns the status line of the first response
+    private String expectContinue(String method, String path, Map<String, String> headers, long contentLength)
+            throws java.io.IOException {
+        try (java.net.Socket socket = new java.net.Socket("localhost", port)) {
+            socket.setSoTimeout(10_000);
+            StringBuilder request = new StringBuilder(method + " " + path + " HTTP/1.1\r\nHost: localhost\r\n");
+            headers.forEach((name, value) -> request.append(name).append(": ").append(value).append("\r\n"));
+            request.append("Content-Length: ").append(contentLength).append("\r\n")
+                    .append("Expect: 100-continue\r\n\r\n");
+            socket.getOutputStream().write(request.toString().getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+            var in = new java.io.BufferedReader(
+                    new java.io.InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            return in.readLine();
+        }
+    }
+
+    // =============================================================
+    // 1.23 Integrity scrubber, run on demand through /actuator/scrub
+    // =============================================================
+    @Test
+    @Order(23)
+    void integrityScrubber() throws Exception {
+        // reading back the 2GB file of 1.3 would take minutes, what earlier sections stored counts as
+        // verified recently
+        mongoTemplate.updateMulti(new Query(), new Update().set("verifiedAt", java.time.Instant.now()), Blob.class);
+
+        // leftovers of uploads that died, from before the grace period
+        var old = java.util.Date.from(java.time.Instant.now().minus(java.time.Duration.ofHours(2)));
+        ObjectId orphanFile = new ObjectId(old);
+        ObjectId orphanChunks = new ObjectId(old);
+        ObjectId sessionChunks = new ObjectId(old);
+        ObjectId expiredChunks = new ObjectId(old);
+        ObjectId recentChunks = new ObjectId();
+        mongoTemplate.getCollection("fs.files").insertOne(new org.bson.Document("_id", orphanFile)
+                .append("length", 3L).append("chunkSize", 255 * 1024).append("uploadDate", old)
+                .append("filename", "orphan.bin"));
+        for (ObjectId id : List.of(orphanFile, orphanChunks, sessionChunks, recentChunks)) {
+            mongoTemplate.getCollection("fs.chunks").insertOne(new org.bson.Document("files_id", id)
+                    .append("n", 0).append("data", new org.bson.types.Binary(new byte[]{1, 2, 3})));
+        }
+        // parts of a resumable upload still in progress
+        UploadSession session = mongoTemplate.insert(new UploadSession("userScrub", "parts.bin", null,
+                Visibility.PRIVATE, List.of(), 3, 255 * 1024, sessionChunks.toHexString(),
+                java.time.Instant.now(), java.time.Instant.now().plus(java.time.Duration.ofHours(1))));
+        // an abandoned one that only ever received its second part, which the chunk phase cannot see
+        UploadSession expired = mongoTemplate.insert(new UploadSession("userScrub", "expired.bin", null,
+                Visibility.PRIVATE, List.of(), 2 * 255 * 1024, 255 * 1024, expiredChunks.toHexString(),
+                old.toInstant(), java.time.Instant.now().minus(java.time.Duration.ofMinutes(1))));
+        mongoTemplate.getCollection("fs.chunks").insertOne(new org.bson.Document("files_id", expiredChunks)
+                .append("n", 1).append("data", new org.bson.types.Binary(new byte[]{4, 5, 6})));
+
+        // a blob whose file went away without releasing it
+        var leaked = fileService.upload(new java.io.ByteArrayInputStream(("leaked " + UUID.randomUUID()).getBytes()),
+                "leaked.txt", null, -1, "userScrub", "PRIVATE", List.of());
+        fileRepository.deleteById(leaked.getId());
+
+        // stored bytes changed after the analysis verified them
+        byte[] content = ("verified " + UUID.randomUUID()).getBytes(StandardCharsets.UTF_8);
+        var corrupted = fileService.upload(new java.io.ByteArrayInputStream(content), "corrupted.txt", null,
+                content.length, "userScrub", "PRIVATE", List.of());
+        assertThat(awaitAnalysis(corrupted.getId(), "userScrub").get("checksumVerified")).isEqualTo(true);
+        byte[] flipped = content.clone();
+        flipped[0] ^= 1;
+        mongoTemplate.getCollection("fs.chunks").updateOne(
+                com.mongodb.client.model.Filters.eq("files_id", new ObjectId(corrupted.getGridFsId())),
+                com.mongodb.client.model.Updates.set("data", new org.bson.types.Binary(flipped)));
+
+        Map<?, ?> first = runScrubPass();
+        Map<?, ?> counts = (Map<?, ?>) ((Map<?, ?>) first.get("lastPass")).get("counts");
+        assertThat(((Number) counts.get("orphan-content")).longValue()).isGreaterThanOrEqualTo(1);
+        assertThat(((Number) counts.get("orphan-chunks")).longValue()).isGreaterThanOrEqualTo(1);
+        assertThat(((Number) counts.get("corrupt")).longValue()).isGreaterThanOrEqualTo(1);
+        assertThat(((Number) counts.get("expired-session")).longValue()).isGreaterThanOrEqualTo(1);
+        assertThat(chunks(orphanFile)).isZero();
+        assertThat(mongoTemplate.getCollection("fs.files").countDocuments(new org.bson.Document("_id", orphanFile)))
+                .isZero();
+        assertThat(chunks(orphanChunks)).isZero();
+        assertThat(chunks(sessionChunks)).isEqualTo(1);
+        assertThat(chunks(expiredChunks)).isZero();
+        assertThat(mongoTemplate.exists(Query.query(Criteria.where("_id").is(expired.getId())), UploadSession.class))
+                .isFalse();
+        assertThat(chunks(recentChunks)).isEqualTo(1);
+        assertThat(fileRepository.findById(corrupted.getId()).orElseThrow().getChecksumVerified()).isFalse();
+
+        // the leaked blob is only noted on the first pass, and freed once it has stayed unreferenced
+        Query leakedBlob = Query.query(Criteria.where("_id").is(leaked.getBlobId()));
+        assertThat(mongoTemplate.findOne(leakedBlob, org.bson.Document.class, "blobs").get("unreferencedSince"))
+                .isNotNull();
+        mongoTemplate.updateFirst(leakedBlob, new Update().set("unreferencedSince",
+                java.time.Instant.now().minus(java.time.Duration.ofHours(2))), "blobs");
+        Map<?, ?> second = runScrubPass();
+        counts = (Map<?, ?>) ((Map<?, ?>) second.get("lastPass")).get("counts");
+        assertThat(((Number) counts.get("orphan-blob")).longValue()).isGreaterThanOrEqualTo(1);
+        assertThat(((Number) counts.get("reclaimed-bytes")).longValue()).isGreaterThan(0);
+        assertThat(mongoTemplate.exists(leakedBlob, "blobs")).isFalse();
+        assertThat(chunks(new ObjectId(leaked.getGridFsId()))).isZero();
+
+        String scrape = restTemplate.getForObject(getBaseUrl() + "/actuator/prometheus", String.class);
+        assertThat(scrape).contains("storage_scrub_findings_total{type=\"orphan-blob\"");
+
+        mongoTemplate.remove(session);
+        mongoTemplate.getCollection("fs.chunks").deleteMany(com.mongodb.client.model.Filters.in("files_id",
+                sessionChunks, recentChunks));
+    }
+
+    // asks for a pass and waits until it has finished
+    private Map<?, ?> runScrubPass() throws InterruptedException {
+        String url = getBaseUrl() + "/actuator/scrub";
+        long passes = ((Number) restTemplate.getForObject(url, Map.class).get("passes")).longValue();
+        HttpHeaders json = new HttpHeaders();
+        json.setContentType(MediaType.APPLICATION_JSON);
+        assertThat(restTemplate.postForEntity(url, new HttpEntity<>(json), Map.class).getStatusCode())
+                .isEqualTo(HttpStatus.OK);
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (true) {
+            Map<?, ?> state = restTemplate.getForObject(url, Map.class);
+            if (((Number) state.get("passes")).longValue() > passes) {
+                return state;
+            }
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(100);
+        }
+    }
+
+    private long chunks(ObjectId filesId) {
+        return mongoTemplate.getCollection("fs.chunks").find(new org.bson.Document("files_id", filesId))
+                .projection(new org.bson.Document("n", 1)).into(new java.util.ArrayList<>()).size();
+    }
+
+    // =============================================================
+    // 1.24 Copy a file to another user without uploading it again
+    // =============================================================
+    @Test
+    @Order(24)
+    void copyWithoutReupload() throws Exception {
+        byte[] content = ("copied content " + UUID.randomUUID()).getBytes(StandardCharsets.UTF_8);
+        var original = fileService.upload(new java.io.ByteArrayInputStream(content), "copy-source.txt", "text/plain",
+                -1, "userCopyA", "PUBLIC", List.of("Copy"));
+        long gridFsFiles = mongoTemplate.getCollection("fs.files").countDocuments();
+        String copyUrl = getBaseUrl() + "/files/" + original.getId() + "/copy";
+
+        HttpHeaders owner = new HttpHeaders();
+        owner.add("X-User-Id", "userCopyA");
+        owner.setContentType(MediaType.APPLICATION_JSON);
+        ResponseEntity<Map> given = restTemplate.exchange(copyUrl, HttpMethod.POST,
+                new HttpEntity<>(Map.of("userId", "userCopyB", "filename", "copied.txt"), owner), Map.class);
+        assertThat(given.getStatusCode()).isEqualTo(HttpStatus.OK);
+        Map<?, ?> copy = given.getBody();
+        assertThat(copy.get("userId")).isEqualTo("userCopyB");
+        assertThat(copy.get("filename")).isEqualTo("copied.txt");
+        assertThat(copy.get("visibility")).isEqualTo("PRIVATE");
+        assertThat(copy.get("tags")).isEqualTo(List.of("Copy"));
+        assertThat(copy.get("blobId")).isEqualTo(original.getBlobId());
+        assertThat(copy.get("gridFsId")).isEqualTo(original.getGridFsId());
+        // nothing was written to storage, the copy holds a reference on the same blob
+        assertThat(mongoTemplate.getCollection("fs.files").countDocuments()).isEqualTo(gridFsFiles);
+        Query blob = Query.query(Criteria.where("_id").is(original.getBlobId()));
+        assertThat(mongoTemplate.findOne(blob, org.bson.Document.class, "blobs").get("refCount", Number.class)
+                .longValue()).isEqualTo(2);
+
+        HttpHeaders receiver = new HttpHeaders();
+        receiver.add("X-User-Id", "userCopyB");
+        Map<?, ?> usage = restTemplate.exchange(getBaseUrl() + "/files/usage", HttpMethod.GET,
+                new HttpEntity<>(receiver), Map.class).getBody();
+        assertThat(((Number) usage.get("bytes")).longValue()).isEqualTo(content.length);
+        assertThat(((Number) usage.get("files")).longValue()).isEqualTo(1);
+
+        // a user holds each content and each name once, whatever the other one is
+        assertThat(restTemplate.exchange(copyUrl, HttpMethod.POST,
+                new HttpEntity<>(Map.of("filename", "copy-renamed.txt"), owner), String.class).getStatusCode())
+                .isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(restTemplate.exchange(copyUrl, HttpMethod.POST,
+                new HttpEntity<>(Map.of("userId", "userCopyB", "filename", "copied-again.txt"), owner), String.class)
+                .getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+
+        // a public file can be copied by anyone for themselves, a private one only by its owner
+        HttpHeaders other = new HttpHeaders();
+        other.add("X-User-Id", "userCopyC");
+        other.setContentType(MediaType.APPLICATION_JSON);
+        ResponseEntity<Map> taken = restTemplate.exchange(copyUrl, HttpMethod.POST,
+                new HttpEntity<>(Map.of(), other), Map.class);
+        assertThat(taken.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(taken.getBody().get("filename")).isEqualTo("copy-source.txt");
+        assertThat(restTemplate.exchange(copyUrl, HttpMethod.POST,
+                new HttpEntity<>(Map.of("userId", "userCopyD"), other), String.class).getStatusCode())
+                .isEqualTo(HttpStatus.FORBIDDEN);
+        assertThat(restTemplate.exchange(getBaseUrl() + "/files/" + copy.get("id") + "/copy", HttpMethod.POST,
+                new HttpEntity<>(Map.of(), other), String.class).getStatusCode()).isEqualTo(HttpStatus.FORBIDDEN);
+        assertThat(restTemplate.exchange(getBaseUrl() + "/files/" + new ObjectId().toHexString() + "/copy",
+                HttpMethod.POST, new HttpEntity<>(Map.of(), other), String.class).getStatusCode())
+                .isEqualTo(HttpStatus.NOT_FOUND);
+
+        // the copy outlives the file it was made from
+        fileService.delete(original.getId(), "userCopyA");
+        ResponseEntity<byte[]> download = restTemplate.exchange(getBaseUrl() + copy.get("downloadLink"),
+                HttpMethod.GET, new HttpEntity<>(receiver), byte[].class);
+        assertThat(download.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(download.getBody()).isEqualTo(content);
+        assertThat(mongoTemplate.findOne(blob, org.bson.Document.class, "blobs").get("refCount", Number.class)
+                .longValue()).isEqualTo(2);
+    }
+
+    private static String sha256Hex(byte[] content) throws java.security.NoSuchAlgorithmException {
+        return HexFormat.of().formatHex(java.security.MessageDigest.getInstance("SHA-256").digest(content));
+    }
+
+    private static Map<String, byte[]> unzip(byte[] archive) throws java.io.IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (var zip = new java.util.zip.ZipInputStream(new java.io.ByteArrayInputStream(archive))) {
+            for (var entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                entries.put(entry.getName(), zip.readAllBytes());
+            }
+        }
+        return entries;
+    }
+
+    // polls the file until its analysis has finished one way or the other
+    private Map<?, ?> awaitAnalysis(String id, String userId) throws InterruptedException {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("X-User-Id", userId);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            Map<?, ?> file = restTemplate.exchange(getBaseUrl() + "/files/" + id, HttpMethod.GET,
+                    new HttpEntity<>(headers), Map.class).getBody();
+            Object status = file.get("analysisStatus");
+            if ("DONE".equals(status) || "FAILED".equals(status) || System.currentTimeMillis() > deadline) {
+                return file;
+            }
+            Thread.sleep(100);
+        }
+    }
 }
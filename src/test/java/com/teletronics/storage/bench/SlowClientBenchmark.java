@@ -0,0 +1,86 @@
+package com.teletronics.storage.bench;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Connection-capacity check for the blocking download path: opens {@code clients} downloads that
+ * read a few KB and then stall, like slow mobile clients, then times {@code /health} while they
+ * hang on. Run it against a running instance, once per threading mode:
+ *
+ * <pre>
+ * java -cp target/test-classes com.teletronics.storage.bench.SlowClientBenchmark \
+ *     http://localhost:8080 /files/download/{token} 400
+ * </pre>
+ *
+ * The download should be larger than the socket buffers (tens of MB) so every stalled client
+ * keeps its server thread blocked in a write.
+ */
+public class SlowClientBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        URI base = URI.create(args[0]);
+        String downloadPath = args[1];
+        int clients = Integer.parseInt(args[2]);
+        int probes = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+        List<Socket> stalled = new ArrayList<>();
+        int started = 0;
+        try {
+            for (int i = 0; i < clients; i++) {
+                Socket socket = new Socket(base.getHost(), base.getPort());
+                socket.setReceiveBufferSize(16 * 1024);
+                stalled.add(socket);
+                OutputStream out = socket.getOutputStream();
+                out.write(("GET " + downloadPath + " HTTP/1.1\r\nHost: " + base.getHost()
+                        + "\r\nX-User-Id: bench\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            }
+            // a response that starts means a server thread picked the request up
+            Thread.sleep(2_000);
+            for (Socket socket : stalled) {
+                socket.setSoTimeout(200);
+                try {
+                    InputStream in = socket.getInputStream();
+                    if (in.readNBytes(4096).length > 0) started++;
+                } catch (java.net.SocketTimeoutException e) {
+                    // still queued behind busy threads
+                }
+            }
+
+            HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+            long[] latencies = new long[probes];
+            int timeouts = 0;
+            for (int i = 0; i < probes; i++) {
+                HttpRequest health = HttpRequest.newBuilder(base.resolve("/health"))
+                        .timeout(Duration.ofSeconds(5)).build();
+                long start = System.nanoTime();
+                try {
+                    http.send(health, HttpResponse.BodyHandlers.discarding());
+                    latencies[i] = (System.nanoTime() - start) / 1_000_000;
+                } catch (java.net.http.HttpTimeoutException e) {
+                    latencies[i] = 5_000;
+                    timeouts++;
+                }
+            }
+            Arrays.sort(latencies);
+            System.out.printf("{\"clients\": %d, \"downloadsStarted\": %d, \"healthP50Ms\": %d, "
+                            + "\"healthMaxMs\": %d, \"healthTimeouts\": %d}%n",
+                    clients, started, latencies[probes / 2], latencies[probes - 1], timeouts);
+        } finally {
+            for (Socket socket : stalled) {
+                socket.close();
+            }
+        }
+    }
+}